@@ -0,0 +1,48 @@
+package cn.jaychang.rocketmq.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 依次以1、4、16个线程运行基准测试，并开启GC profiler输出分配速率（gc.alloc.rate.norm即每次操作分配的字节数）
+ * 用法：mvn -Pjmh test-compile exec:exec -Djmh.include=DedupConsumeStrategyBenchmark
+ * dedup.benchmark.* 系统属性（通过 -Djmh.jvmArgs 传入）会转发给JMH fork出的进程
+ */
+public class BenchmarkRunner {
+
+    private static final int[] THREADS = {1, 4, 16};
+
+    public static void main(String[] args) throws RunnerException {
+        String include = args.length > 0 ? args[0] : ".*Benchmark.*";
+        List<String> jvmArgs = new ArrayList<>();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith("dedup.benchmark.")) {
+                jvmArgs.add("-D" + name + "=" + System.getProperty(name));
+            }
+        }
+        for (int threads : THREADS) {
+            Options options = new OptionsBuilder()
+                    .include(include)
+                    .threads(threads)
+                    .forks(1)
+                    .jvmArgsAppend(jvmArgs.toArray(new String[0]))
+                    .warmupIterations(3)
+                    .warmupTime(TimeValue.seconds(2))
+                    .measurementIterations(5)
+                    .measurementTime(TimeValue.seconds(2))
+                    .addProfiler(GCProfiler.class)
+                    .result("target/jmh-result-" + threads + "-threads.json")
+                    .resultFormat(ResultFormatType.JSON)
+                    .build();
+            new Runner(options).run();
+        }
+    }
+}
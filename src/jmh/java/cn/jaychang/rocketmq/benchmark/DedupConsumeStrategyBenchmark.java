@@ -0,0 +1,101 @@
+package cn.jaychang.rocketmq.benchmark;
+
+import cn.jaychang.rocketmq.base.MessageExtConst;
+import cn.jaychang.rocketmq.core.AbstractDedupMQConsumer;
+import cn.jaychang.rocketmq.core.DedupConfig;
+import cn.jaychang.rocketmq.strategy.ConsumeStrategy;
+import cn.jaychang.rocketmq.strategy.DedupConsumeStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiFunction;
+
+/**
+ * 去重流程本身的开销（存储为内存实现）：
+ * baseline为直接调用业务处理，strategy为DedupConsumeStrategy.invoke，consumerProcess为AbstractDedupMQConsumer.process（策略在消费者初始化时创建一次，额外包含获取策略及通过dedupMessageKey取去重键的开销）
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class DedupConsumeStrategyBenchmark {
+
+    @Param({"0.0", "0.1", "0.5", "0.9"})
+    public double dupRatio;
+
+    private InMemoryPersist persist;
+
+    private ConsumeStrategy strategy;
+
+    private AbstractDedupMQConsumer<String> consumer;
+
+    private final BiFunction<String, Map<String, Object>, Boolean> handler = (message, extMap) -> message != null;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        persist = new InMemoryPersist();
+        DedupConfig dedupConfig = new DedupConfig();
+        dedupConfig.setApplicationName("benchmark");
+        dedupConfig.setPersist(persist);
+        dedupConfig.setDedupStrategy(DedupConfig.DEDUP_STRATEGY_CONSUME_LATER);
+        dedupConfig.setDedupProcessingExpireMilliSeconds(TimeUnit.MINUTES.toMillis(1));
+        dedupConfig.setDedupRecordReserveMinutes(60);
+        strategy = new DedupConsumeStrategy(dedupConfig, (message, extMap) -> (String) message);
+        consumer = new AbstractDedupMQConsumer<String>(dedupConfig) {
+            @Override
+            protected boolean doProcess(String message, Map<String, Object> extMap) {
+                return message != null;
+            }
+        };
+    }
+
+    @TearDown(Level.Iteration)
+    public void clear() {
+        persist.clear();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        MessageKeySource keySource;
+        Map<String, Object> extMap;
+
+        @Setup(Level.Trial)
+        public void setup(DedupConsumeStrategyBenchmark benchmark) {
+            keySource = new MessageKeySource(benchmark.dupRatio);
+            extMap = new HashMap<>();
+            extMap.put(MessageExtConst.PROPERTY_TOPIC, "BENCHMARK_TOPIC");
+            extMap.put(MessageExtConst.PROPERTY_TAGS, "BENCHMARK_TAG");
+            extMap.put(MessageExtConst.CONSUMER_GROUP, "BENCHMARK_GROUP");
+        }
+    }
+
+    @Benchmark
+    public boolean baseline(ThreadState state) {
+        String key = state.keySource.nextKey();
+        return handler.apply(key, state.extMap);
+    }
+
+    @Benchmark
+    public boolean strategy(ThreadState state) {
+        String key = state.keySource.nextKey();
+        return strategy.invoke(handler, key, state.extMap);
+    }
+
+    @Benchmark
+    public boolean consumerProcess(ThreadState state) {
+        String key = state.keySource.nextKey();
+        state.extMap.put(MessageExtConst.PROPERTY_UNIQ_CLIENT_MESSAGE_ID_KEYIDX, key);
+        state.extMap.put(MessageExtConst.PROPERTY_EXT_MSG_ID, key);
+        return consumer.process(key, state.extMap);
+    }
+}
@@ -0,0 +1,398 @@
+package cn.jaychang.rocketmq.benchmark;
+
+import cn.jaychang.rocketmq.base.MessageExtConst;
+import cn.jaychang.rocketmq.core.AbstractDedupMQConsumer;
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+import cn.jaychang.rocketmq.core.DedupConfig;
+import cn.jaychang.rocketmq.persist.DedupElement;
+import cn.jaychang.rocketmq.persist.IPersist;
+import cn.jaychang.rocketmq.persist.JDBCPersist;
+import cn.jaychang.rocketmq.persist.RedisPersist;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * 宏观压测：模拟RocketMQ的投递与重试，通过 {@link AbstractDedupMQConsumer#process} 消费合成消息，不是JMH基准，直接运行main方法
+ * 1.每条业务消息投递一次；以dupRatio的概率在duplicateDelayMaxMillis内再投递一次（生产端重发），以burstRatio的概率同时投递burstSize份（并发重复）
+ * 2.业务处理耗时服从对数正态分布（中位数handlerMedianMicros，P99为handlerP99Micros），以failureRate的概率消费失败
+ * 3.消费返回false（失败或消费中）时按 redeliveryDelayMillis * (重试次数 + 1) 延迟重新投递，最多maxReconsumeTimes次
+ * 4.输出吞吐量、每次投递的处理耗时P50/P99/P999、每条业务消息的存储操作次数，以及去重违例（业务处理成功超过一次）和最终未消费成功的消息数
+ * 参数为逗号分隔的key=value（也可用 -Ddedup.load.key=value），如 backend=all,threads=32,dupRatio=0.3；backend可选 memory、h2、redis、all
+ * 用法：mvn -Pjmh test-compile exec:exec -Djmh.main=cn.jaychang.rocketmq.benchmark.DedupLoadTest -Djmh.args=backend=all,messages=100000
+ */
+public class DedupLoadTest {
+
+    private static final String TOPIC = "LOAD_TOPIC";
+
+    private static final String TAG = "LOAD_TAG";
+
+    private static final String GROUP = "LOAD_GROUP";
+
+    private final Map<String, String> settings;
+
+    private final int messages;
+    private final int threads;
+    private final double dupRatio;
+    private final long duplicateDelayMaxMillis;
+    private final double burstRatio;
+    private final int burstSize;
+    private final double handlerMu;
+    private final double handlerSigma;
+    private final double failureRate;
+    private final long redeliveryDelayMillis;
+    private final int maxReconsumeTimes;
+    private final long inFlightWaitMilliSeconds;
+    private final int duplicateLogPermitsPerSecond;
+
+    private DedupLoadTest(Map<String, String> settings) {
+        this.settings = settings;
+        this.messages = Integer.parseInt(setting("messages", "100000"));
+        this.threads = Integer.parseInt(setting("threads", "16"));
+        this.dupRatio = Double.parseDouble(setting("dupRatio", "0.2"));
+        this.duplicateDelayMaxMillis = Long.parseLong(setting("duplicateDelayMaxMillis", "2000"));
+        this.burstRatio = Double.parseDouble(setting("burstRatio", "0.05"));
+        this.burstSize = Integer.parseInt(setting("burstSize", "4"));
+        double median = Double.parseDouble(setting("handlerMedianMicros", "200"));
+        double p99 = Math.max(median, Double.parseDouble(setting("handlerP99Micros", "2000")));
+        //对数正态分布：中位数为e^mu，P99为e^(mu + 2.326 * sigma)
+        this.handlerMu = Math.log(median);
+        this.handlerSigma = Math.log(p99 / median) / 2.326;
+        this.failureRate = Double.parseDouble(setting("failureRate", "0.01"));
+        this.redeliveryDelayMillis = Long.parseLong(setting("redeliveryDelayMillis", "200"));
+        this.maxReconsumeTimes = Integer.parseInt(setting("maxReconsumeTimes", "16"));
+        this.inFlightWaitMilliSeconds = Long.parseLong(setting("inFlightWaitMilliSeconds", "3000"));
+        this.duplicateLogPermitsPerSecond = Integer.parseInt(setting("duplicateLogPermitsPerSecond", "10"));
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> settings = new HashMap<>();
+        for (String arg : args) {
+            for (String pair : arg.split(",")) {
+                int index = pair.indexOf('=');
+                if (index > 0) {
+                    settings.put(pair.substring(0, index).trim(), pair.substring(index + 1).trim());
+                }
+            }
+        }
+        DedupLoadTest loadTest = new DedupLoadTest(settings);
+        //没有logback配置时默认输出DEBUG日志，日志IO会掩盖存储本身的耗时
+        if (LoggerFactory.getILoggerFactory() instanceof LoggerContext) {
+            ((LoggerContext) LoggerFactory.getILoggerFactory()).getLogger(Logger.ROOT_LOGGER_NAME).setLevel(Level.toLevel(loadTest.setting("logLevel", "WARN")));
+        }
+        String backend = loadTest.setting("backend", "all");
+        List<String> backends = "all".equals(backend) ? Arrays.asList("memory", "h2", "redis") : Arrays.asList(backend.split("\\|"));
+        System.out.println("settings " + loadTest.describe());
+        System.out.printf("%-8s %10s %10s %10s %9s %9s %9s %11s %10s %11s%n",
+                "backend", "deliveries", "redelivery", "msg/s", "p50(ms)", "p99(ms)", "p999(ms)", "storeOps/msg", "violations", "unconsumed");
+        for (String name : backends) {
+            loadTest.run(name);
+        }
+        System.exit(0);
+    }
+
+    private String setting(String key, String defaultValue) {
+        String value = settings.get(key);
+        return value != null ? value : System.getProperty("dedup.load." + key, defaultValue);
+    }
+
+    private String describe() {
+        Map<String, Object> values = new LinkedHashMap<>();
+        values.put("messages", messages);
+        values.put("threads", threads);
+        values.put("dupRatio", dupRatio);
+        values.put("burstRatio", burstRatio);
+        values.put("burstSize", burstSize);
+        values.put("handlerMedianMicros", Math.round(Math.exp(handlerMu)));
+        values.put("handlerP99Micros", Math.round(Math.exp(handlerMu + 2.326 * handlerSigma)));
+        values.put("failureRate", failureRate);
+        values.put("redeliveryDelayMillis", redeliveryDelayMillis);
+        values.put("inFlightWaitMilliSeconds", inFlightWaitMilliSeconds);
+        values.put("duplicateLogPermitsPerSecond", duplicateLogPermitsPerSecond);
+        return values.toString();
+    }
+
+    private void run(String backend) throws InterruptedException {
+        Backend store = Backend.create(backend);
+        try {
+            CountingPersist persist = new CountingPersist(store.persist);
+            DedupConfig dedupConfig = new DedupConfig();
+            dedupConfig.setApplicationName("load-test");
+            dedupConfig.setPersist(persist);
+            dedupConfig.setDedupStrategy(DedupConfig.DEDUP_STRATEGY_CONSUME_LATER);
+            dedupConfig.setDedupProcessingExpireMilliSeconds(TimeUnit.MINUTES.toMillis(1));
+            dedupConfig.setDedupRecordReserveMinutes(60);
+            dedupConfig.setInFlightWaitMilliSeconds(inFlightWaitMilliSeconds);
+            dedupConfig.setDuplicateLogPermitsPerSecond(duplicateLogPermitsPerSecond);
+
+            ConcurrentMap<String, AtomicInteger> successes = new ConcurrentHashMap<>(messages * 2);
+            AbstractDedupMQConsumer<String> consumer = new AbstractDedupMQConsumer<String>(dedupConfig) {
+                @Override
+                protected boolean doProcess(String message, Map<String, Object> extMap) {
+                    ThreadLocalRandom random = ThreadLocalRandom.current();
+                    LockSupport.parkNanos((long) (Math.exp(handlerMu + handlerSigma * random.nextGaussian()) * 1000));
+                    if (random.nextDouble() < failureRate) {
+                        return false;
+                    }
+                    successes.computeIfAbsent(message, k -> new AtomicInteger()).incrementAndGet();
+                    return true;
+                }
+
+                @Override
+                protected String dedupMessageKey(String message, Map<String, Object> extMap) {
+                    //业务键去重，重发的消息msgId不同
+                    return message;
+                }
+            };
+
+            DelayQueue<Delivery> queue = new DelayQueue<>();
+            AtomicInteger pending = new AtomicInteger();
+            String prefix = UUID.randomUUID().toString().substring(0, 8);
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            long now = System.nanoTime();
+            for (int i = 0; i < messages; i++) {
+                String key = prefix + "-" + i;
+                int copies = random.nextDouble() < burstRatio ? burstSize : 1;
+                for (int c = 0; c < copies; c++) {
+                    queue.add(new Delivery(key, key + "#" + c, now, 0));
+                    pending.incrementAndGet();
+                }
+                if (random.nextDouble() < dupRatio) {
+                    queue.add(new Delivery(key, key + "#resend", now + TimeUnit.MILLISECONDS.toNanos(random.nextLong(duplicateDelayMaxMillis + 1)), 0));
+                    pending.incrementAndGet();
+                }
+            }
+            int deliveries = pending.get();
+
+            LongAdder redeliveries = new LongAdder();
+            long[][] latencies = new long[threads][];
+            Thread[] workers = new Thread[threads];
+            long start = System.nanoTime();
+            for (int t = 0; t < threads; t++) {
+                final int index = t;
+                workers[t] = new Thread(() -> latencies[index] = consume(consumer, queue, pending, redeliveries), "DedupLoadWorker-" + t);
+                workers[t].start();
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            long elapsedNanos = System.nanoTime() - start;
+
+            long[] all = Arrays.stream(latencies).flatMapToLong(Arrays::stream).sorted().toArray();
+            long violations = successes.values().stream().filter(count -> count.get() > 1).count();
+            long processed = all.length;
+            System.out.printf("%-8s %10d %10d %10.0f %9.3f %9.3f %9.3f %11.2f %10d %11d%n",
+                    backend, deliveries, redeliveries.sum(), processed * 1e9 / elapsedNanos,
+                    percentile(all, 0.5), percentile(all, 0.99), percentile(all, 0.999),
+                    persist.operations.sum() / (double) messages, violations, messages - successes.size());
+        } finally {
+            store.close();
+        }
+    }
+
+    /**
+     * 工作线程：取出到期的投递并消费，失败时按重试次数延迟重新投递
+     *
+     * @return 本线程每次投递的处理耗时（纳秒）
+     */
+    private long[] consume(AbstractDedupMQConsumer<String> consumer, DelayQueue<Delivery> queue, AtomicInteger pending, LongAdder redeliveries) {
+        long[] latencies = new long[1024];
+        int size = 0;
+        Map<String, Object> extMap = new HashMap<>();
+        while (pending.get() > 0) {
+            Delivery delivery;
+            try {
+                delivery = queue.poll(10, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            if (delivery == null) {
+                continue;
+            }
+            extMap.clear();
+            extMap.put(MessageExtConst.PROPERTY_TOPIC, TOPIC);
+            extMap.put(MessageExtConst.PROPERTY_TAGS, TAG);
+            extMap.put(MessageExtConst.CONSUMER_GROUP, GROUP);
+            extMap.put(MessageExtConst.PROPERTY_EXT_MSG_ID, delivery.msgId);
+            extMap.put(MessageExtConst.PROPERTY_UNIQ_CLIENT_MESSAGE_ID_KEYIDX, delivery.msgId);
+            long start = System.nanoTime();
+            boolean consumed;
+            try {
+                consumed = consumer.process(delivery.key, extMap);
+            } catch (RuntimeException e) {
+                consumed = false;
+            }
+            long elapsed = System.nanoTime() - start;
+            if (size == latencies.length) {
+                latencies = Arrays.copyOf(latencies, size * 2);
+            }
+            latencies[size++] = elapsed;
+            if (!consumed && delivery.reconsumeTimes < maxReconsumeTimes) {
+                redeliveries.increment();
+                long delay = TimeUnit.MILLISECONDS.toNanos(redeliveryDelayMillis * (delivery.reconsumeTimes + 1));
+                queue.add(new Delivery(delivery.key, delivery.msgId, System.nanoTime() + delay, delivery.reconsumeTimes + 1));
+            } else {
+                pending.decrementAndGet();
+            }
+        }
+        return Arrays.copyOf(latencies, size);
+    }
+
+    private static double percentile(long[] sorted, double percentile) {
+        if (sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.min(sorted.length - 1, Math.ceil(percentile * sorted.length) - 1);
+        return sorted[Math.max(0, index)] / 1e6;
+    }
+
+    private static class Delivery implements Delayed {
+        private final String key;
+        private final String msgId;
+        private final long deliverAtNanos;
+        private final int reconsumeTimes;
+
+        Delivery(String key, String msgId, long deliverAtNanos, int reconsumeTimes) {
+            this.key = key;
+            this.msgId = msgId;
+            this.deliverAtNanos = deliverAtNanos;
+            this.reconsumeTimes = reconsumeTimes;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deliverAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(deliverAtNanos, ((Delivery) other).deliverAtNanos);
+        }
+    }
+
+    /**
+     * 被测存储及其资源
+     */
+    private static class Backend {
+        private final IPersist persist;
+        private final AutoCloseable resource;
+
+        Backend(IPersist persist, AutoCloseable resource) {
+            this.persist = persist;
+            this.resource = resource;
+        }
+
+        static Backend create(String name) {
+            switch (name) {
+                case "memory":
+                    return new Backend(new InMemoryPersist(), () -> {
+                    });
+                case "h2":
+                    JdbcConnectionPool dataSource = JdbcConnectionPool.create("jdbc:h2:mem:dedup_load_" + UUID.randomUUID() + ";MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "");
+                    dataSource.setMaxConnections(64);
+                    JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+                    jdbcTemplate.execute(JdbcPersistBenchmark.COMPOSITE_DDL);
+                    jdbcTemplate.execute("CREATE INDEX idx_expire_time ON t_rocketmq_dedup (expire_time)");
+                    return new Backend(new JDBCPersist(jdbcTemplate), dataSource::dispose);
+                case "redis":
+                    RedisSupport redisSupport = new RedisSupport();
+                    return new Backend(new RedisPersist(redisSupport.start()), redisSupport::stop);
+                default:
+                    throw new IllegalArgumentException("unknown backend " + name + ", expected memory, h2, redis or all");
+            }
+        }
+
+        void close() {
+            try {
+                resource.close();
+            } catch (Exception e) {
+                System.err.println("error when close backend " + e);
+            }
+        }
+    }
+
+    /**
+     * 统计存储操作次数，批量操作按条数计
+     */
+    private static class CountingPersist implements IPersist {
+        private final IPersist delegate;
+        private final LongAdder operations = new LongAdder();
+
+        CountingPersist(IPersist delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+            operations.increment();
+            return delegate.setConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds);
+        }
+
+        @Override
+        public ClaimResultEnum claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+            operations.increment();
+            return delegate.claim(dedupElement, dedupProcessingExpireMilliSeconds);
+        }
+
+        @Override
+        public void delete(DedupElement dedupElement) {
+            operations.increment();
+            delegate.delete(dedupElement);
+        }
+
+        @Override
+        public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+            operations.increment();
+            delegate.markConsumed(dedupElement, dedupRecordReserveMinutes);
+        }
+
+        @Override
+        public Integer getConsumeStatus(DedupElement dedupElement) {
+            operations.increment();
+            return delegate.getConsumeStatus(dedupElement);
+        }
+
+        @Override
+        public List<Boolean> batchSetConsumingIfNX(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+            operations.add(dedupElements.size());
+            return delegate.batchSetConsumingIfNX(dedupElements, dedupProcessingExpireMilliSeconds);
+        }
+
+        @Override
+        public void batchDelete(List<DedupElement> dedupElements) {
+            operations.add(dedupElements.size());
+            delegate.batchDelete(dedupElements);
+        }
+
+        @Override
+        public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+            operations.add(dedupElements.size());
+            delegate.batchMarkConsumed(dedupElements, dedupRecordReserveMinutes);
+        }
+
+        @Override
+        public String toPrintInfo(DedupElement dedupElement) {
+            return delegate.toPrintInfo(dedupElement);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package cn.jaychang.rocketmq.benchmark;
+
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+import cn.jaychang.rocketmq.core.ConsumeStatusEnum;
+import cn.jaychang.rocketmq.persist.DedupElement;
+import cn.jaychang.rocketmq.persist.IPersist;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基准测试用的内存存储，只用于衡量去重流程本身的开销
+ */
+public class InMemoryPersist implements IPersist {
+
+    /**
+     * 超过后清空，避免长时间运行的基准测试耗尽内存
+     */
+    private static final int MAX_RECORDS = 1 << 20;
+
+    private final ConcurrentMap<DedupElement, Record> records = new ConcurrentHashMap<>();
+
+    @Override
+    public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        return claim(dedupElement, dedupProcessingExpireMilliSeconds).isClaimed();
+    }
+
+    @Override
+    public ClaimResultEnum claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        long now = System.currentTimeMillis();
+        Record claimed = new Record(ConsumeStatusEnum.CONSUMING.getCode(), now + dedupProcessingExpireMilliSeconds);
+        Record existing = records.putIfAbsent(dedupElement, claimed);
+        if (existing == null) {
+            return ClaimResultEnum.CLAIMED;
+        }
+        if (existing.expireAt < now && records.replace(dedupElement, existing, claimed)) {
+            return ClaimResultEnum.TAKEN_OVER;
+        }
+        return ClaimResultEnum.ofConsumeStatus(existing.status);
+    }
+
+    @Override
+    public void delete(DedupElement dedupElement) {
+        records.remove(dedupElement);
+    }
+
+    @Override
+    public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        if (records.size() > MAX_RECORDS) {
+            records.clear();
+        }
+        records.put(dedupElement, new Record(ConsumeStatusEnum.CONSUMED.getCode(), System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(dedupRecordReserveMinutes)));
+    }
+
+    @Override
+    public Integer getConsumeStatus(DedupElement dedupElement) {
+        Record record = records.get(dedupElement);
+        return record == null || record.expireAt < System.currentTimeMillis() ? null : record.status;
+    }
+
+    public void clear() {
+        records.clear();
+    }
+
+    private static class Record {
+        private final int status;
+        private final long expireAt;
+
+        Record(int status, long expireAt) {
+            this.status = status;
+            this.expireAt = expireAt;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package cn.jaychang.rocketmq.benchmark;
+
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+import cn.jaychang.rocketmq.core.JdbcKeyModeEnum;
+import cn.jaychang.rocketmq.persist.DedupElement;
+import cn.jaychang.rocketmq.persist.JDBCPersist;
+import org.h2.jdbcx.JdbcConnectionPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JDBC存储（嵌入式H2）一条消息的完整去重往返：claim，抢占成功则markConsumed，对比COMPOSITE与HASHED两种去重键模式
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class JdbcPersistBenchmark {
+
+    static final String COMPOSITE_DDL = "CREATE TABLE t_rocketmq_dedup ("
+            + "id bigint NOT NULL AUTO_INCREMENT PRIMARY KEY, create_time timestamp NOT NULL, update_time timestamp NOT NULL,"
+            + "application_name varchar(32) NOT NULL, topic varchar(64) NOT NULL, tag varchar(64) NOT NULL, consumer_group varchar(64) NOT NULL,"
+            + "msg_uniq_key varchar(64) NOT NULL, consume_status tinyint NOT NULL, expire_time bigint NOT NULL,"
+            + "CONSTRAINT uk_uniq_key UNIQUE (application_name, topic, consumer_group, tag, msg_uniq_key))";
+
+    private static final String HASHED_DDL = "CREATE TABLE t_rocketmq_dedup ("
+            + "id bigint NOT NULL AUTO_INCREMENT PRIMARY KEY, create_time timestamp NOT NULL, update_time timestamp NOT NULL,"
+            + "application_name varchar(32) NOT NULL, topic varchar(64) NOT NULL, tag varchar(64) NOT NULL, consumer_group varchar(64) NOT NULL,"
+            + "msg_uniq_key varchar(64) NOT NULL, uniq_key_hash binary(16) NOT NULL, consume_status tinyint NOT NULL, expire_time bigint NOT NULL,"
+            + "CONSTRAINT uk_uniq_key_hash UNIQUE (uniq_key_hash))";
+
+    @Param({"COMPOSITE", "HASHED"})
+    public JdbcKeyModeEnum keyMode;
+
+    @Param({"0.0", "0.5", "0.9"})
+    public double dupRatio;
+
+    private JdbcConnectionPool dataSource;
+
+    private JDBCPersist persist;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        dataSource = JdbcConnectionPool.create("jdbc:h2:mem:dedup_" + UUID.randomUUID() + ";MODE=MySQL;DB_CLOSE_DELAY=-1", "sa", "");
+        dataSource.setMaxConnections(64);
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute(JdbcKeyModeEnum.HASHED.equals(keyMode) ? HASHED_DDL : COMPOSITE_DDL);
+        jdbcTemplate.execute("CREATE INDEX idx_expire_time ON t_rocketmq_dedup (expire_time)");
+        persist = new JDBCPersist(jdbcTemplate);
+        persist.setKeyMode(keyMode);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        dataSource.dispose();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        MessageKeySource keySource;
+
+        @Setup(Level.Trial)
+        public void setup(JdbcPersistBenchmark benchmark) {
+            keySource = new MessageKeySource(benchmark.dupRatio);
+        }
+    }
+
+    @Benchmark
+    public ClaimResultEnum claimAndMarkConsumed(ThreadState state) {
+        DedupElement dedupElement = new DedupElement("benchmark", "BENCHMARK_TOPIC", "BENCHMARK_TAG", "BENCHMARK_GROUP", state.keySource.nextKey());
+        ClaimResultEnum claimResult = persist.claim(dedupElement, TimeUnit.MINUTES.toMillis(1));
+        if (claimResult.isClaimed()) {
+            persist.markConsumed(dedupElement, TimeUnit.DAYS.toMinutes(180));
+        }
+        return claimResult;
+    }
+}
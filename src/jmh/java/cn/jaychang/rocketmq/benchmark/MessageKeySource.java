@@ -0,0 +1,36 @@
+package cn.jaychang.rocketmq.benchmark;
+
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * 按重复比例生成消息Key：以dupRatio的概率返回本线程最近用过的Key（重复消息），否则返回新Key
+ * 每个线程一个实例，不需要同步
+ */
+public class MessageKeySource {
+
+    private static final int RECENT_KEYS = 1024;
+
+    private final double dupRatio;
+
+    private final String prefix = UUID.randomUUID().toString().replace("-", "").substring(0, 16);
+
+    private final String[] recentKeys = new String[RECENT_KEYS];
+
+    private long sequence;
+
+    public MessageKeySource(double dupRatio) {
+        this.dupRatio = dupRatio;
+    }
+
+    public String nextKey() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (sequence > 0 && random.nextDouble() < dupRatio) {
+            return recentKeys[random.nextInt((int) Math.min(sequence, RECENT_KEYS))];
+        }
+        String key = prefix + Long.toHexString(sequence);
+        recentKeys[(int) (sequence % RECENT_KEYS)] = key;
+        sequence++;
+        return key;
+    }
+}
@@ -0,0 +1,42 @@
+package cn.jaychang.rocketmq.benchmark;
+
+import cn.jaychang.rocketmq.core.RedisLayoutEnum;
+import cn.jaychang.rocketmq.persist.CompactRedisPersist;
+import cn.jaychang.rocketmq.persist.DedupElement;
+import cn.jaychang.rocketmq.persist.IPersist;
+import cn.jaychang.rocketmq.persist.RedisPersist;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 对比两种Redis布局每条已消费记录占用的内存（INFO memory的used_memory差值 / 记录数），不是JMH基准，直接运行main方法
+ * 参数：[记录数，默认100000]；结果与Redis版本及hash-max-*-entries配置有关，建议用 -Ddedup.benchmark.redis.host 指向与生产相同配置的Redis
+ */
+public class RedisMemoryReport {
+
+    public static void main(String[] args) {
+        int records = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        RedisSupport redisSupport = new RedisSupport();
+        StringRedisTemplate redisTemplate = redisSupport.start();
+        try {
+            for (RedisLayoutEnum layout : RedisLayoutEnum.values()) {
+                redisSupport.flush();
+                IPersist persist = RedisLayoutEnum.COMPACT.equals(layout)
+                        ? new CompactRedisPersist(redisTemplate, TimeUnit.DAYS.toMinutes(180), TimeUnit.DAYS.toMinutes(1), 64)
+                        : new RedisPersist(redisTemplate);
+                MessageKeySource keySource = new MessageKeySource(0);
+                long before = redisSupport.usedMemory();
+                for (int i = 0; i < records; i++) {
+                    DedupElement dedupElement = new DedupElement("benchmark", "BENCHMARK_TOPIC", "BENCHMARK_TAG", "BENCHMARK_GROUP", keySource.nextKey());
+                    persist.claim(dedupElement, TimeUnit.MINUTES.toMillis(1));
+                    persist.markConsumed(dedupElement, TimeUnit.DAYS.toMinutes(180));
+                }
+                long after = redisSupport.usedMemory();
+                System.out.printf("layout %-9s records %d, used memory %d bytes, %.1f bytes/record%n", layout, records, after - before, (after - before) / (double) records);
+            }
+        } finally {
+            redisSupport.stop();
+        }
+    }
+}
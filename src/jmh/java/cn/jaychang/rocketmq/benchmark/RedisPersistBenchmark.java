@@ -0,0 +1,105 @@
+package cn.jaychang.rocketmq.benchmark;
+
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+import cn.jaychang.rocketmq.core.RedisLayoutEnum;
+import cn.jaychang.rocketmq.persist.CompactRedisPersist;
+import cn.jaychang.rocketmq.persist.DedupElement;
+import cn.jaychang.rocketmq.persist.IPersist;
+import cn.jaychang.rocketmq.persist.RedisPersist;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Redis存储一条消息的完整去重往返：claim，抢占成功则markConsumed
+ * 连接Redis Cluster时（见 {@link RedisSupport}）按Cluster模式创建存储，batchClaimAndMarkConsumed用于验证批量操作按slot拆分后在集群中合法
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class RedisPersistBenchmark {
+
+    @Param({"STRING", "COMPACT"})
+    public RedisLayoutEnum layout;
+
+    @Param({"0.0", "0.5", "0.9"})
+    public double dupRatio;
+
+    /**
+     * 连接Redis Cluster时STRING布局的哈希标签分片数
+     */
+    @Param({"16"})
+    public int clusterHashTagShards;
+
+    /**
+     * batchClaimAndMarkConsumed每批的消息数
+     */
+    private static final int BATCH_SIZE = 32;
+
+    private final RedisSupport redisSupport = new RedisSupport();
+
+    private IPersist persist;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        StringRedisTemplate redisTemplate = redisSupport.start();
+        boolean cluster = redisSupport.isCluster();
+        persist = RedisLayoutEnum.COMPACT.equals(layout)
+                ? new CompactRedisPersist(redisTemplate, TimeUnit.DAYS.toMinutes(180), TimeUnit.DAYS.toMinutes(1), 64, cluster)
+                : new RedisPersist(redisTemplate, cluster ? clusterHashTagShards : 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        redisSupport.stop();
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadState {
+        MessageKeySource keySource;
+
+        @Setup(Level.Trial)
+        public void setup(RedisPersistBenchmark benchmark) {
+            keySource = new MessageKeySource(benchmark.dupRatio);
+        }
+    }
+
+    @Benchmark
+    public ClaimResultEnum claimAndMarkConsumed(ThreadState state) {
+        DedupElement dedupElement = new DedupElement("benchmark", "BENCHMARK_TOPIC", "BENCHMARK_TAG", "BENCHMARK_GROUP", state.keySource.nextKey());
+        ClaimResultEnum claimResult = persist.claim(dedupElement, TimeUnit.MINUTES.toMillis(1));
+        if (claimResult.isClaimed()) {
+            persist.markConsumed(dedupElement, TimeUnit.DAYS.toMinutes(180));
+        }
+        return claimResult;
+    }
+
+    @Benchmark
+    public List<Boolean> batchClaimAndMarkConsumed(ThreadState state) {
+        List<DedupElement> dedupElements = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            dedupElements.add(new DedupElement("benchmark", "BENCHMARK_TOPIC", "BENCHMARK_TAG", "BENCHMARK_GROUP", state.keySource.nextKey()));
+        }
+        List<Boolean> claimResults = persist.batchSetConsumingIfNX(dedupElements, TimeUnit.MINUTES.toMillis(1));
+        List<DedupElement> claimed = new ArrayList<>(BATCH_SIZE);
+        for (int i = 0; i < claimResults.size(); i++) {
+            if (claimResults.get(i)) {
+                claimed.add(dedupElements.get(i));
+            }
+        }
+        persist.batchMarkConsumed(claimed, TimeUnit.DAYS.toMinutes(180));
+        return claimResults;
+    }
+}
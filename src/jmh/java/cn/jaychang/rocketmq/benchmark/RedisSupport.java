@@ -0,0 +1,77 @@
+package cn.jaychang.rocketmq.benchmark;
+
+import org.springframework.data.redis.connection.RedisClusterConfiguration;
+import org.springframework.data.redis.connection.RedisStandaloneConfiguration;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import redis.embedded.RedisServer;
+
+import java.util.Arrays;
+
+/**
+ * 基准测试使用的Redis：指定 -Ddedup.benchmark.redis.host（及 .port）时连接已有的Redis，
+ * 指定 -Ddedup.benchmark.redis.cluster=host1:port1,host2:port2,... 时连接Redis Cluster（如本地 redis-cli --cluster create 搭建的多节点集群），
+ * 否则在本地启动一个嵌入式Redis
+ */
+public class RedisSupport {
+
+    private static final int EMBEDDED_PORT = 16379;
+
+    private RedisServer redisServer;
+
+    private LettuceConnectionFactory connectionFactory;
+
+    private StringRedisTemplate redisTemplate;
+
+    public StringRedisTemplate start() {
+        String clusterNodes = System.getProperty("dedup.benchmark.redis.cluster");
+        if (clusterNodes != null) {
+            connectionFactory = new LettuceConnectionFactory(new RedisClusterConfiguration(Arrays.asList(clusterNodes.split(","))));
+            connectionFactory.afterPropertiesSet();
+            redisTemplate = new StringRedisTemplate(connectionFactory);
+            flush();
+            return redisTemplate;
+        }
+        String host = System.getProperty("dedup.benchmark.redis.host");
+        int port = Integer.getInteger("dedup.benchmark.redis.port", 6379);
+        if (host == null) {
+            redisServer = RedisServer.builder().port(EMBEDDED_PORT).setting("save \"\"").setting("appendonly no").build();
+            redisServer.start();
+            host = "127.0.0.1";
+            port = EMBEDDED_PORT;
+        }
+        connectionFactory = new LettuceConnectionFactory(new RedisStandaloneConfiguration(host, port));
+        connectionFactory.afterPropertiesSet();
+        redisTemplate = new StringRedisTemplate(connectionFactory);
+        flush();
+        return redisTemplate;
+    }
+
+    public boolean isCluster() {
+        return connectionFactory != null && connectionFactory.isClusterAware();
+    }
+
+    public void flush() {
+        redisTemplate.execute(connection -> {
+            connection.flushDb();
+            return null;
+        }, true);
+    }
+
+    /**
+     * INFO memory中的used_memory
+     */
+    public long usedMemory() {
+        String usedMemory = redisTemplate.execute(connection -> connection.info("memory").getProperty("used_memory"), true);
+        return Long.parseLong(usedMemory);
+    }
+
+    public void stop() {
+        if (connectionFactory != null) {
+            connectionFactory.destroy();
+        }
+        if (redisServer != null) {
+            redisServer.stop();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+package cn.jaychang.rocketmq.persist;
+
+import cn.jaychang.rocketmq.benchmark.MessageKeySource;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 每条消息构造Redis key的开销：STRING布局的字符串key（每次拼接前缀 / 使用缓存的订阅前缀），以及COMPACT布局/JDBC HASHED模式使用的摘要
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RedisKeyBenchmark {
+
+    private RedisPersist redisPersist;
+
+    private MessageKeySource keySource;
+
+    private DedupSubscription subscription;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        //只构造key，不会连接Redis
+        redisPersist = new RedisPersist(new StringRedisTemplate());
+        keySource = new MessageKeySource(0);
+        subscription = new DedupSubscriptionCache("benchmark").get("BENCHMARK_TOPIC", "BENCHMARK_TAG", "BENCHMARK_GROUP");
+    }
+
+    private DedupElement nextElement() {
+        return new DedupElement("benchmark", "BENCHMARK_TOPIC", "BENCHMARK_TAG", "BENCHMARK_GROUP", keySource.nextKey());
+    }
+
+    @Benchmark
+    public String stringKey() {
+        return redisPersist.buildDedupMessageRedisKey(nextElement());
+    }
+
+    @Benchmark
+    public byte[] stringKeyBytes() {
+        return redisPersist.buildDedupMessageRedisKey(nextElement()).getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 使用预先计算的订阅前缀直接编码为字节
+     */
+    @Benchmark
+    public byte[] subscriptionKeyBytes() {
+        return redisPersist.buildDedupMessageRedisKeyBytes(subscription.newElement(keySource.nextKey()));
+    }
+
+    @Benchmark
+    public byte[] hashedKey() {
+        return DedupKeyHasher.hash(nextElement());
+    }
+}
@@ -0,0 +1,40 @@
+package cn.jaychang.rocketmq.config;
+
+import cn.jaychang.rocketmq.core.DedupConfig;
+import cn.jaychang.rocketmq.metrics.DuplicateAnalyzer;
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 查询重复消息风暴检测的结果：各订阅（topic@group）当前窗口内重复次数最多的去重键
+ * 需要开启rocketmq.consume.dedup.hotKey.enabled，并按actuator的方式暴露端点（management.endpoints.web.exposure.include=dedupHotKeys）
+ */
+@Endpoint(id = "dedupHotKeys")
+public class DedupHotKeyEndpoint {
+
+    private final DedupConfig dedupConfig;
+
+    public DedupHotKeyEndpoint(DedupConfig dedupConfig) {
+        this.dedupConfig = dedupConfig;
+    }
+
+    @ReadOperation
+    public Map<String, Object> hotKeys() {
+        DuplicateAnalyzer duplicateAnalyzer = dedupConfig.getDuplicateAnalyzer();
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("enabled", duplicateAnalyzer != null);
+        if (duplicateAnalyzer == null) {
+            result.put("hotKeys", Collections.emptyMap());
+            return result;
+        }
+        Map<String, List<DuplicateAnalyzer.HotKey>> hotKeys = duplicateAnalyzer.hotKeys();
+        result.put("windowMilliSeconds", duplicateAnalyzer.getWindowMilliSeconds());
+        result.put("hotKeys", hotKeys);
+        return result;
+    }
+}
@@ -1,11 +1,19 @@
 package cn.jaychang.rocketmq.config;
 
+import cn.jaychang.rocketmq.core.DegradeModeEnum;
+import cn.jaychang.rocketmq.core.JdbcKeyModeEnum;
 import cn.jaychang.rocketmq.core.PersistTypeEnum;
+import cn.jaychang.rocketmq.core.RedisLayoutEnum;
 import lombok.Data;
 import org.springframework.boot.context.properties.ConfigurationProperties;
 import org.springframework.context.annotation.Configuration;
 
+import java.io.File;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * @author jaychang
@@ -17,6 +25,9 @@ import java.io.Serializable;
 public class DedupProperties implements Serializable {
     private static final long serialVersionUID = -5942739731628880991L;
 
+    /**
+     * 持久化类型：DB、REDIS、LOCAL（本地文件，仅适用于单实例）或TIERED（Redis抢占及缓存，DB持久保存已消费记录）
+     */
     private PersistTypeEnum persistType = PersistTypeEnum.DB;
 
     private String applicationName;
@@ -30,4 +41,490 @@ public class DedupProperties implements Serializable {
      * 消息消费成功后，记录保留多少分钟，默认180天，即180天内的消息不会重复
      */
     private long dedupRecordReserveMinutes = 60 * 24 * 180;
+
+    /**
+     * DB存储配置，persistType为DB或TIERED时生效
+     */
+    private Jdbc jdbc = new Jdbc();
+
+    /**
+     * Redis存储配置，persistType为REDIS或TIERED时生效
+     */
+    private Redis redis = new Redis();
+
+    /**
+     * 本地文件存储配置，persistType为LOCAL时生效
+     */
+    private Local local = new Local();
+
+    /**
+     * 分层存储配置，persistType为TIERED时生效
+     */
+    private Tiered tiered = new Tiered();
+
+    /**
+     * 客户端分片配置，配置了分片时DB/Redis存储按一致性哈希分布到各分片
+     */
+    private Sharding sharding = new Sharding();
+
+    /**
+     * 过期记录清理配置
+     */
+    private Purge purge = new Purge();
+
+    /**
+     * 本地已消费记录缓存配置，重复消息命中本地缓存时无需访问Redis/MySQL
+     */
+    private NearCache nearCache = new NearCache();
+
+    /**
+     * 异步回写配置，消费完成后的状态变更由后台线程批量写入
+     */
+    private WriteBehind writeBehind = new WriteBehind();
+
+    /**
+     * 本节点上同一条消息正在消费时，重复消息最多等待多少毫秒（等待前一条的结果，而不是走broker延迟重试），小于等于0表示不等待
+     */
+    private long inFlightWaitMilliSeconds = 3000;
+
+    /**
+     * 指标配置，classpath中有Micrometer且容器中有MeterRegistry时生效
+     */
+    private Metrics metrics = new Metrics();
+
+    /**
+     * 消费完成通知配置，其他节点正在消费同一条消息时等待其结果，而不是走broker延迟重试
+     */
+    private CompletionNotify completionNotify = new CompletionNotify();
+
+    /**
+     * 消费中状态租约续期配置
+     */
+    private Lease lease = new Lease();
+
+    /**
+     * 异步存储配置
+     */
+    private Async async = new Async();
+
+    /**
+     * 存储超时、熔断与降级配置
+     */
+    private Resilience resilience = new Resilience();
+
+    /**
+     * 重复消息风暴检测配置
+     */
+    private HotKey hotKey = new HotKey();
+
+    /**
+     * 重复消息的告警日志（已消费、消费中）每秒最多输出多少条，超出的只计数，小于等于0表示不限流
+     */
+    private int duplicateLogPermitsPerSecond = 0;
+
+    /**
+     * 按订阅（topic、tag、consumerGroup）覆盖的去重策略，key为策略名；启动时为每个消费者解析一次，匹配条件最多的策略生效，条件数相同时先声明的生效
+     */
+    private Map<String, Policy> policies = new LinkedHashMap<>();
+
+    /**
+     * 消费位点水位配置
+     */
+    private OffsetWatermark offsetWatermark = new OffsetWatermark();
+
+    @Data
+    public static class OffsetWatermark implements Serializable {
+        private static final long serialVersionUID = -2874405139256610837L;
+
+        /**
+         * 是否开启，默认否；开启后以默认去重键（消息ID）去重的消费者按队列offset判断broker的重复投递，只支持集群消费，persistType为DB时存储在t_rocketmq_dedup_watermark表，REDIS或TIERED时存储在Redis
+         */
+        private boolean enabled = false;
+
+        /**
+         * 多少毫秒把有变化的水位写入一次存储，rebalance时这段时间内消费的消息可能重复消费
+         */
+        private long flushIntervalMilliSeconds = 1000;
+
+        /**
+         * 水位之上最多跟踪多少个offset（每个队列最多占用maxSpan/8字节），超过时水位前移（不越过消费中的offset），越过的未消费offset变为未知状态，重复投递时会再消费一次
+         */
+        private int maxSpan = 1 << 16;
+
+        /**
+         * 队列多少秒没有消息后从内存淘汰，再次分配到本节点时重新从存储加载
+         */
+        private long idleSeconds = 60;
+    }
+
+    @Data
+    public static class Policy implements Serializable {
+        private static final long serialVersionUID = 3048172265093318640L;
+
+        /**
+         * 匹配的topic，为空表示不限
+         */
+        private String topic;
+
+        /**
+         * 匹配的tag，为空表示不限；与@MQConsumer订阅的tag比较，订阅了多个tag时包含即匹配
+         */
+        private String tag;
+
+        /**
+         * 匹配的消费者组，为空表示不限
+         */
+        private String consumerGroup;
+
+        /**
+         * 是否去重，默认是
+         */
+        private boolean enabled = true;
+
+        /**
+         * 消费成功的记录保留多少分钟，为空时使用全局的dedupRecordReserveMinutes
+         */
+        private Long dedupRecordReserveMinutes;
+
+        /**
+         * 消费中的记录多少毫秒内认为重复，为空时使用全局的dedupProcessingExpireMilliSeconds
+         */
+        private Long dedupProcessingExpireMilliSeconds;
+
+        /**
+         * 持久化类型，为空时使用全局的persistType；不同的类型各自创建一套存储，其余存储配置共用
+         */
+        private PersistTypeEnum persistType;
+    }
+
+    @Data
+    public static class HotKey implements Serializable {
+        private static final long serialVersionUID = -7201539846628130457L;
+
+        /**
+         * 是否开启，默认不开启；开启后按Topic和GROUP统计滑动窗口内重复次数最多的去重键，可通过actuator端点dedupHotKeys查询
+         */
+        private boolean enabled = false;
+
+        /**
+         * 滑动窗口长度（秒）
+         */
+        private long windowSeconds = 60;
+
+        /**
+         * 滑动窗口的子窗口数
+         */
+        private int windowBuckets = 6;
+
+        /**
+         * Count-Min Sketch的行数
+         */
+        private int sketchDepth = 4;
+
+        /**
+         * Count-Min Sketch的列数，向上取整为2的幂
+         */
+        private int sketchWidth = 1024;
+
+        /**
+         * 每个订阅保留重复次数最多的多少个key
+         */
+        private int topK = 20;
+
+        /**
+         * 窗口内重复次数达到该值时输出告警日志，小于等于0表示不告警
+         */
+        private long alertThreshold = 1000;
+    }
+
+    @Data
+    public static class Resilience implements Serializable {
+        private static final long serialVersionUID = 2364170539182864731L;
+
+        /**
+         * 是否开启，默认不开启；开启后每次存储操作最多等待timeoutMilliSeconds，失败率过高时熔断，超时、异常或熔断期间按degradeMode降级
+         */
+        private boolean enabled = false;
+
+        /**
+         * 单次存储操作的超时时间（毫秒）
+         */
+        private long timeoutMilliSeconds = 500;
+
+        /**
+         * 执行存储操作的线程数，同时等待存储的操作超过该数量时直接降级
+         */
+        private int threads = 64;
+
+        /**
+         * 熔断的失败率阈值（百分比）
+         */
+        private int failureRateThreshold = 50;
+
+        /**
+         * 统计失败率的最近调用次数
+         */
+        private int slidingWindowSize = 100;
+
+        /**
+         * 至少统计到多少次调用才计算失败率
+         */
+        private int minimumNumberOfCalls = 20;
+
+        /**
+         * 熔断打开多久（毫秒）后放行一次探测调用
+         */
+        private long openMilliSeconds = 10000;
+
+        /**
+         * 降级方式，默认视为消费中稍后重试（不会重复消费）
+         */
+        private DegradeModeEnum degradeMode = DegradeModeEnum.CONSUME_LATER;
+
+        /**
+         * LOCAL降级方式最多在本地内存中保存多少条记录
+         */
+        private int localMaxEntries = 100000;
+    }
+
+    @Data
+    public static class Async implements Serializable {
+        private static final long serialVersionUID = -6087361524479283112L;
+
+        /**
+         * 是否开启，默认不开启；开启后消费结束后的写入不阻塞消费线程（ack与写入重叠），写入完成前进程退出的记录在消费中状态过期后才能被重新消费
+         * REDIS存储（STRING布局、Lettuce共享连接、未开启其他增强）使用Lettuce原生异步命令，其他存储在有界线程池中执行
+         */
+        private boolean enabled = false;
+
+        /**
+         * 线程池方式的线程数
+         */
+        private int threads = 16;
+
+        /**
+         * 线程池方式的队列长度，队列满时由消费线程直接执行
+         */
+        private int queueSize = 10000;
+    }
+
+    @Data
+    public static class Lease implements Serializable {
+        private static final long serialVersionUID = 7720395183645129054L;
+
+        /**
+         * 是否开启，默认不开启；开启后抢占时只设置leaseMilliSeconds的过期时间，消费过程中后台定时续租，dedupProcessingExpireMilliSeconds不再生效
+         */
+        private boolean enabled = false;
+
+        /**
+         * 租期（毫秒），消费节点挂掉后其他节点最多等待这么久即可接管
+         */
+        private long leaseMilliSeconds = 30000;
+
+        /**
+         * 续租间隔（毫秒），须小于leaseMilliSeconds，建议不超过其1/3
+         */
+        private long renewIntervalMilliSeconds = 10000;
+
+        /**
+         * 每次批量续租的最大条数
+         */
+        private int maxBatchSize = 500;
+    }
+
+    @Data
+    public static class CompletionNotify implements Serializable {
+        private static final long serialVersionUID = 5329486120813753106L;
+
+        /**
+         * 是否开启，默认不开启；REDIS存储使用发布订阅，其他存储轮询消费状态
+         */
+        private boolean enabled = false;
+
+        /**
+         * 最多等待多少毫秒，会占用消费线程，不宜过长
+         */
+        private long waitMilliSeconds = 2000;
+
+        /**
+         * 轮询方式的查询间隔（毫秒）
+         */
+        private long pollIntervalMilliSeconds = 100;
+    }
+
+    @Data
+    public static class Metrics implements Serializable {
+        private static final long serialVersionUID = 3961274519028443871L;
+
+        /**
+         * 是否记录去重指标，默认开启
+         */
+        private boolean enabled = true;
+    }
+
+    @Data
+    public static class WriteBehind implements Serializable {
+        private static final long serialVersionUID = 6187203449327415905L;
+
+        /**
+         * 是否开启异步回写，默认不开启
+         */
+        private boolean enabled = false;
+
+        /**
+         * 等待写入的状态变更最多缓冲多少条，缓冲满时消费线程阻塞等待
+         */
+        private int bufferSize = 10000;
+
+        /**
+         * 每批最多写入多少条
+         */
+        private int maxBatchSize = 200;
+
+        /**
+         * 攒批最多等待多少毫秒，应远小于dedupProcessingExpireMilliSeconds；未开启租约时启动校验必须小于全局及各策略的dedupProcessingExpireMilliSeconds
+         */
+        private long maxDelayMilliSeconds = 100;
+    }
+
+    @Data
+    public static class NearCache implements Serializable {
+        private static final long serialVersionUID = 2817339625420160874L;
+
+        /**
+         * 是否开启本地缓存，默认不开启
+         */
+        private boolean enabled = false;
+
+        /**
+         * 本地最多缓存多少条已消费记录，超过后按LRU淘汰
+         */
+        private int maxEntries = 10000;
+
+        /**
+         * 本地缓存的已消费记录保留多少秒，默认5分钟（不会超过dedupRecordReserveMinutes）
+         */
+        private long expireSeconds = 60 * 5;
+    }
+
+    @Data
+    public static class Jdbc implements Serializable {
+        private static final long serialVersionUID = 4520163591788419062L;
+
+        /**
+         * 去重键模式：COMPOSITE使用五列联合唯一索引（默认）；HASHED使用定长的uniq_key_hash摘要列，需按JDBCPersist中的说明调整表结构
+         */
+        private JdbcKeyModeEnum keyMode = JdbcKeyModeEnum.COMPOSITE;
+    }
+
+    @Data
+    public static class Redis implements Serializable {
+        private static final long serialVersionUID = -3362166311093843570L;
+
+        /**
+         * 存储布局：STRING每条消息一个key（默认）；COMPACT使用定长哈希key及按时间分桶的hash，适合保留时间很长的场景
+         */
+        private RedisLayoutEnum layout = RedisLayoutEnum.STRING;
+
+        /**
+         * COMPACT布局下每个时间桶的宽度（分钟），默认1天
+         */
+        private long bucketMinutes = 60 * 24;
+
+        /**
+         * COMPACT布局下每个时间桶拆分为多少个hash，应使每个hash的记录数不超过hash-max-listpack-entries（默认128）
+         */
+        private int bucketShards = 64;
+
+        /**
+         * 是否为Redis Cluster模式，默认否；开启后key带哈希标签，批量操作按slot拆分，切换模式会使已有的去重记录失效
+         */
+        private boolean cluster = false;
+
+        /**
+         * Cluster模式下STRING布局每个订阅分布在多少个哈希标签（slot）上，越大越均衡，但批量操作拆分的次数越多
+         */
+        private int clusterHashTagShards = 16;
+    }
+
+    @Data
+    public static class Tiered implements Serializable {
+        private static final long serialVersionUID = -1475839206615390427L;
+
+        /**
+         * 已消费记录在Redis中保留多少分钟，默认1天，超过后由DB判断并回填Redis
+         */
+        private long frontReserveMinutes = 60 * 24;
+
+        /**
+         * 已消费记录是否异步批量写入DB，默认同步写入；缓冲区大小、批次大小及等待时间使用writeBehind中的配置
+         */
+        private boolean backWriteBehind = false;
+    }
+
+    @Data
+    public static class Sharding implements Serializable {
+        private static final long serialVersionUID = 8456120937716245388L;
+
+        /**
+         * DB分片的DataSource bean名称列表（DB及TIERED存储生效），为空表示不分片；顺序决定哈希环上的位置，扩容时只应在末尾追加
+         */
+        private List<String> dataSources = new ArrayList<>();
+
+        /**
+         * Redis分片的RedisConnectionFactory bean名称列表（REDIS及TIERED存储生效），为空表示不分片；顺序决定哈希环上的位置，扩容时只应在末尾追加
+         */
+        private List<String> redisConnectionFactories = new ArrayList<>();
+
+        /**
+         * 每个分片在哈希环上的虚拟节点数
+         */
+        private int virtualNodes = 160;
+    }
+
+    @Data
+    public static class Local implements Serializable {
+        private static final long serialVersionUID = 6183497705227781536L;
+
+        /**
+         * 存储文件路径，默认 ${user.home}/rocketmq-dedup/dedup.dat
+         */
+        private String filePath = System.getProperty("user.home") + File.separator + "rocketmq-dedup" + File.separator + "dedup.dat";
+
+        /**
+         * 最多存储多少条记录（包括已过期但未清理的记录），每条记录占用32字节，默认约400万条（128MB）
+         */
+        private long capacity = 1 << 22;
+
+        /**
+         * 分段数（加锁粒度），必须是2的幂
+         */
+        private int segments = 64;
+    }
+
+    @Data
+    public static class Purge implements Serializable {
+        private static final long serialVersionUID = -1290915185693562284L;
+
+        /**
+         * 多少分钟清理一次过期记录，默认24小时（首次清理时间会随机打散，避免所有实例同时清理）
+         */
+        private long intervalMinutes = 60 * 24;
+
+        /**
+         * DB存储每批删除多少条过期记录
+         */
+        private int batchSize = 1000;
+
+        /**
+         * DB存储每秒最多删除多少条过期记录，小于等于0表示不限速
+         */
+        private int maxRowsPerSecond = 5000;
+
+        /**
+         * DB存储是否使用t_rocketmq_dedup_lock表保证同一时刻只有一个实例清理，开启前需先建表
+         */
+        private boolean leaderLock = false;
+    }
 }
@@ -2,10 +2,37 @@ package cn.jaychang.rocketmq.config;
 
 import cn.jaychang.rocketmq.annotation.MQConsumer;
 import cn.jaychang.rocketmq.core.DedupConfig;
+import cn.jaychang.rocketmq.core.RedisLayoutEnum;
+import cn.jaychang.rocketmq.metrics.DedupMetrics;
+import cn.jaychang.rocketmq.metrics.DuplicateAnalyzer;
+import cn.jaychang.rocketmq.metrics.MicrometerDedupMetrics;
+import cn.jaychang.rocketmq.persist.BlockingPersistAdapter;
+import cn.jaychang.rocketmq.persist.CompactRedisPersist;
+import cn.jaychang.rocketmq.persist.CompletionNotifier;
+import cn.jaychang.rocketmq.persist.DedupCircuitBreaker;
+import cn.jaychang.rocketmq.persist.IAsyncPersist;
+import cn.jaychang.rocketmq.persist.IPersist;
 import cn.jaychang.rocketmq.persist.JDBCPersist;
+import cn.jaychang.rocketmq.persist.JdbcOffsetWatermarkStore;
+import cn.jaychang.rocketmq.persist.LettuceAsyncRedisPersist;
+import cn.jaychang.rocketmq.persist.LocalPersist;
+import cn.jaychang.rocketmq.persist.MeteredPersist;
+import cn.jaychang.rocketmq.persist.NearCachePersist;
+import cn.jaychang.rocketmq.persist.NotifyingPersist;
+import cn.jaychang.rocketmq.persist.OffsetWatermarkStore;
+import cn.jaychang.rocketmq.persist.OffsetWatermarkTracker;
+import cn.jaychang.rocketmq.persist.PollingCompletionNotifier;
+import cn.jaychang.rocketmq.persist.RedisCompletionNotifier;
+import cn.jaychang.rocketmq.persist.RedisOffsetWatermarkStore;
 import cn.jaychang.rocketmq.persist.RedisPersist;
+import cn.jaychang.rocketmq.persist.ResilientPersist;
+import cn.jaychang.rocketmq.persist.LeaseRenewer;
+import cn.jaychang.rocketmq.persist.ShardingPersist;
+import cn.jaychang.rocketmq.persist.TieredPersist;
+import cn.jaychang.rocketmq.persist.WriteBehindPersist;
 import cn.jaychang.rocketmq.core.AbstractDedupMQConsumer;
 import cn.jaychang.rocketmq.core.PersistTypeEnum;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.springframework.beans.BeansException;
@@ -18,15 +45,27 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.context.ApplicationContextAware;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.util.ClassUtils;
 import org.springframework.util.CollectionUtils;
+import org.springframework.util.StringUtils;
 
 import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Objects;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -49,6 +88,22 @@ public class MQConsumeDedupAutoConfiguration implements ApplicationContextAware
 
     private ScheduledExecutorService scheduledExecutorService;
 
+    private final List<LeaseRenewer> leaseRenewers = new ArrayList<>();
+
+    private final List<IAsyncPersist> asyncPersists = new ArrayList<>();
+
+    private final List<OffsetWatermarkTracker> offsetWatermarkTrackers = new ArrayList<>();
+
+    /**
+     * 本配置创建的持久化实现（全局及各策略指定的持久化类型各一套），应用关闭时需要释放
+     */
+    private final List<IPersist> dedupPersists = new ArrayList<>();
+
+    /**
+     * 各持久化类型共用同一个重复消息统计
+     */
+    private DuplicateAnalyzer duplicateAnalyzer;
+
     public MQConsumeDedupAutoConfiguration() {
     }
 
@@ -56,28 +111,98 @@ public class MQConsumeDedupAutoConfiguration implements ApplicationContextAware
     @ConditionalOnMissingBean
     public DedupConfig dedupConfig() {
         log.debug("消息消费防重配置");
+        return createDedupConfig(dedupProperties.getPersistType());
+    }
+
+    /**
+     * 按持久化类型创建去重配置及其存储，其余配置使用全局配置
+     */
+    private DedupConfig createDedupConfig(PersistTypeEnum persistType) {
         DedupConfig dedupConfig = new DedupConfig();
         dedupConfig.setApplicationName(dedupProperties.getApplicationName());
         dedupConfig.setDedupProcessingExpireMilliSeconds(dedupProperties.getDedupProcessingExpireMilliSeconds());
         dedupConfig.setDedupStrategy(DedupConfig.DEDUP_STRATEGY_CONSUME_LATER);
         dedupConfig.setDedupRecordReserveMinutes(dedupProperties.getDedupRecordReserveMinutes());
+        dedupConfig.setInFlightWaitMilliSeconds(dedupProperties.getInFlightWaitMilliSeconds());
+        dedupConfig.setDuplicateLogPermitsPerSecond(dedupProperties.getDuplicateLogPermitsPerSecond());
+        DedupProperties.HotKey hotKey = dedupProperties.getHotKey();
+        if (hotKey.isEnabled()) {
+            if (duplicateAnalyzer == null) {
+                duplicateAnalyzer = new DuplicateAnalyzer(TimeUnit.SECONDS.toMillis(hotKey.getWindowSeconds()), hotKey.getWindowBuckets(),
+                        hotKey.getSketchDepth(), hotKey.getSketchWidth(), hotKey.getTopK(), hotKey.getAlertThreshold());
+            }
+            dedupConfig.setDuplicateAnalyzer(duplicateAnalyzer);
+        }
 
-        PersistTypeEnum persistType = dedupProperties.getPersistType();
+        IPersist persist = null;
         if (PersistTypeEnum.DB.equals(persistType)) {
-            JdbcTemplate jdbcTemplate = applicationContext.getBean(JdbcTemplate.class);
-            if (Objects.isNull(jdbcTemplate)) {
-                throw new RuntimeException("Can not found JdbcTemplate bean in spring context");
+            persist = createJdbcPersist();
+        } else if (PersistTypeEnum.REDIS.equals(persistType)) {
+            persist = createRedisPersist();
+        } else if (PersistTypeEnum.TIERED.equals(persistType)) {
+            DedupProperties.Tiered tiered = dedupProperties.getTiered();
+            IPersist back = createJdbcPersist();
+            if (tiered.isBackWriteBehind()) {
+                back = createWriteBehindPersist(back, null);
             }
-            JDBCPersist jdbcPersist = new JDBCPersist(jdbcTemplate);
-            dedupConfig.setPersist(jdbcPersist);
+            persist = new TieredPersist(createRedisPersist(), back, tiered.getFrontReserveMinutes());
+        } else if (PersistTypeEnum.LOCAL.equals(persistType)) {
+            DedupProperties.Local local = dedupProperties.getLocal();
+            persist = new LocalPersist(local.getFilePath(), local.getCapacity(), local.getSegments());
+        }
 
-        } else if (PersistTypeEnum.REDIS.equals(persistType)) {
-            StringRedisTemplate stringRedisTemplate = applicationContext.getBean(StringRedisTemplate.class);
-            if (Objects.isNull(stringRedisTemplate)) {
-                throw new RuntimeException("Can not found StringRedisTemplate bean in spring context");
+        if (Objects.nonNull(persist)) {
+            DedupMetrics metrics = createMetrics(persist.getClass().getSimpleName());
+            if (metrics != DedupMetrics.NOOP) {
+                persist = new MeteredPersist(persist, metrics);
+                dedupConfig.setMetrics(metrics);
+            }
+            DedupProperties.CompletionNotify completionNotify = dedupProperties.getCompletionNotify();
+            if (completionNotify.isEnabled()) {
+                CompletionNotifier notifier;
+                if (PersistTypeEnum.REDIS.equals(persistType) || PersistTypeEnum.TIERED.equals(persistType)) {
+                    notifier = new RedisCompletionNotifier(applicationContext.getBean(StringRedisTemplate.class));
+                    //通知需要在状态写入存储之后发出，所以在异步回写之内
+                    persist = new NotifyingPersist(persist, notifier);
+                } else {
+                    notifier = new PollingCompletionNotifier(completionNotify.getPollIntervalMilliSeconds());
+                }
+                dedupConfig.setCompletionNotifier(notifier);
+                dedupConfig.setCompletionWaitMilliSeconds(completionNotify.getWaitMilliSeconds());
+            }
+            DedupProperties.Resilience resilience = dedupProperties.getResilience();
+            if (resilience.isEnabled()) {
+                DedupCircuitBreaker circuitBreaker = new DedupCircuitBreaker(persistType.name(), resilience.getFailureRateThreshold(),
+                        resilience.getSlidingWindowSize(), resilience.getMinimumNumberOfCalls(), resilience.getOpenMilliSeconds());
+                persist = new ResilientPersist(persist, circuitBreaker, resilience.getTimeoutMilliSeconds(), resilience.getThreads(),
+                        resilience.getDegradeMode(), resilience.getLocalMaxEntries(), metrics);
+            }
+            DedupProperties.Lease lease = dedupProperties.getLease();
+            LeaseRenewer leaseRenewer = null;
+            if (lease.isEnabled()) {
+                //续租直接写入存储，不经过异步回写和近端缓存
+                leaseRenewer = new LeaseRenewer(persist, lease.getLeaseMilliSeconds(), lease.getRenewIntervalMilliSeconds(), lease.getMaxBatchSize());
+                leaseRenewers.add(leaseRenewer);
+                dedupConfig.setLeaseRenewer(leaseRenewer);
+            }
+            IPersist dedupPersist = decoratePersist(persist, leaseRenewer);
+            dedupPersists.add(dedupPersist);
+            dedupConfig.setPersist(dedupPersist);
+            if (dedupProperties.getAsync().isEnabled()) {
+                IAsyncPersist asyncPersist = createAsyncPersist(dedupPersist, persistType, dedupConfig.getMetrics());
+                asyncPersists.add(asyncPersist);
+                dedupConfig.setAsyncPersist(asyncPersist);
+            }
+            DedupProperties.OffsetWatermark offsetWatermark = dedupProperties.getOffsetWatermark();
+            if (offsetWatermark.isEnabled()) {
+                OffsetWatermarkStore store = createOffsetWatermarkStore(persistType);
+                if (Objects.nonNull(store)) {
+                    OffsetWatermarkTracker tracker = new OffsetWatermarkTracker(store, offsetWatermark.getFlushIntervalMilliSeconds(),
+                            offsetWatermark.getMaxSpan(), TimeUnit.SECONDS.toMillis(offsetWatermark.getIdleSeconds()));
+                    offsetWatermarkTrackers.add(tracker);
+                    dedupConfig.setOffsetWatermarkTracker(tracker);
+                }
             }
-            RedisPersist redisPersist = new RedisPersist(stringRedisTemplate);
-            dedupConfig.setPersist(redisPersist);
         } else {
             // 不去重
             dedupConfig.setDedupStrategy(DedupConfig.DEDUP_STRATEGY_DISABLE);
@@ -86,6 +211,210 @@ public class MQConsumeDedupAutoConfiguration implements ApplicationContextAware
         return dedupConfig;
     }
 
+    /**
+     * 配置了多个数据源分片时按一致性哈希分片，否则使用容器中的JdbcTemplate
+     */
+    private IPersist createJdbcPersist() {
+        DedupProperties.Sharding sharding = dedupProperties.getSharding();
+        if (!CollectionUtils.isEmpty(sharding.getDataSources())) {
+            List<IPersist> shards = new ArrayList<>(sharding.getDataSources().size());
+            for (String beanName : sharding.getDataSources()) {
+                shards.add(createJdbcPersist(new JdbcTemplate(applicationContext.getBean(beanName, DataSource.class))));
+            }
+            log.info("dedup db persist sharded to {}", sharding.getDataSources());
+            return new ShardingPersist(shards, sharding.getVirtualNodes());
+        }
+        JdbcTemplate jdbcTemplate = applicationContext.getBean(JdbcTemplate.class);
+        if (Objects.isNull(jdbcTemplate)) {
+            throw new RuntimeException("Can not found JdbcTemplate bean in spring context");
+        }
+        return createJdbcPersist(jdbcTemplate);
+    }
+
+    private IPersist createJdbcPersist(JdbcTemplate jdbcTemplate) {
+        JDBCPersist jdbcPersist = new JDBCPersist(jdbcTemplate);
+        jdbcPersist.setKeyMode(dedupProperties.getJdbc().getKeyMode());
+        //开启容错时抢占异常交给熔断器统计并统一降级
+        jdbcPersist.setClaimFailOpen(!dedupProperties.getResilience().isEnabled());
+        DedupProperties.Purge purge = dedupProperties.getPurge();
+        jdbcPersist.setPurgeBatchSize(purge.getBatchSize());
+        jdbcPersist.setPurgeMaxRowsPerSecond(purge.getMaxRowsPerSecond());
+        jdbcPersist.setPurgeLeaderLock(purge.isLeaderLock());
+        return jdbcPersist;
+    }
+
+    /**
+     * 配置了多个Redis分片时按一致性哈希分片，否则使用容器中的StringRedisTemplate
+     */
+    private IPersist createRedisPersist() {
+        DedupProperties.Sharding sharding = dedupProperties.getSharding();
+        if (!CollectionUtils.isEmpty(sharding.getRedisConnectionFactories())) {
+            List<IPersist> shards = new ArrayList<>(sharding.getRedisConnectionFactories().size());
+            for (String beanName : sharding.getRedisConnectionFactories()) {
+                StringRedisTemplate shardRedisTemplate = new StringRedisTemplate(applicationContext.getBean(beanName, RedisConnectionFactory.class));
+                shardRedisTemplate.afterPropertiesSet();
+                shards.add(createRedisPersist(shardRedisTemplate));
+            }
+            log.info("dedup redis persist sharded to {}", sharding.getRedisConnectionFactories());
+            return new ShardingPersist(shards, sharding.getVirtualNodes());
+        }
+        StringRedisTemplate stringRedisTemplate = applicationContext.getBean(StringRedisTemplate.class);
+        if (Objects.isNull(stringRedisTemplate)) {
+            throw new RuntimeException("Can not found StringRedisTemplate bean in spring context");
+        }
+        return createRedisPersist(stringRedisTemplate);
+    }
+
+    private IPersist createRedisPersist(StringRedisTemplate stringRedisTemplate) {
+        DedupProperties.Redis redis = dedupProperties.getRedis();
+        if (RedisLayoutEnum.COMPACT.equals(redis.getLayout())) {
+            return new CompactRedisPersist(stringRedisTemplate, maxDedupRecordReserveMinutes(), redis.getBucketMinutes(), redis.getBucketShards(), redis.isCluster());
+        }
+        return new RedisPersist(stringRedisTemplate, redis.isCluster() ? redis.getClusterHashTagShards() : 0);
+    }
+
+    /**
+     * DB存储水位时使用容器中的JdbcTemplate（不分片，每个队列只有一行），REDIS/TIERED使用容器中的StringRedisTemplate
+     */
+    private OffsetWatermarkStore createOffsetWatermarkStore(PersistTypeEnum persistType) {
+        if (PersistTypeEnum.DB.equals(persistType)) {
+            return new JdbcOffsetWatermarkStore(applicationContext.getBean(JdbcTemplate.class));
+        } else if (PersistTypeEnum.REDIS.equals(persistType) || PersistTypeEnum.TIERED.equals(persistType)) {
+            return new RedisOffsetWatermarkStore(applicationContext.getBean(StringRedisTemplate.class), maxDedupRecordReserveMinutes());
+        }
+        log.warn("offset watermark is not supported by persist type {}, use dedup key instead", persistType);
+        return null;
+    }
+
+    /**
+     * 全局及各策略中最长的保留时间，COMPACT布局按它决定查询多少个时间桶
+     */
+    private long maxDedupRecordReserveMinutes() {
+        long reserveMinutes = dedupProperties.getDedupRecordReserveMinutes();
+        for (DedupProperties.Policy policy : dedupProperties.getPolicies().values()) {
+            if (policy.getDedupRecordReserveMinutes() != null) {
+                reserveMinutes = Math.max(reserveMinutes, policy.getDedupRecordReserveMinutes());
+            }
+        }
+        return reserveMinutes;
+    }
+
+    /**
+     * 未开启其他增强的单实例STRING布局Redis存储使用Lettuce原生异步命令，其他存储通过有界线程池适配
+     */
+    private IAsyncPersist createAsyncPersist(IPersist persist, PersistTypeEnum persistType, DedupMetrics metrics) {
+        DedupProperties.Redis redis = dedupProperties.getRedis();
+        boolean plainRedis = PersistTypeEnum.REDIS.equals(persistType)
+                && RedisLayoutEnum.STRING.equals(redis.getLayout())
+                && CollectionUtils.isEmpty(dedupProperties.getSharding().getRedisConnectionFactories())
+                && !dedupProperties.getCompletionNotify().isEnabled()
+                && !dedupProperties.getWriteBehind().isEnabled()
+                && !dedupProperties.getNearCache().isEnabled()
+                && !dedupProperties.getResilience().isEnabled();
+        if (plainRedis && ClassUtils.isPresent("io.lettuce.core.RedisClient", MQConsumeDedupAutoConfiguration.class.getClassLoader())) {
+            IAsyncPersist lettuceAsyncPersist = LettuceAsyncPersistFactory.create(applicationContext.getBean(StringRedisTemplate.class),
+                    redis.isCluster() ? redis.getClusterHashTagShards() : 0, metrics);
+            if (lettuceAsyncPersist != null) {
+                log.info("dedup async persist uses lettuce async commands");
+                return lettuceAsyncPersist;
+            }
+        }
+        DedupProperties.Async async = dedupProperties.getAsync();
+        log.info("dedup async persist uses {} threads", async.getThreads());
+        return new BlockingPersistAdapter(persist, async.getThreads(), async.getQueueSize());
+    }
+
+    /**
+     * 单独的类，避免没有Lettuce时加载其中的类
+     */
+    private static class LettuceAsyncPersistFactory {
+        static IAsyncPersist create(StringRedisTemplate redisTemplate, int clusterHashTagShards, DedupMetrics metrics) {
+            if (!LettuceAsyncRedisPersist.isSupported(redisTemplate)) {
+                return null;
+            }
+            return new LettuceAsyncRedisPersist(redisTemplate, new RedisPersist(redisTemplate, clusterHashTagShards), metrics);
+        }
+    }
+
+    /**
+     * 按配置对真实的持久化实现进行增强，开启租约时异步回写的操作在写入之前继续续租
+     */
+    private IPersist decoratePersist(IPersist persist, LeaseRenewer leaseRenewer) {
+        if (dedupProperties.getWriteBehind().isEnabled()) {
+            persist = createWriteBehindPersist(persist, leaseRenewer);
+        }
+        DedupProperties.NearCache nearCache = dedupProperties.getNearCache();
+        if (nearCache.isEnabled()) {
+            persist = new NearCachePersist(persist, nearCache.getMaxEntries(), TimeUnit.SECONDS.toMillis(nearCache.getExpireSeconds()));
+        }
+        return persist;
+    }
+
+    /**
+     * 延迟的delete不比较持有者，未开启租约时回写等待时间必须小于消费中状态的过期时间，否则消费中状态可能在回写之前过期，被其他节点接管后又被删除
+     */
+    private WriteBehindPersist createWriteBehindPersist(IPersist persist, LeaseRenewer leaseRenewer) {
+        DedupProperties.WriteBehind writeBehind = dedupProperties.getWriteBehind();
+        if (Objects.isNull(leaseRenewer) && writeBehind.getMaxDelayMilliSeconds() >= minDedupProcessingExpireMilliSeconds()) {
+            throw new IllegalArgumentException("rocketmq.consume.dedup.writeBehind.maxDelayMilliSeconds must be less than dedupProcessingExpireMilliSeconds of all policies when lease is disabled");
+        }
+        WriteBehindPersist writeBehindPersist = new WriteBehindPersist(persist, writeBehind.getBufferSize(), writeBehind.getMaxBatchSize(), writeBehind.getMaxDelayMilliSeconds());
+        writeBehindPersist.setLeaseRenewer(leaseRenewer);
+        return writeBehindPersist;
+    }
+
+    /**
+     * 全局及各策略中最短的消费中过期时间
+     */
+    private long minDedupProcessingExpireMilliSeconds() {
+        long expireMilliSeconds = dedupProperties.getDedupProcessingExpireMilliSeconds();
+        for (DedupProperties.Policy policy : dedupProperties.getPolicies().values()) {
+            if (policy.getDedupProcessingExpireMilliSeconds() != null) {
+                expireMilliSeconds = Math.min(expireMilliSeconds, policy.getDedupProcessingExpireMilliSeconds());
+            }
+        }
+        return expireMilliSeconds;
+    }
+
+    /**
+     * classpath中有Micrometer且容器中有MeterRegistry时记录指标，否则不埋点
+     */
+    private DedupMetrics createMetrics(String backend) {
+        if (!dedupProperties.getMetrics().isEnabled()
+                || !ClassUtils.isPresent("io.micrometer.core.instrument.MeterRegistry", MQConsumeDedupAutoConfiguration.class.getClassLoader())) {
+            return DedupMetrics.NOOP;
+        }
+        return MicrometerMetricsFactory.create(applicationContext, backend);
+    }
+
+    /**
+     * 单独的类，避免没有Micrometer时加载MeterRegistry
+     */
+    private static class MicrometerMetricsFactory {
+        static DedupMetrics create(ApplicationContext applicationContext, String backend) {
+            MeterRegistry meterRegistry = applicationContext.getBeanProvider(MeterRegistry.class).getIfAvailable();
+            if (meterRegistry == null) {
+                return DedupMetrics.NOOP;
+            }
+            log.info("register dedup metrics to {}", meterRegistry.getClass().getSimpleName());
+            return new MicrometerDedupMetrics(meterRegistry, backend);
+        }
+    }
+
+    /**
+     * classpath中有actuator时注册dedupHotKeys端点
+     */
+    @Configuration
+    @ConditionalOnClass(name = "org.springframework.boot.actuate.endpoint.annotation.Endpoint")
+    static class DedupEndpointConfiguration {
+
+        @Bean
+        @ConditionalOnMissingBean
+        public DedupHotKeyEndpoint dedupHotKeyEndpoint(DedupConfig dedupConfig) {
+            return new DedupHotKeyEndpoint(dedupConfig);
+        }
+    }
+
     @Override
     public void setApplicationContext(ApplicationContext applicationContext) throws BeansException {
         this.applicationContext = applicationContext;
@@ -98,15 +427,144 @@ public class MQConsumeDedupAutoConfiguration implements ApplicationContextAware
             return;
         }
         final DedupConfig dedupConfig = dedupConfig();
+        // 各持久化类型的去重配置，策略指定了其他类型时才创建
+        Map<PersistTypeEnum, DedupConfig> backendConfigs = new EnumMap<>(PersistTypeEnum.class);
+        if (Objects.nonNull(dedupProperties.getPersistType())) {
+            backendConfigs.put(dedupProperties.getPersistType(), dedupConfig);
+        }
         for (Map.Entry<String, Object> entry : beans.entrySet()) {
             Object bean = entry.getValue();
             if (AbstractDedupMQConsumer.class.isAssignableFrom(bean.getClass())) {
                 AbstractDedupMQConsumer dedupMQConsumer = (AbstractDedupMQConsumer) bean;
-                dedupMQConsumer.setDedupConfig(dedupConfig);
+                dedupMQConsumer.setDedupConfig(resolveDedupConfig(entry.getKey(), dedupConfig, backendConfigs));
+            }
+        }
+        Set<IPersist> persists = new LinkedHashSet<>();
+        if (Objects.nonNull(dedupConfig.getPersist())) {
+            persists.add(dedupConfig.getPersist());
+        }
+        for (DedupConfig backendConfig : backendConfigs.values()) {
+            if (Objects.nonNull(backendConfig.getPersist())) {
+                persists.add(backendConfig.getPersist());
             }
         }
-        // 定时清理过期记录 (每24小时执行一次)
+        if (persists.isEmpty()) {
+            return;
+        }
+        // 定时清理过期记录 (默认每24小时执行一次，首次执行时间随机打散)
+        long intervalMinutes = dedupProperties.getPurge().getIntervalMinutes();
         scheduledExecutorService = new ScheduledThreadPoolExecutor(1, new BasicThreadFactory.Builder().daemon(true).namingPattern("ClearExpiredRocketmqDedupThread-%d").build());
-        scheduledExecutorService.scheduleWithFixedDelay(() -> dedupConfig.getPersist().clearExpiredRecord(), 24, 24, TimeUnit.HOURS);
+        for (IPersist persist : persists) {
+            long initialDelayMinutes = intervalMinutes / 2 + ThreadLocalRandom.current().nextLong(intervalMinutes / 2 + 1);
+            scheduledExecutorService.scheduleWithFixedDelay(() -> {
+                try {
+                    persist.clearExpiredRecord();
+                } catch (Exception e) {
+                    log.error("error when clear expired dedup record", e);
+                }
+            }, initialDelayMinutes, intervalMinutes, TimeUnit.MINUTES);
+        }
+    }
+
+    /**
+     * 按消费者的订阅匹配去重策略，每个消费者只在启动时解析一次；没有匹配的策略时使用全局配置
+     */
+    private DedupConfig resolveDedupConfig(String beanName, DedupConfig dedupConfig, Map<PersistTypeEnum, DedupConfig> backendConfigs) {
+        if (CollectionUtils.isEmpty(dedupProperties.getPolicies())) {
+            return dedupConfig;
+        }
+        MQConsumer mqConsumer = applicationContext.findAnnotationOnBean(beanName, MQConsumer.class);
+        if (Objects.isNull(mqConsumer)) {
+            return dedupConfig;
+        }
+        String topic = resolveProperty(mqConsumer.topic());
+        String consumerGroup = resolveProperty(mqConsumer.consumerGroup());
+        List<String> tags = Arrays.asList(mqConsumer.tag());
+        String policyName = null;
+        DedupProperties.Policy policy = null;
+        int policySpecificity = -1;
+        for (Map.Entry<String, DedupProperties.Policy> entry : dedupProperties.getPolicies().entrySet()) {
+            int specificity = matchPolicy(entry.getValue(), topic, tags, consumerGroup);
+            if (specificity > policySpecificity) {
+                policyName = entry.getKey();
+                policy = entry.getValue();
+                policySpecificity = specificity;
+            }
+        }
+        if (Objects.isNull(policy)) {
+            return dedupConfig;
+        }
+        log.info("dedup policy {} applied to consumer {}, topic : {}, tags : {}, group : {}", policyName, beanName, topic, tags, consumerGroup);
+        if (!policy.isEnabled()) {
+            return DedupConfig.disableDupConsumeConfig(dedupConfig.getApplicationName());
+        }
+        DedupConfig backendConfig = dedupConfig;
+        if (Objects.nonNull(policy.getPersistType()) && !policy.getPersistType().equals(dedupProperties.getPersistType())) {
+            backendConfig = backendConfigs.computeIfAbsent(policy.getPersistType(), this::createDedupConfig);
+        }
+        if (Objects.isNull(policy.getDedupRecordReserveMinutes()) && Objects.isNull(policy.getDedupProcessingExpireMilliSeconds())) {
+            return backendConfig;
+        }
+        DedupConfig policyConfig = backendConfig.copy();
+        if (Objects.nonNull(policy.getDedupRecordReserveMinutes())) {
+            policyConfig.setDedupRecordReserveMinutes(policy.getDedupRecordReserveMinutes());
+        }
+        if (Objects.nonNull(policy.getDedupProcessingExpireMilliSeconds())) {
+            policyConfig.setDedupProcessingExpireMilliSeconds(policy.getDedupProcessingExpireMilliSeconds());
+        }
+        return policyConfig;
+    }
+
+    /**
+     * @return 策略匹配时返回配置了的匹配条件数，不匹配时返回-1
+     */
+    private static int matchPolicy(DedupProperties.Policy policy, String topic, List<String> tags, String consumerGroup) {
+        int specificity = 0;
+        if (StringUtils.hasText(policy.getTopic())) {
+            if (!policy.getTopic().equals(topic)) {
+                return -1;
+            }
+            specificity++;
+        }
+        if (StringUtils.hasText(policy.getTag())) {
+            if (!tags.contains(policy.getTag())) {
+                return -1;
+            }
+            specificity++;
+        }
+        if (StringUtils.hasText(policy.getConsumerGroup())) {
+            if (!policy.getConsumerGroup().equals(consumerGroup)) {
+                return -1;
+            }
+            specificity++;
+        }
+        return specificity;
+    }
+
+    /**
+     * 与@MQConsumer的解析方式一致：注解的值是配置项名称时取配置项的值，否则按占位符解析
+     */
+    private String resolveProperty(String value) {
+        String property = applicationContext.getEnvironment().getProperty(value);
+        return StringUtils.hasText(property) ? property : applicationContext.getEnvironment().resolvePlaceholders(value);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (Objects.nonNull(scheduledExecutorService)) {
+            scheduledExecutorService.shutdownNow();
+        }
+        for (LeaseRenewer leaseRenewer : leaseRenewers) {
+            leaseRenewer.shutdown();
+        }
+        for (IAsyncPersist asyncPersist : asyncPersists) {
+            asyncPersist.shutdown();
+        }
+        for (OffsetWatermarkTracker offsetWatermarkTracker : offsetWatermarkTrackers) {
+            offsetWatermarkTracker.shutdown();
+        }
+        for (IPersist dedupPersist : dedupPersists) {
+            dedupPersist.shutdown();
+        }
     }
 }
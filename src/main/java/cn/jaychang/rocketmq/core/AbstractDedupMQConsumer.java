@@ -6,8 +6,14 @@ import cn.jaychang.rocketmq.base.MessageExtConst;
 import cn.jaychang.rocketmq.strategy.ConsumeStrategy;
 import cn.jaychang.rocketmq.strategy.DedupConsumeStrategy;
 import cn.jaychang.rocketmq.strategy.NormalConsumeStrategy;
+import cn.jaychang.rocketmq.strategy.OffsetWatermarkConsumeStrategy;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.common.MixAll;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageExt;
 
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.util.Map;
 import java.util.function.BiFunction;
 
@@ -22,6 +28,26 @@ public abstract class AbstractDedupMQConsumer<T> extends AbstractMQPushConsumer<
     // 默认不去重
     protected DedupConfig dedupConfig = DedupConfig.disableDupConsumeConfig("NOT-SET-CONSUMER-GROUP");
 
+    private final BiFunction<T, Map<String, Object>, Boolean> doProcessFun = this::doProcess;
+
+    @SuppressWarnings("unchecked")
+    private final BiFunction<Object, Map<String, Object>, String> dedupKeyFunction = (message, extMap) -> dedupMessageKey((T) message, extMap);
+
+    /**
+     * 按当前去重配置创建的策略，配置变化时重新创建
+     */
+    private volatile CachedStrategy cachedStrategy;
+
+    /**
+     * 子类标注了 {@link DedupKey} 时从原始消息中提取去重键，否则为null
+     */
+    private final RawDedupKeyExtractor rawDedupKeyExtractor = RawDedupKeyExtractor.of(getClass());
+
+    /**
+     * 子类没有覆盖 {@link #dedupMessageKey} 也没有标注 {@link DedupKey}，即以消息ID去重，可以使用消费位点水位
+     */
+    private final boolean messageIdDedupKey = rawDedupKeyExtractor == null && !overridesDedupMessageKey(getClass());
+
 
     /**
      * 默认不去重
@@ -50,16 +76,97 @@ public abstract class AbstractDedupMQConsumer<T> extends AbstractMQPushConsumer<
      */
     @Override
     public boolean process(T message, Map<String, Object> extMap) {
-        ConsumeStrategy strategy = new NormalConsumeStrategy();
+        //调用对应的策略
+        return strategy().invoke(doProcessFun, message, extMap);
+    }
 
-        BiFunction<T, Map<String, Object>, String> dedupKeyFunction = this::dedupMessageKey;
+    /**
+     * 标注了 {@link DedupKey} 时先按原始消息中的去重键发出抢占，确认已消费的重复消息返回null直接确认；同步存储时不再反序列化消息体，异步存储时抢占与反序列化重叠进行
+     */
+    @Override
+    protected T parseMessage(MessageExt messageExt) {
+        if (rawDedupKeyExtractor == null || dedupConfig.getDedupStrategy() != DedupConfig.DEDUP_STRATEGY_CONSUME_LATER) {
+            return super.parseMessage(messageExt);
+        }
+        ConsumeStrategy strategy = strategy();
+        String dedupKey = strategy instanceof DedupConsumeStrategy ? rawDedupKeyExtractor.extract(messageExt) : null;
+        if (dedupKey == null) {
+            return super.parseMessage(messageExt);
+        }
+        DedupConsumeStrategy dedupConsumeStrategy = (DedupConsumeStrategy) strategy;
+        Map<String, Object> extMap = parseExtParam(messageExt);
+        if (!dedupConsumeStrategy.preClaim((String) extMap.get(MessageExtConst.PROPERTY_EXT_MSG_ID), (String) extMap.get(MessageExtConst.PROPERTY_TOPIC),
+                (String) extMap.get(MessageExtConst.PROPERTY_TAGS), (String) extMap.get(MessageExtConst.CONSUMER_GROUP), dedupKey)) {
+            return null;
+        }
+        T message;
+        try {
+            //异步存储时抢占与反序列化重叠进行
+            message = super.parseMessage(messageExt);
+        } catch (RuntimeException e) {
+            dedupConsumeStrategy.releasePreClaim();
+            throw e;
+        }
+        if (message == null) {
+            //反序列化失败时不会进入process，释放预先抢占的记录
+            dedupConsumeStrategy.releasePreClaim();
+            return null;
+        }
+        return dedupConsumeStrategy.awaitPreClaim() ? message : null;
+    }
+
+    /**
+     * 开启消费位点水位时，附加消息所在的队列及offset
+     */
+    @Override
+    protected Map<String, Object> parseExtParam(MessageExt messageExt) {
+        Map<String, Object> extMap = super.parseExtParam(messageExt);
+        if (messageIdDedupKey && dedupConfig.getOffsetWatermarkTracker() != null) {
+            //重试消息的Topic已还原为原Topic，但queueId和offset属于该GROUP的重试Topic（同一个GROUP订阅的所有Topic共用）
+            String queueTopic = messageExt.getProperty(MessageConst.PROPERTY_RETRY_TOPIC) != null
+                    ? MixAll.getRetryTopic((String) extMap.get(MessageExtConst.CONSUMER_GROUP)) : messageExt.getTopic();
+            extMap.put(OffsetWatermarkConsumeStrategy.PROPERTY_QUEUE, queueTopic + ":" + storeHostOf(messageExt) + ":" + messageExt.getQueueId());
+            extMap.put(OffsetWatermarkConsumeStrategy.PROPERTY_QUEUE_OFFSET, messageExt.getQueueOffset());
+        }
+        return extMap;
+    }
 
-        if (dedupConfig.getDedupStrategy() == DedupConfig.DEDUP_STRATEGY_CONSUME_LATER) {
-            strategy = new DedupConsumeStrategy(dedupConfig, (BiFunction<Object, Map<String, Object>, String>) dedupKeyFunction);
+    private static String storeHostOf(MessageExt messageExt) {
+        SocketAddress storeHost = messageExt.getStoreHost();
+        if (storeHost instanceof InetSocketAddress) {
+            InetSocketAddress address = (InetSocketAddress) storeHost;
+            return (address.getAddress() != null ? address.getAddress().getHostAddress() : address.getHostString()) + ":" + address.getPort();
         }
-        BiFunction<T, Map<String, Object>, Boolean> doProcessFun = AbstractDedupMQConsumer.this::doProcess;
-        //调用对应的策略
-        return strategy.invoke(doProcessFun, message, extMap);
+        return String.valueOf(storeHost);
+    }
+
+    private static boolean overridesDedupMessageKey(Class<?> clazz) {
+        for (Class<?> current = clazz; current != null && current != AbstractDedupMQConsumer.class; current = current.getSuperclass()) {
+            try {
+                //覆盖时无论泛型参数是什么，都会有参数为(Object, Map)的方法（或桥接方法）
+                current.getDeclaredMethod("dedupMessageKey", Object.class, Map.class);
+                return true;
+            } catch (NoSuchMethodException e) {
+                //继续查找父类
+            }
+        }
+        return false;
+    }
+
+    private ConsumeStrategy strategy() {
+        DedupConfig currentConfig = dedupConfig;
+        CachedStrategy cached = cachedStrategy;
+        if (cached == null || cached.dedupConfig != currentConfig || cached.dedupStrategy != currentConfig.getDedupStrategy()) {
+            ConsumeStrategy strategy = currentConfig.getDedupStrategy() == DedupConfig.DEDUP_STRATEGY_CONSUME_LATER
+                    ? new DedupConsumeStrategy(currentConfig, dedupKeyFunction)
+                    : new NormalConsumeStrategy();
+            if (strategy instanceof DedupConsumeStrategy && messageIdDedupKey && currentConfig.getOffsetWatermarkTracker() != null) {
+                strategy = new OffsetWatermarkConsumeStrategy(currentConfig, strategy);
+            }
+            cached = new CachedStrategy(currentConfig, currentConfig.getDedupStrategy(), strategy);
+            cachedStrategy = cached;
+        }
+        return cached.strategy;
     }
 
     /**
@@ -86,6 +193,18 @@ public abstract class AbstractDedupMQConsumer<T> extends AbstractMQPushConsumer<
     public void setDedupConfig(DedupConfig dedupConfig) {
         this.dedupConfig = dedupConfig;
     }
+
+    private static class CachedStrategy {
+        private final DedupConfig dedupConfig;
+        private final int dedupStrategy;
+        private final ConsumeStrategy strategy;
+
+        CachedStrategy(DedupConfig dedupConfig, int dedupStrategy, ConsumeStrategy strategy) {
+            this.dedupConfig = dedupConfig;
+            this.dedupStrategy = dedupStrategy;
+            this.strategy = strategy;
+        }
+    }
 }
 
 
@@ -0,0 +1,44 @@
+package cn.jaychang.rocketmq.core;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 抢占消费权的结果枚举
+ */
+@Getter
+@AllArgsConstructor
+public enum ClaimResultEnum {
+
+    CLAIMED(0, "CLAIMED"),
+    CONSUMING(1, "CONSUMING"),
+    CONSUMED(2, "CONSUMED"),
+    UNKNOWN(3, "UNKNOWN"),
+    /**
+     * 已有记录但已过期，接管后抢占成功
+     */
+    TAKEN_OVER(4, "TAKEN_OVER");
+
+    private final Integer code;
+    private final String label;
+
+    /**
+     * 是否抢占成功（应该消费）
+     */
+    public boolean isClaimed() {
+        return this == CLAIMED || this == TAKEN_OVER;
+    }
+
+    /**
+     * 抢占失败时，根据已有记录的消费状态得到抢占结果
+     */
+    public static ClaimResultEnum ofConsumeStatus(Integer consumeStatus) {
+        ConsumeStatusEnum consumeStatusEnum = ConsumeStatusEnum.codeOf(consumeStatus);
+        if (ConsumeStatusEnum.CONSUMING.equals(consumeStatusEnum)) {
+            return CONSUMING;
+        } else if (ConsumeStatusEnum.CONSUMED.equals(consumeStatusEnum)) {
+            return CONSUMED;
+        }
+        return UNKNOWN;
+    }
+}
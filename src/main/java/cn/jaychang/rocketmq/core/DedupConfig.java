@@ -1,7 +1,13 @@
 package cn.jaychang.rocketmq.core;
 
+import cn.jaychang.rocketmq.metrics.DedupMetrics;
+import cn.jaychang.rocketmq.metrics.DuplicateAnalyzer;
+import cn.jaychang.rocketmq.persist.CompletionNotifier;
+import cn.jaychang.rocketmq.persist.IAsyncPersist;
 import cn.jaychang.rocketmq.persist.IPersist;
 import cn.jaychang.rocketmq.persist.JDBCPersist;
+import cn.jaychang.rocketmq.persist.LeaseRenewer;
+import cn.jaychang.rocketmq.persist.OffsetWatermarkTracker;
 import cn.jaychang.rocketmq.persist.RedisPersist;
 import lombok.Data;
 import lombok.experimental.Accessors;
@@ -46,6 +52,51 @@ public class DedupConfig {
      */
     private long dedupRecordReserveMinutes;
 
+    /**
+     * 本节点上同一条消息正在消费时，重复消息最多等待多少毫秒（等待前一条的结果，而不是走broker延迟重试），小于等于0表示不等待
+     */
+    private long inFlightWaitMilliSeconds = 3000;
+
+    /**
+     * 消费完成通知，为空表示不开启，其他节点正在消费时直接稍后重试
+     */
+    private CompletionNotifier completionNotifier;
+
+    /**
+     * 其他节点正在消费时，最多等待多少毫秒的完成通知
+     */
+    private long completionWaitMilliSeconds;
+
+    /**
+     * 异步存储，为空表示所有存储操作同步执行；不为空时抢占和消费结束后的写入通过异步接口执行，写入不等待结果
+     */
+    private IAsyncPersist asyncPersist;
+
+    /**
+     * 消费中状态的租约续期，为空表示不开启，抢占时使用dedupProcessingExpireMilliSeconds作为过期时间
+     */
+    private LeaseRenewer leaseRenewer;
+
+    /**
+     * 去重过程埋点，默认不记录
+     */
+    private DedupMetrics metrics = DedupMetrics.NOOP;
+
+    /**
+     * 重复消息风暴检测，为空表示不开启
+     */
+    private DuplicateAnalyzer duplicateAnalyzer;
+
+    /**
+     * 重复消息的告警日志每秒最多输出多少条，小于等于0表示不限流
+     */
+    private int duplicateLogPermitsPerSecond;
+
+    /**
+     * 消费位点水位，为空表示不开启；开启后使用默认去重键（消息ID）的消费者按队列offset判断重复，不再逐条写入存储
+     */
+    private OffsetWatermarkTracker offsetWatermarkTracker;
+
 
     //默认拿uniqkey 作为去重的标识
     public static Function<MessageExt, String> defaultDedupMessageKeyFunction = messageExt -> {
@@ -107,6 +158,28 @@ public class DedupConfig {
         return new DedupConfig(applicationName);
     }
 
+    /**
+     * 复制一份配置，存储、通知、埋点等组件共用，用于按订阅覆盖保留时间等配置
+     */
+    public DedupConfig copy() {
+        DedupConfig dedupConfig = new DedupConfig();
+        dedupConfig.applicationName = applicationName;
+        dedupConfig.persist = persist;
+        dedupConfig.dedupStrategy = dedupStrategy;
+        dedupConfig.dedupProcessingExpireMilliSeconds = dedupProcessingExpireMilliSeconds;
+        dedupConfig.dedupRecordReserveMinutes = dedupRecordReserveMinutes;
+        dedupConfig.inFlightWaitMilliSeconds = inFlightWaitMilliSeconds;
+        dedupConfig.completionNotifier = completionNotifier;
+        dedupConfig.completionWaitMilliSeconds = completionWaitMilliSeconds;
+        dedupConfig.asyncPersist = asyncPersist;
+        dedupConfig.leaseRenewer = leaseRenewer;
+        dedupConfig.metrics = metrics;
+        dedupConfig.duplicateAnalyzer = duplicateAnalyzer;
+        dedupConfig.duplicateLogPermitsPerSecond = duplicateLogPermitsPerSecond;
+        dedupConfig.offsetWatermarkTracker = offsetWatermarkTracker;
+        return dedupConfig;
+    }
+
 
 
     public void setDedupProcessingExpireMilliSeconds(long dedupProcessingExpireMilliSeconds) {
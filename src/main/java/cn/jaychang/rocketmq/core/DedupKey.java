@@ -0,0 +1,35 @@
+package cn.jaychang.rocketmq.core;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 声明去重键在原始消息中的位置，标注在 {@link AbstractDedupMQConsumer} 的子类上
+ * 标注后在消息体反序列化之前就完成抢占，已消费过的重复消息直接确认，不再反序列化
+ * property与jsonPath二选一，property优先；从原始消息中取不到去重键时按原来的方式（dedupMessageKey）在反序列化之后抢占
+ *
+ * @author jaychang
+ */
+@Documented
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface DedupKey {
+
+    /**
+     * 消息属性名（用户属性），{@link #KEYS} 表示消息的keys
+     */
+    String property() default "";
+
+    /**
+     * JSON消息体中去重键字段的路径，以.分隔嵌套字段，如 order.orderNo；字段值需为字符串或数字等标量，需要classpath中有jackson-core
+     */
+    String jsonPath() default "";
+
+    /**
+     * property取该值时使用消息的keys
+     */
+    String KEYS = "KEYS";
+}
@@ -0,0 +1,19 @@
+package cn.jaychang.rocketmq.core;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * 去重存储不可用（超时、异常或熔断打开）时的降级方式
+ */
+@Getter
+@AllArgsConstructor
+public enum DegradeModeEnum {
+
+    LOCAL(0, "Dedup against a bounded local in-memory store"),
+    PASS_THROUGH(1, "Consume without dedup"),
+    CONSUME_LATER(2, "Treat as consuming and retry later");
+
+    private final Integer code;
+    private final String label;
+}
@@ -0,0 +1,35 @@
+package cn.jaychang.rocketmq.core;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * JDBC去重表所在数据库的方言，根据DataSource元数据自动识别
+ */
+@Getter
+@AllArgsConstructor
+public enum JdbcDialectEnum {
+
+    MYSQL(0, "MySQL/MariaDB"),
+    POSTGRESQL(1, "PostgreSQL"),
+    H2(2, "H2"),
+    OTHER(3, "Other");
+
+    private final Integer code;
+    private final String label;
+
+    public static JdbcDialectEnum ofProductName(String databaseProductName) {
+        if (databaseProductName == null) {
+            return OTHER;
+        }
+        String productName = databaseProductName.toLowerCase();
+        if (productName.contains("mysql") || productName.contains("mariadb")) {
+            return MYSQL;
+        } else if (productName.contains("postgresql")) {
+            return POSTGRESQL;
+        } else if (productName.contains("h2")) {
+            return H2;
+        }
+        return OTHER;
+    }
+}
@@ -0,0 +1,18 @@
+package cn.jaychang.rocketmq.core;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * JDBC去重表的去重键模式
+ */
+@Getter
+@AllArgsConstructor
+public enum JdbcKeyModeEnum {
+
+    COMPOSITE(0, "Unique key over application/topic/consumer_group/tag/msg_uniq_key"),
+    HASHED(1, "Unique key over 128-bit uniq_key_hash");
+
+    private final Integer code;
+    private final String label;
+}
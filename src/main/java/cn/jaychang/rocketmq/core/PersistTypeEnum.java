@@ -13,7 +13,9 @@ import lombok.Getter;
 public enum  PersistTypeEnum {
 
     DB(0,"DB Persist"),
-    REDIS(1,"Redis Persist");
+    REDIS(1,"Redis Persist"),
+    LOCAL(2,"Local Memory-Mapped File Persist"),
+    TIERED(3,"Redis Front With DB Backing Persist");
 
     private final Integer code;
     private final String label;
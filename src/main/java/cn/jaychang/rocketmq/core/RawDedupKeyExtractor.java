@@ -0,0 +1,104 @@
+package cn.jaychang.rocketmq.core;
+
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.apache.commons.lang3.StringUtils;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.springframework.core.annotation.AnnotatedElementUtils;
+import org.springframework.util.ClassUtils;
+
+import java.io.IOException;
+
+/**
+ * 按 {@link DedupKey} 从原始消息（属性或未反序列化的消息体字节）中提取去重键
+ * JSON消息体使用流式解析，只读取到目标字段为止，不构造任何对象
+ */
+abstract class RawDedupKeyExtractor {
+
+    /**
+     * 取不到时返回null
+     */
+    abstract String extract(MessageExt messageExt);
+
+    /**
+     * 消费者类上没有 {@link DedupKey} 时返回null
+     */
+    static RawDedupKeyExtractor of(Class<?> consumerClass) {
+        DedupKey dedupKey = AnnotatedElementUtils.findMergedAnnotation(consumerClass, DedupKey.class);
+        if (dedupKey == null) {
+            return null;
+        }
+        if (StringUtils.isNotBlank(dedupKey.property())) {
+            return new PropertyExtractor(dedupKey.property());
+        }
+        if (StringUtils.isNotBlank(dedupKey.jsonPath())) {
+            if (!ClassUtils.isPresent("com.fasterxml.jackson.core.JsonFactory", RawDedupKeyExtractor.class.getClassLoader())) {
+                throw new IllegalStateException("@DedupKey(jsonPath) on " + consumerClass.getName() + " requires jackson-core");
+            }
+            return new JsonPathExtractor(dedupKey.jsonPath());
+        }
+        throw new IllegalArgumentException("@DedupKey on " + consumerClass.getName() + " must declare property or jsonPath");
+    }
+
+    private static class PropertyExtractor extends RawDedupKeyExtractor {
+        private final String property;
+
+        PropertyExtractor(String property) {
+            this.property = property;
+        }
+
+        @Override
+        String extract(MessageExt messageExt) {
+            String value = DedupKey.KEYS.equals(property) ? messageExt.getKeys() : messageExt.getUserProperty(property);
+            return StringUtils.isEmpty(value) ? null : value;
+        }
+    }
+
+    private static class JsonPathExtractor extends RawDedupKeyExtractor {
+        private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+        private final String[] path;
+
+        JsonPathExtractor(String jsonPath) {
+            this.path = StringUtils.split(jsonPath, '.');
+        }
+
+        @Override
+        String extract(MessageExt messageExt) {
+            byte[] body = messageExt.getBody();
+            if (body == null || body.length == 0) {
+                return null;
+            }
+            try (JsonParser parser = JSON_FACTORY.createParser(body)) {
+                if (parser.nextToken() != JsonToken.START_OBJECT) {
+                    return null;
+                }
+                return find(parser, 0);
+            } catch (IOException e) {
+                //不是合法的JSON，交给反序列化之后的流程处理
+                return null;
+            }
+        }
+
+        /**
+         * 当前位于对象开始处，在其中查找path[depth]
+         */
+        private String find(JsonParser parser, int depth) throws IOException {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String fieldName = parser.getCurrentName();
+                JsonToken valueToken = parser.nextToken();
+                if (!path[depth].equals(fieldName)) {
+                    parser.skipChildren();
+                    continue;
+                }
+                if (depth == path.length - 1) {
+                    return valueToken.isScalarValue() && valueToken != JsonToken.VALUE_NULL ? parser.getText() : null;
+                }
+                return valueToken == JsonToken.START_OBJECT ? find(parser, depth + 1) : null;
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package cn.jaychang.rocketmq.core;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Redis去重记录的存储布局
+ */
+@Getter
+@AllArgsConstructor
+public enum RedisLayoutEnum {
+
+    STRING(0, "One string key per message"),
+    COMPACT(1, "Hashed binary fields in time-bucketed hashes");
+
+    private final Integer code;
+    private final String label;
+}
@@ -0,0 +1,58 @@
+package cn.jaychang.rocketmq.metrics;
+
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+import cn.jaychang.rocketmq.persist.DedupCircuitBreaker;
+import cn.jaychang.rocketmq.persist.DedupElement;
+
+/**
+ * 去重过程的埋点，未引入Micrometer或容器中没有MeterRegistry时使用 {@link #NOOP}
+ */
+public interface DedupMetrics {
+
+    String OPERATION_CLAIM = "claim";
+    String OPERATION_STATUS = "status";
+    String OPERATION_MARK_CONSUMED = "markConsumed";
+    String OPERATION_DELETE = "delete";
+    String OPERATION_RENEW = "renew";
+
+    DedupMetrics NOOP = new DedupMetrics() {
+    };
+
+    /**
+     * 存储操作耗时
+     *
+     * @param operation 见OPERATION_*常量
+     */
+    default void recordPersist(DedupElement dedupElement, String operation, long elapsedNanos) {
+    }
+
+    /**
+     * 存储操作异常
+     */
+    default void recordPersistError(DedupElement dedupElement, String operation, Throwable e) {
+    }
+
+    /**
+     * 存储操作被降级（超时、异常或熔断打开）
+     */
+    default void recordDegraded(DedupElement dedupElement, String operation) {
+    }
+
+    /**
+     * 发布熔断器状态
+     */
+    default void bindCircuitBreaker(DedupCircuitBreaker circuitBreaker) {
+    }
+
+    /**
+     * 抢占结果：CLAIMED=新消息，CONSUMED=重复消息，CONSUMING=消费中，UNKNOWN=未知状态
+     */
+    default void recordClaimResult(DedupElement dedupElement, ClaimResultEnum claimResult) {
+    }
+
+    /**
+     * 业务处理耗时
+     */
+    default void recordHandle(DedupElement dedupElement, boolean success, long elapsedNanos) {
+    }
+}
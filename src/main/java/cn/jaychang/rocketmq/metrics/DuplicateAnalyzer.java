@@ -0,0 +1,130 @@
+package cn.jaychang.rocketmq.metrics;
+
+
+import cn.jaychang.rocketmq.persist.DedupElement;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 重复消息风暴检测：按Topic和GROUP统计滑动窗口内每个去重键的重复次数（Count-Min Sketch + Top-K）
+ * 1.只统计抢占结果为已消费或消费中的重复消息，新消息不进入统计，正常流量下几乎没有开销
+ * 2.某个去重键在窗口内的重复次数达到alertThreshold时输出告警日志，同一个key每个窗口最多告警一次
+ * 3.{@link #hotKeys()} 返回各订阅当前窗口内重复次数最多的key，供actuator端点查询
+ */
+@Slf4j
+public class DuplicateAnalyzer {
+
+    private static final int MAX_ALERTED_KEYS = 1024;
+
+    private final long windowMilliSeconds;
+
+    private final int windowBuckets;
+
+    private final int sketchDepth;
+
+    private final int sketchWidth;
+
+    private final int topK;
+
+    private final long alertThreshold;
+
+    private final ConcurrentMap<String, WindowedCountMinSketch> sketches = new ConcurrentHashMap<>();
+
+    /**
+     * 已告警的key及告警时间，同一个key一个窗口内只告警一次
+     */
+    private final ConcurrentMap<String, Long> alerted = new ConcurrentHashMap<>();
+
+    /**
+     * @param alertThreshold 窗口内重复次数达到该值时告警，小于等于0表示不告警
+     */
+    public DuplicateAnalyzer(long windowMilliSeconds, int windowBuckets, int sketchDepth, int sketchWidth, int topK, long alertThreshold) {
+        if (windowBuckets <= 0 || windowMilliSeconds < windowBuckets || sketchDepth <= 0 || sketchWidth <= 0 || topK <= 0) {
+            throw new IllegalArgumentException("invalid duplicate analyzer settings");
+        }
+        this.windowMilliSeconds = windowMilliSeconds;
+        this.windowBuckets = windowBuckets;
+        this.sketchDepth = sketchDepth;
+        this.sketchWidth = sketchWidth;
+        this.topK = topK;
+        this.alertThreshold = alertThreshold;
+    }
+
+    /**
+     * 记录一次重复消息
+     */
+    public void recordDuplicate(DedupElement dedupElement) {
+        String key = dedupElement.getMsgUniqKey();
+        if (key == null) {
+            return;
+        }
+        String subscription = dedupElement.getTopic() + "@" + dedupElement.getConsumerGroup();
+        WindowedCountMinSketch sketch = sketches.get(subscription);
+        if (sketch == null) {
+            sketch = sketches.computeIfAbsent(subscription,
+                    k -> new WindowedCountMinSketch(windowMilliSeconds, windowBuckets, sketchDepth, sketchWidth, topK));
+        }
+        long count = sketch.add(key);
+        if (alertThreshold > 0 && count >= alertThreshold) {
+            alert(subscription, dedupElement, count);
+        }
+    }
+
+    private void alert(String subscription, DedupElement dedupElement, long count) {
+        long now = System.currentTimeMillis();
+        String alertKey = subscription + "@" + dedupElement.getMsgUniqKey();
+        Long alertedAt = alerted.get(alertKey);
+        if (alertedAt != null && now - alertedAt < windowMilliSeconds) {
+            return;
+        }
+        if (alertedAt == null ? alerted.putIfAbsent(alertKey, now) != null : !alerted.replace(alertKey, alertedAt, now)) {
+            return;
+        }
+        log.warn("duplicate storm detected, dedupKey : {} repeated about {} times in {}ms, topic : {}, group : {}",
+                dedupElement.getMsgUniqKey(), count, windowMilliSeconds, dedupElement.getTopic(), dedupElement.getConsumerGroup());
+        if (alerted.size() > MAX_ALERTED_KEYS) {
+            alerted.values().removeIf(time -> now - time >= windowMilliSeconds);
+        }
+    }
+
+    /**
+     * 各订阅（topic@group）当前窗口内重复次数最多的key
+     */
+    public Map<String, List<HotKey>> hotKeys() {
+        Map<String, List<HotKey>> result = new LinkedHashMap<>();
+        for (Map.Entry<String, WindowedCountMinSketch> entry : sketches.entrySet()) {
+            List<Map.Entry<String, Long>> top = entry.getValue().topK();
+            if (top.isEmpty()) {
+                continue;
+            }
+            List<HotKey> hotKeys = new ArrayList<>(top.size());
+            for (Map.Entry<String, Long> keyCount : top) {
+                hotKeys.add(new HotKey(keyCount.getKey(), keyCount.getValue()));
+            }
+            result.put(entry.getKey(), hotKeys);
+        }
+        return result;
+    }
+
+    public long getWindowMilliSeconds() {
+        return windowMilliSeconds;
+    }
+
+    @Getter
+    @AllArgsConstructor
+    public static class HotKey {
+        private final String dedupKey;
+        /**
+         * 窗口内重复次数的估计值（只会偏大）
+         */
+        private final long count;
+    }
+}
@@ -0,0 +1,46 @@
+package cn.jaychang.rocketmq.metrics;
+
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 日志限流，每秒最多输出permitsPerSecond条，超出的只计数，下一次输出时一并返回被抑制的条数
+ * 用于重复消息风暴时的告警日志，避免大量日志IO拖慢消费
+ */
+public class LogRateLimiter {
+
+    private final int permitsPerSecond;
+
+    private final AtomicLong currentSecond = new AtomicLong();
+
+    private final AtomicInteger used = new AtomicInteger();
+
+    private final AtomicLong suppressed = new AtomicLong();
+
+    /**
+     * @param permitsPerSecond 小于等于0表示不限流
+     */
+    public LogRateLimiter(int permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    /**
+     * @return 小于0表示本条不输出，否则为上次输出以来被抑制的条数
+     */
+    public long acquire() {
+        if (permitsPerSecond <= 0) {
+            return 0;
+        }
+        long second = System.currentTimeMillis() / 1000;
+        long last = currentSecond.get();
+        if (last != second && currentSecond.compareAndSet(last, second)) {
+            used.set(0);
+        }
+        if (used.incrementAndGet() <= permitsPerSecond) {
+            return suppressed.getAndSet(0);
+        }
+        suppressed.incrementAndGet();
+        return -1;
+    }
+}
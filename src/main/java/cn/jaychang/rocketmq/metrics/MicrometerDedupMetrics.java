@@ -0,0 +1,150 @@
+package cn.jaychang.rocketmq.metrics;
+
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+import cn.jaychang.rocketmq.persist.DedupCircuitBreaker;
+import cn.jaychang.rocketmq.persist.DedupElement;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Tags;
+import io.micrometer.core.instrument.Timer;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于Micrometer的埋点，所有指标带 topic、group、backend 标签
+ * 1.rocketmq.dedup.persist：存储操作耗时，operation标签区分claim/status/markConsumed/delete
+ * 2.rocketmq.dedup.persist.errors：存储操作异常次数
+ * 3.rocketmq.dedup.claim：抢占结果计数，outcome标签为fresh/duplicate/consuming/unknown
+ * 4.rocketmq.dedup.handle：业务处理耗时，result标签为success/fail
+ * 5.rocketmq.dedup.persist.degraded：存储操作降级次数，operation标签同上
+ * 6.rocketmq.dedup.circuit.state：熔断器状态，0=CLOSED，1=OPEN，2=HALF_OPEN，只带backend、name标签
+ * Meter按 指标名 -> Topic -> GROUP -> 标签值 逐级缓存，查找时不需要拼接组合key，命中时不产生任何对象
+ */
+public class MicrometerDedupMetrics implements DedupMetrics {
+
+    private final MeterRegistry meterRegistry;
+
+    private final String backend;
+
+    private final MeterCache<Timer> persistTimers;
+
+    private final MeterCache<Counter> persistErrorCounters;
+
+    private final MeterCache<Counter> degradedCounters;
+
+    private final MeterCache<Counter> claimCounters;
+
+    private final MeterCache<Timer> handleTimers;
+
+    /**
+     * @param backend 存储类型，如JDBCPersist、RedisPersist
+     */
+    public MicrometerDedupMetrics(MeterRegistry meterRegistry, String backend) {
+        this.meterRegistry = meterRegistry;
+        this.backend = backend;
+        this.persistTimers = new MeterCache<>((topic, group, operation) -> Timer.builder("rocketmq.dedup.persist")
+                .tags(tags(topic, group, "operation", operation)).register(meterRegistry));
+        this.persistErrorCounters = new MeterCache<>((topic, group, operation) -> Counter.builder("rocketmq.dedup.persist.errors")
+                .tags(tags(topic, group, "operation", operation)).register(meterRegistry));
+        this.degradedCounters = new MeterCache<>((topic, group, operation) -> Counter.builder("rocketmq.dedup.persist.degraded")
+                .tags(tags(topic, group, "operation", operation)).register(meterRegistry));
+        this.claimCounters = new MeterCache<>((topic, group, outcome) -> Counter.builder("rocketmq.dedup.claim")
+                .tags(tags(topic, group, "outcome", outcome)).register(meterRegistry));
+        this.handleTimers = new MeterCache<>((topic, group, result) -> Timer.builder("rocketmq.dedup.handle")
+                .tags(tags(topic, group, "result", result)).register(meterRegistry));
+    }
+
+    @Override
+    public void recordPersist(DedupElement dedupElement, String operation, long elapsedNanos) {
+        persistTimers.get(dedupElement, operation).record(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordPersistError(DedupElement dedupElement, String operation, Throwable e) {
+        persistErrorCounters.get(dedupElement, operation).increment();
+    }
+
+    @Override
+    public void recordDegraded(DedupElement dedupElement, String operation) {
+        degradedCounters.get(dedupElement, operation).increment();
+    }
+
+    @Override
+    public void bindCircuitBreaker(DedupCircuitBreaker circuitBreaker) {
+        Gauge.builder("rocketmq.dedup.circuit.state", circuitBreaker, breaker -> breaker.getState().ordinal())
+                .tag("backend", backend)
+                .tag("name", circuitBreaker.getName())
+                .register(meterRegistry);
+    }
+
+    @Override
+    public void recordClaimResult(DedupElement dedupElement, ClaimResultEnum claimResult) {
+        claimCounters.get(dedupElement, outcome(claimResult)).increment();
+    }
+
+    @Override
+    public void recordHandle(DedupElement dedupElement, boolean success, long elapsedNanos) {
+        handleTimers.get(dedupElement, success ? "success" : "fail").record(elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    private static String outcome(ClaimResultEnum claimResult) {
+        if (claimResult == null) {
+            return "unknown";
+        }
+        switch (claimResult) {
+            case CLAIMED:
+            case TAKEN_OVER:
+                return "fresh";
+            case CONSUMED:
+                return "duplicate";
+            case CONSUMING:
+                return "consuming";
+            default:
+                return "unknown";
+        }
+    }
+
+    private Tags tags(String topic, String group, String tagKey, String tagValue) {
+        return Tags.of("topic", topic, "group", group, "backend", backend, tagKey, tagValue);
+    }
+
+    @FunctionalInterface
+    private interface MeterFactory<M> {
+        M create(String topic, String group, String tagValue);
+    }
+
+    /**
+     * 同一个指标名的Meter，按 Topic -> GROUP -> 标签值 逐级缓存
+     */
+    private static final class MeterCache<M> {
+
+        private final MeterFactory<M> factory;
+
+        private final ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, M>>> meters = new ConcurrentHashMap<>();
+
+        MeterCache(MeterFactory<M> factory) {
+            this.factory = factory;
+        }
+
+        M get(DedupElement dedupElement, String tagValue) {
+            final String topic = String.valueOf(dedupElement.getTopic());
+            final String group = String.valueOf(dedupElement.getConsumerGroup());
+            ConcurrentMap<String, ConcurrentMap<String, M>> groupMap = meters.get(topic);
+            if (groupMap == null) {
+                groupMap = meters.computeIfAbsent(topic, k -> new ConcurrentHashMap<>());
+            }
+            ConcurrentMap<String, M> tagValueMap = groupMap.get(group);
+            if (tagValueMap == null) {
+                tagValueMap = groupMap.computeIfAbsent(group, k -> new ConcurrentHashMap<>());
+            }
+            M meter = tagValueMap.get(tagValue);
+            if (meter == null) {
+                meter = tagValueMap.computeIfAbsent(tagValue, k -> factory.create(topic, group, tagValue));
+            }
+            return meter;
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package cn.jaychang.rocketmq.metrics;
+
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * 滑动窗口的Count-Min Sketch，附带每个子窗口的Top-K候选
+ * 1.窗口按时间分为buckets个子窗口，每个子窗口一个depth x width的计数矩阵，过期的子窗口在下次写入时清空复用
+ * 2.估计值为窗口内各子窗口估计值之和，只会偏大（哈希冲突），不会偏小
+ * 3.每个子窗口保留估计值最大的topK个key作为候选，查询时合并候选并按整个窗口重新估计
+ * 计数使用原子数组无锁累加，只有候选集合的更新和子窗口轮换需要加锁
+ */
+class WindowedCountMinSketch {
+
+    private final int depth;
+
+    private final int widthMask;
+
+    private final int topK;
+
+    private final long bucketMilliSeconds;
+
+    private final Bucket[] buckets;
+
+    /**
+     * @param width 计数矩阵宽度，向上取整为2的幂
+     */
+    WindowedCountMinSketch(long windowMilliSeconds, int bucketCount, int depth, int width, int topK) {
+        if (bucketCount <= 0 || depth <= 0 || width <= 0 || topK <= 0 || windowMilliSeconds < bucketCount) {
+            throw new IllegalArgumentException("invalid sketch settings");
+        }
+        int tableWidth = Integer.highestOneBit(width);
+        if (tableWidth < width) {
+            tableWidth <<= 1;
+        }
+        this.depth = depth;
+        this.widthMask = tableWidth - 1;
+        this.topK = topK;
+        this.bucketMilliSeconds = windowMilliSeconds / bucketCount;
+        this.buckets = new Bucket[bucketCount];
+        for (int i = 0; i < bucketCount; i++) {
+            buckets[i] = new Bucket(depth * tableWidth, topK);
+        }
+    }
+
+    /**
+     * 计数加一
+     *
+     * @return 加一之后整个窗口内的估计值
+     */
+    long add(String key) {
+        long epoch = System.currentTimeMillis() / bucketMilliSeconds;
+        Bucket bucket = bucketFor(epoch);
+        int h1 = hash(key);
+        int h2 = (h1 >>> 16) | 1;
+        int bucketEstimate = Integer.MAX_VALUE;
+        for (int i = 0; i < depth; i++) {
+            int index = i * (widthMask + 1) + ((h1 + i * h2) & widthMask);
+            bucketEstimate = Math.min(bucketEstimate, bucket.counters.incrementAndGet(index));
+        }
+        bucket.offerCandidate(key, bucketEstimate);
+        return estimate(h1, h2, epoch);
+    }
+
+    long estimate(String key) {
+        int h1 = hash(key);
+        return estimate(h1, (h1 >>> 16) | 1, System.currentTimeMillis() / bucketMilliSeconds);
+    }
+
+    /**
+     * 整个窗口内估计值最大的topK个key，按估计值从大到小排列
+     */
+    List<Map.Entry<String, Long>> topK() {
+        long epoch = System.currentTimeMillis() / bucketMilliSeconds;
+        Set<String> candidates = new HashSet<>();
+        for (Bucket bucket : buckets) {
+            if (isLive(bucket, epoch)) {
+                synchronized (bucket) {
+                    candidates.addAll(bucket.candidates.keySet());
+                }
+            }
+        }
+        List<Map.Entry<String, Long>> result = new ArrayList<>(candidates.size());
+        for (String candidate : candidates) {
+            int h1 = hash(candidate);
+            result.add(new AbstractMap.SimpleImmutableEntry<>(candidate, estimate(h1, (h1 >>> 16) | 1, epoch)));
+        }
+        result.sort((a, b) -> Long.compare(b.getValue(), a.getValue()));
+        return result.size() > topK ? new ArrayList<>(result.subList(0, topK)) : result;
+    }
+
+    private long estimate(int h1, int h2, long epoch) {
+        long sum = 0;
+        for (Bucket bucket : buckets) {
+            if (!isLive(bucket, epoch)) {
+                continue;
+            }
+            int bucketEstimate = Integer.MAX_VALUE;
+            for (int i = 0; i < depth; i++) {
+                bucketEstimate = Math.min(bucketEstimate, bucket.counters.get(i * (widthMask + 1) + ((h1 + i * h2) & widthMask)));
+            }
+            sum += bucketEstimate;
+        }
+        return sum;
+    }
+
+    private boolean isLive(Bucket bucket, long epoch) {
+        long bucketEpoch = bucket.epoch;
+        return bucketEpoch > epoch - buckets.length && bucketEpoch <= epoch;
+    }
+
+    private Bucket bucketFor(long epoch) {
+        Bucket bucket = buckets[(int) (epoch % buckets.length)];
+        if (bucket.epoch != epoch) {
+            synchronized (bucket) {
+                if (bucket.epoch != epoch) {
+                    //过期的子窗口清空复用，清空期间并发的累加可能丢失，对估计影响可以忽略
+                    for (int i = 0; i < bucket.counters.length(); i++) {
+                        bucket.counters.set(i, 0);
+                    }
+                    bucket.candidates.clear();
+                    bucket.minCandidate = 0;
+                    bucket.epoch = epoch;
+                }
+            }
+        }
+        return bucket;
+    }
+
+    private static int hash(String key) {
+        int h = key.hashCode() * 0x9E3779B9;
+        return h ^ (h >>> 15);
+    }
+
+    private static class Bucket {
+        private final AtomicIntegerArray counters;
+        private final Map<String, Integer> candidates;
+        private final int topK;
+        private volatile long epoch = -1;
+        /**
+         * 候选已满时其中最小的估计值，估计值不超过它的key不加锁直接跳过
+         */
+        private volatile int minCandidate;
+
+        Bucket(int size, int topK) {
+            this.counters = new AtomicIntegerArray(size);
+            this.candidates = new HashMap<>(topK * 2);
+            this.topK = topK;
+        }
+
+        void offerCandidate(String key, int estimate) {
+            if (estimate <= minCandidate) {
+                return;
+            }
+            synchronized (this) {
+                if (candidates.size() < topK || candidates.containsKey(key)) {
+                    candidates.put(key, estimate);
+                } else {
+                    String minKey = null;
+                    int min = Integer.MAX_VALUE;
+                    for (Map.Entry<String, Integer> entry : candidates.entrySet()) {
+                        if (entry.getValue() < min) {
+                            min = entry.getValue();
+                            minKey = entry.getKey();
+                        }
+                    }
+                    if (estimate <= min) {
+                        minCandidate = min;
+                        return;
+                    }
+                    candidates.remove(minKey);
+                    candidates.put(key, estimate);
+                }
+                if (candidates.size() >= topK) {
+                    int min = Integer.MAX_VALUE;
+                    for (int value : candidates.values()) {
+                        min = Math.min(min, value);
+                    }
+                    minCandidate = min;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package cn.jaychang.rocketmq.persist;
+
+
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 把阻塞的 {@link IPersist} 适配为 {@link IAsyncPersist}，在有界线程池中执行（如JDBC）
+ * 队列满时由调用线程直接执行（背压），不会无限堆积
+ */
+public class BlockingPersistAdapter implements IAsyncPersist {
+
+    private final IPersist delegate;
+
+    private final ThreadPoolExecutor executor;
+
+    public BlockingPersistAdapter(IPersist delegate, int threads, int queueSize) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate persist is null");
+        }
+        if (threads <= 0 || queueSize <= 0) {
+            throw new IllegalArgumentException("threads and queueSize must be positive");
+        }
+        this.delegate = delegate;
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<>(queueSize),
+                new BasicThreadFactory.Builder().daemon(true).namingPattern("DedupAsyncPersistThread-%d").build(),
+                new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    @Override
+    public CompletableFuture<ClaimResultEnum> claimAsync(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        return CompletableFuture.supplyAsync(() -> delegate.claim(dedupElement, dedupProcessingExpireMilliSeconds), executor);
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(DedupElement dedupElement) {
+        return CompletableFuture.runAsync(() -> delegate.delete(dedupElement), executor);
+    }
+
+    @Override
+    public CompletableFuture<Void> markConsumedAsync(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        return CompletableFuture.runAsync(() -> delegate.markConsumed(dedupElement, dedupRecordReserveMinutes), executor);
+    }
+
+    @Override
+    public CompletableFuture<Integer> getConsumeStatusAsync(DedupElement dedupElement) {
+        return CompletableFuture.supplyAsync(() -> delegate.getConsumeStatus(dedupElement), executor);
+    }
+
+    @Override
+    public String toPrintInfo(DedupElement dedupElement) {
+        return delegate.toPrintInfo(dedupElement);
+    }
+
+    @Override
+    public void shutdown() {
+        //等待已提交的写入完成
+        executor.shutdown();
+        try {
+            executor.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,258 @@
+package cn.jaychang.rocketmq.persist;
+
+
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+import cn.jaychang.rocketmq.core.ConsumeStatusEnum;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 节省内存的Redis存储布局，适合保留时间很长（如默认的180天）的场景
+ * 1.消费中：每条消息一个定长二进制key（前缀 + 8字节订阅摘要 + 16字节消息Key摘要），带过期时间
+ * 2.已消费：按 应用/Topic/Tag/GROUP + 时间桶 + 分片 组织为hash，field为8字节消息Key摘要，整个hash到期后一起过期；
+ * 分片数应保证每个hash的field数不超过 hash-max-listpack-entries（hash-max-ziplist-entries），这样hash会使用紧凑编码
+ * 3.判断是否消费过需要检查保留时间内的所有时间桶（在一个Lua脚本内完成），时间桶越宽需要检查的桶越少，但过期粒度越粗
+ * 4.Redis Cluster模式下消费中key和时间桶key都带上 {订阅摘要:分片} 哈希标签，一条记录涉及的所有key在同一个slot，脚本在集群中合法
+ */
+public class CompactRedisPersist implements IPersist {
+
+    private static final byte[] CONSUMING_KEY_PREFIX = "MQ:CONSUME_DEDUP:C:".getBytes(StandardCharsets.UTF_8);
+
+    private static final byte[] BUCKET_KEY_PREFIX = "MQ:CONSUME_DEDUP:B:".getBytes(StandardCharsets.UTF_8);
+
+    private static final int SUBSCRIPTION_HASH_LENGTH = 8;
+
+    private static final int FIELD_LENGTH = 8;
+
+    private static final long CLAIMED = -1L;
+
+    /**
+     * KEYS[1]为消费中key，KEYS[2..n]为各时间桶；ARGV[1]为field，ARGV[2]为消费中过期毫秒数
+     */
+    private static final RedisScript<Long> CLAIM_SCRIPT = new DefaultRedisScript<>(
+            "for i = 2, #KEYS do if redis.call('HEXISTS', KEYS[i], ARGV[1]) == 1 then return " + ConsumeStatusEnum.CONSUMED.getCode() + " end end "
+                    + "if redis.call('SET', KEYS[1], '" + ConsumeStatusEnum.CONSUMING.getCode() + "', 'PX', ARGV[2], 'NX') then return -1 end "
+                    + "return " + ConsumeStatusEnum.CONSUMING.getCode(), Long.class);
+
+    private static final RedisScript<Long> STATUS_SCRIPT = new DefaultRedisScript<>(
+            "for i = 2, #KEYS do if redis.call('HEXISTS', KEYS[i], ARGV[1]) == 1 then return " + ConsumeStatusEnum.CONSUMED.getCode() + " end end "
+                    + "if redis.call('EXISTS', KEYS[1]) == 1 then return " + ConsumeStatusEnum.CONSUMING.getCode() + " end "
+                    + "return -2", Long.class);
+
+    /**
+     * KEYS[1]为消费中key，KEYS[2]为当前时间桶；ARGV[1]为field，ARGV[2]为时间桶过期时间戳（毫秒）
+     */
+    private static final RedisScript<Long> MARK_CONSUMED_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('HSET', KEYS[2], ARGV[1], '1') "
+                    + "redis.call('PEXPIREAT', KEYS[2], ARGV[2]) "
+                    + "redis.call('DEL', KEYS[1]) "
+                    + "return 1", Long.class);
+
+    private static final RedisScript<Long> DELETE_SCRIPT = new DefaultRedisScript<>(
+            "redis.call('DEL', KEYS[1]) "
+                    + "for i = 2, #KEYS do redis.call('HDEL', KEYS[i], ARGV[1]) end "
+                    + "return 1", Long.class);
+
+    /**
+     * 消费中key只在消费中时存在，直接PEXPIRE即可；KEYS为各消费中key，ARGV[1]为租期毫秒数
+     */
+    private static final RedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "local renewed = 0 "
+                    + "for i = 1, #KEYS do renewed = renewed + redis.call('PEXPIRE', KEYS[i], ARGV[1]) end "
+                    + "return renewed", Long.class);
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final long recordReserveMilliSeconds;
+
+    private final long bucketMilliSeconds;
+
+    private final int bucketShards;
+
+    private final boolean clusterMode;
+
+    /**
+     * @param recordReserveMinutes 已消费记录保留多少分钟，决定需要检查多少个时间桶
+     * @param bucketMinutes        每个时间桶的宽度（分钟）
+     * @param bucketShards         每个时间桶拆分为多少个hash
+     */
+    public CompactRedisPersist(StringRedisTemplate redisTemplate, long recordReserveMinutes, long bucketMinutes, int bucketShards) {
+        this(redisTemplate, recordReserveMinutes, bucketMinutes, bucketShards, false);
+    }
+
+    /**
+     * @param clusterMode 是否为Redis Cluster模式（key带哈希标签），切换模式会改变key，已有的去重记录将失效
+     */
+    public CompactRedisPersist(StringRedisTemplate redisTemplate, long recordReserveMinutes, long bucketMinutes, int bucketShards, boolean clusterMode) {
+        if (redisTemplate == null) {
+            throw new NullPointerException("redis template is null");
+        }
+        if (bucketMinutes <= 0 || bucketShards <= 0 || bucketShards > 0xFFFF) {
+            throw new IllegalArgumentException("bucketMinutes must be positive and bucketShards must be in [1, 65535]");
+        }
+        this.redisTemplate = redisTemplate;
+        this.recordReserveMilliSeconds = TimeUnit.MINUTES.toMillis(recordReserveMinutes);
+        this.bucketMilliSeconds = TimeUnit.MINUTES.toMillis(bucketMinutes);
+        this.bucketShards = bucketShards;
+        this.clusterMode = clusterMode;
+    }
+
+    @Override
+    public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        return claim(dedupElement, dedupProcessingExpireMilliSeconds).isClaimed();
+    }
+
+    @Override
+    public ClaimResultEnum claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        final CompactKey compactKey = new CompactKey(dedupElement);
+        final byte[][] keysAndArgs = compactKey.lookupKeysAndArgs(System.currentTimeMillis(), String.valueOf(dedupProcessingExpireMilliSeconds).getBytes(StandardCharsets.UTF_8));
+        Long execute = redisTemplate.execute((RedisCallback<Long>) redisConnection -> RedisScriptSupport.eval(redisConnection, CLAIM_SCRIPT, ReturnType.INTEGER, keysAndArgs.length - 2, keysAndArgs));
+        if (execute == null) {
+            return ClaimResultEnum.UNKNOWN;
+        }
+        if (execute == CLAIMED) {
+            return ClaimResultEnum.CLAIMED;
+        }
+        return ClaimResultEnum.ofConsumeStatus(execute.intValue());
+    }
+
+    @Override
+    public void delete(DedupElement dedupElement) {
+        final CompactKey compactKey = new CompactKey(dedupElement);
+        final byte[][] keysAndArgs = compactKey.lookupKeysAndArgs(System.currentTimeMillis(), null);
+        redisTemplate.execute((RedisCallback<Long>) redisConnection -> RedisScriptSupport.eval(redisConnection, DELETE_SCRIPT, ReturnType.INTEGER, keysAndArgs.length - 1, keysAndArgs));
+    }
+
+    @Override
+    public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        final CompactKey compactKey = new CompactKey(dedupElement);
+        final long now = System.currentTimeMillis();
+        final long bucket = now / bucketMilliSeconds;
+        //时间桶内最后一条记录也要保留足够时间，所以桶的过期时间为桶结束时间 + 保留时间
+        final long bucketExpireAt = (bucket + 1) * bucketMilliSeconds + TimeUnit.MINUTES.toMillis(dedupRecordReserveMinutes);
+        redisTemplate.execute((RedisCallback<Long>) redisConnection -> RedisScriptSupport.eval(redisConnection, MARK_CONSUMED_SCRIPT, ReturnType.INTEGER, 2,
+                compactKey.consumingKey(), compactKey.bucketKey(bucket), compactKey.field(), String.valueOf(bucketExpireAt).getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public Integer getConsumeStatus(DedupElement dedupElement) {
+        final CompactKey compactKey = new CompactKey(dedupElement);
+        final byte[][] keysAndArgs = compactKey.lookupKeysAndArgs(System.currentTimeMillis(), null);
+        Long execute = redisTemplate.execute((RedisCallback<Long>) redisConnection -> RedisScriptSupport.eval(redisConnection, STATUS_SCRIPT, ReturnType.INTEGER, keysAndArgs.length - 1, keysAndArgs));
+        if (execute == null || ConsumeStatusEnum.codeOf(execute.intValue()) == null) {
+            return null;
+        }
+        return execute.intValue();
+    }
+
+    @Override
+    public boolean supportsLeaseRenewal() {
+        return true;
+    }
+
+    @Override
+    public void batchRenewConsuming(List<DedupElement> dedupElements, long leaseMilliSeconds) {
+        if (dedupElements.isEmpty()) {
+            return;
+        }
+        final byte[] lease = String.valueOf(leaseMilliSeconds).getBytes(StandardCharsets.UTF_8);
+        final byte[][] consumingKeys = new byte[dedupElements.size()][];
+        for (int i = 0; i < dedupElements.size(); i++) {
+            consumingKeys[i] = new CompactKey(dedupElements.get(i)).consumingKey();
+        }
+        if (!clusterMode) {
+            renew(consumingKeys, lease);
+            return;
+        }
+        for (List<Integer> positions : RedisClusterSlots.groupBySlot(consumingKeys).values()) {
+            byte[][] slotKeys = new byte[positions.size()][];
+            for (int i = 0; i < positions.size(); i++) {
+                slotKeys[i] = consumingKeys[positions.get(i)];
+            }
+            renew(slotKeys, lease);
+        }
+    }
+
+    private void renew(byte[][] consumingKeys, byte[] lease) {
+        final byte[][] keysAndArgs = Arrays.copyOf(consumingKeys, consumingKeys.length + 1);
+        keysAndArgs[consumingKeys.length] = lease;
+        redisTemplate.execute((RedisCallback<Long>) redisConnection -> RedisScriptSupport.eval(redisConnection, RENEW_SCRIPT, ReturnType.INTEGER, consumingKeys.length, keysAndArgs));
+    }
+
+    @Override
+    public String toPrintInfo(DedupElement dedupElement) {
+        CompactKey compactKey = new CompactKey(dedupElement);
+        return new String(CONSUMING_KEY_PREFIX, StandardCharsets.UTF_8) + new String(compactKey.hashTag, StandardCharsets.UTF_8) + DedupKeyHasher.toHex(compactKey.consumingKeySuffix());
+    }
+
+    /**
+     * 一条去重记录对应的各个二进制key
+     */
+    private class CompactKey {
+        private final byte[] subscriptionHash;
+        private final byte[] msgKeyHash;
+        private final int shard;
+        /**
+         * 集群模式的哈希标签，非集群模式为空数组
+         */
+        private final byte[] hashTag;
+
+        CompactKey(DedupElement dedupElement) {
+            byte[] subscriptionDigest = DedupKeyHasher.md5(dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getConsumerGroup());
+            this.subscriptionHash = new byte[SUBSCRIPTION_HASH_LENGTH];
+            System.arraycopy(subscriptionDigest, 0, subscriptionHash, 0, SUBSCRIPTION_HASH_LENGTH);
+            this.msgKeyHash = DedupKeyHasher.md5(dedupElement.getMsgUniqKey());
+            //分片取摘要前4字节，field取其后8字节，两者互不相关
+            this.shard = (ByteBuffer.wrap(msgKeyHash, 0, 4).getInt() & Integer.MAX_VALUE) % bucketShards;
+            //摘要是二进制的，可能包含花括号，哈希标签使用十六进制文本
+            this.hashTag = clusterMode ? ("{" + DedupKeyHasher.toHex(subscriptionHash) + ":" + shard + "}").getBytes(StandardCharsets.UTF_8) : new byte[0];
+        }
+
+        byte[] consumingKeySuffix() {
+            return ByteBuffer.allocate(SUBSCRIPTION_HASH_LENGTH + DedupKeyHasher.HASH_LENGTH).put(subscriptionHash).put(msgKeyHash).array();
+        }
+
+        byte[] consumingKey() {
+            return ByteBuffer.allocate(CONSUMING_KEY_PREFIX.length + hashTag.length + SUBSCRIPTION_HASH_LENGTH + DedupKeyHasher.HASH_LENGTH)
+                    .put(CONSUMING_KEY_PREFIX).put(hashTag).put(subscriptionHash).put(msgKeyHash).array();
+        }
+
+        byte[] bucketKey(long bucket) {
+            return ByteBuffer.allocate(BUCKET_KEY_PREFIX.length + hashTag.length + SUBSCRIPTION_HASH_LENGTH + 4 + 2)
+                    .put(BUCKET_KEY_PREFIX).put(hashTag).put(subscriptionHash).putInt((int) bucket).putShort((short) shard).array();
+        }
+
+        byte[] field() {
+            byte[] field = new byte[FIELD_LENGTH];
+            System.arraycopy(msgKeyHash, 4, field, 0, FIELD_LENGTH);
+            return field;
+        }
+
+        /**
+         * 消费中key + 保留时间内的所有时间桶（新的在前） + field [+ extraArg]
+         */
+        byte[][] lookupKeysAndArgs(long now, byte[] extraArg) {
+            long currentBucket = now / bucketMilliSeconds;
+            int bucketCount = (int) ((recordReserveMilliSeconds + bucketMilliSeconds - 1) / bucketMilliSeconds) + 1;
+            byte[][] keysAndArgs = new byte[1 + bucketCount + 1 + (extraArg == null ? 0 : 1)][];
+            keysAndArgs[0] = consumingKey();
+            for (int i = 0; i < bucketCount; i++) {
+                keysAndArgs[1 + i] = bucketKey(currentBucket - i);
+            }
+            keysAndArgs[1 + bucketCount] = field();
+            if (extraArg != null) {
+                keysAndArgs[2 + bucketCount] = extraArg;
+            }
+            return keysAndArgs;
+        }
+    }
+}
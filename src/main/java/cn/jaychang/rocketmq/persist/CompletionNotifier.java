@@ -0,0 +1,25 @@
+package cn.jaychang.rocketmq.persist;
+
+/**
+ * 消费完成通知：消费结束（markConsumed/delete）后通知其他节点上等待同一条消息的重复投递，避免走broker的延迟重试
+ */
+public interface CompletionNotifier {
+
+    /**
+     * 发布消费结果
+     *
+     * @param consumed true=已消费，false=消费失败（记录已删除）
+     */
+    void publish(DedupElement dedupElement, boolean consumed);
+
+    /**
+     * 等待消息的消费结果；开始监听后会先查一次当前状态，避免错过在此之前发布的通知
+     *
+     * @param persist 用于查询当前状态
+     * @return true=已消费，false=消费记录已不存在（消费失败或过期），null=超时仍在消费中
+     */
+    Boolean await(DedupElement dedupElement, long timeoutMilliSeconds, IPersist persist) throws InterruptedException;
+
+    default void shutdown() {
+    }
+}
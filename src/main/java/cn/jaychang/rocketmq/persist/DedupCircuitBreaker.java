@@ -0,0 +1,160 @@
+package cn.jaychang.rocketmq.persist;
+
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 去重存储的熔断器，按最近slidingWindowSize次调用的失败率判断
+ * 1.CLOSED：正常调用，最近的调用数达到minimumNumberOfCalls且失败率达到failureRateThreshold时打开
+ * 2.OPEN：不再调用存储，openMilliSeconds之后转为半开
+ * 3.HALF_OPEN：只放行一次探测调用，成功则关闭（清空统计），失败则重新打开
+ * 关闭状态下的放行判断只有一次volatile读，调用结果的统计在锁内完成
+ */
+@Slf4j
+public class DedupCircuitBreaker {
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final String name;
+
+    private final int failureRateThreshold;
+
+    private final int minimumNumberOfCalls;
+
+    private final long openMilliSeconds;
+
+    /**
+     * 环形记录最近的调用结果，true为失败
+     */
+    private final boolean[] outcomes;
+
+    private int index;
+
+    private int calls;
+
+    private int failures;
+
+    private long openedAt;
+
+    private boolean probing;
+
+    private volatile State state = State.CLOSED;
+
+    /**
+     * @param failureRateThreshold 失败率阈值（百分比）
+     */
+    public DedupCircuitBreaker(String name, int failureRateThreshold, int slidingWindowSize, int minimumNumberOfCalls, long openMilliSeconds) {
+        if (failureRateThreshold <= 0 || failureRateThreshold > 100) {
+            throw new IllegalArgumentException("failureRateThreshold must be in (0, 100]");
+        }
+        if (slidingWindowSize <= 0 || minimumNumberOfCalls <= 0 || minimumNumberOfCalls > slidingWindowSize) {
+            throw new IllegalArgumentException("minimumNumberOfCalls must be in (0, slidingWindowSize]");
+        }
+        this.name = name;
+        this.failureRateThreshold = failureRateThreshold;
+        this.minimumNumberOfCalls = minimumNumberOfCalls;
+        this.openMilliSeconds = openMilliSeconds;
+        this.outcomes = new boolean[slidingWindowSize];
+    }
+
+    /**
+     * 是否放行本次调用，放行后必须调用 {@link #onSuccess()}、{@link #onFailure()} 或 {@link #release()}
+     */
+    public boolean tryAcquire() {
+        if (state == State.CLOSED) {
+            return true;
+        }
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                return true;
+            }
+            if (state == State.OPEN) {
+                if (System.currentTimeMillis() - openedAt < openMilliSeconds) {
+                    return false;
+                }
+                transitionTo(State.HALF_OPEN);
+            }
+            if (probing) {
+                return false;
+            }
+            probing = true;
+            return true;
+        }
+    }
+
+    public void onSuccess() {
+        record(false);
+    }
+
+    public void onFailure() {
+        record(true);
+    }
+
+    /**
+     * 放行后没有实际调用存储（如本地排队超时），不统计结果，只归还可能持有的半开探测
+     */
+    public synchronized void release() {
+        if (state == State.HALF_OPEN) {
+            probing = false;
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    private synchronized void record(boolean failure) {
+        if (state == State.HALF_OPEN) {
+            probing = false;
+            if (failure) {
+                open();
+            } else {
+                calls = 0;
+                failures = 0;
+                index = 0;
+                transitionTo(State.CLOSED);
+            }
+            return;
+        }
+        if (state == State.OPEN) {
+            //打开之前发出的调用，结果不再统计
+            return;
+        }
+        if (calls == outcomes.length) {
+            if (outcomes[index]) {
+                failures--;
+            }
+        } else {
+            calls++;
+        }
+        outcomes[index] = failure;
+        if (failure) {
+            failures++;
+        }
+        index = (index + 1) % outcomes.length;
+        if (calls >= minimumNumberOfCalls && failures * 100L >= (long) failureRateThreshold * calls) {
+            open();
+        }
+    }
+
+    private void open() {
+        openedAt = System.currentTimeMillis();
+        transitionTo(State.OPEN);
+    }
+
+    private void transitionTo(State newState) {
+        State oldState = state;
+        state = newState;
+        if (newState == State.CLOSED) {
+            log.info("dedup circuit breaker {} transitions from {} to {}", name, oldState, newState);
+        } else {
+            log.warn("dedup circuit breaker {} transitions from {} to {}, failures : {}/{}", name, oldState, newState, failures, calls);
+        }
+    }
+}
@@ -1,13 +1,13 @@
 package cn.jaychang.rocketmq.persist;
 
 
-import lombok.AllArgsConstructor;
 import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.ToString;
 import lombok.experimental.Accessors;
 
 @Data
 @Accessors(chain = true)
-@AllArgsConstructor
 public class DedupElement {
     /**
      * 应用名，可取spring.application.name
@@ -29,4 +29,23 @@ public class DedupElement {
      * 消息Key
      */
     private String msgUniqKey;
+    /**
+     * 所属订阅（预先计算好的key前缀），可能为空，不参与比较
+     */
+    @EqualsAndHashCode.Exclude
+    @ToString.Exclude
+    private transient DedupSubscription subscription;
+
+    public DedupElement(String application, String topic, String tag, String consumerGroup, String msgUniqKey) {
+        this(application, topic, tag, consumerGroup, msgUniqKey, null);
+    }
+
+    public DedupElement(String application, String topic, String tag, String consumerGroup, String msgUniqKey, DedupSubscription subscription) {
+        this.application = application;
+        this.topic = topic;
+        this.tag = tag;
+        this.consumerGroup = consumerGroup;
+        this.msgUniqKey = msgUniqKey;
+        this.subscription = subscription;
+    }
 }
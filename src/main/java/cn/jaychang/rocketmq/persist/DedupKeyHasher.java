@@ -0,0 +1,61 @@
+package cn.jaychang.rocketmq.persist;
+
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * 去重键哈希工具，把变长的 应用/Topic/Tag/GROUP/消息Key 压缩为定长的128位摘要
+ * 各字段以 '\0' 连接后取UTF-8字节的MD5，与MySQL中 UNHEX(MD5(CONCAT_WS(CHAR(0), ...))) 的结果一致
+ */
+public final class DedupKeyHasher {
+
+    public static final int HASH_LENGTH = 16;
+
+    private static final char SEPARATOR = '\u0000';
+
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> MD5 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 algorithm not found", e);
+        }
+    });
+
+    private DedupKeyHasher() {
+    }
+
+    /**
+     * 整个去重记录的摘要，字段顺序：应用名、Topic、Tag、消费者GROUP、消息Key
+     */
+    public static byte[] hash(DedupElement dedupElement) {
+        return md5(dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getConsumerGroup(), dedupElement.getMsgUniqKey());
+    }
+
+    public static byte[] md5(String... parts) {
+        StringBuilder sb = new StringBuilder(64);
+        for (int i = 0; i < parts.length; i++) {
+            if (i > 0) {
+                sb.append(SEPARATOR);
+            }
+            if (parts[i] != null) {
+                sb.append(parts[i]);
+            }
+        }
+        MessageDigest md5 = MD5.get();
+        md5.reset();
+        return md5.digest(sb.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0x0F];
+            chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+}
@@ -0,0 +1,161 @@
+package cn.jaychang.rocketmq.persist;
+
+import lombok.AccessLevel;
+import lombok.Getter;
+import org.apache.commons.lang3.StringUtils;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.StandardCharsets;
+import java.util.Objects;
+
+/**
+ * 一个订阅（应用/Topic/Tag/消费者GROUP），预先计算好去重key的前缀（字符串和字节两种形式），同一订阅的所有消息共用一个实例
+ * 由 {@link DedupSubscriptionCache} 缓存，避免每条消息重新拼接前缀
+ */
+@Getter
+public final class DedupSubscription {
+
+    private static final String COLON = ":";
+
+    /**
+     * 非ASCII消息Key编码时复用的缓冲区
+     */
+    private static final ThreadLocal<KeyEncoder> KEY_ENCODER = ThreadLocal.withInitial(KeyEncoder::new);
+
+    private final String application;
+
+    private final String topic;
+
+    private final String tag;
+
+    private final String consumerGroup;
+
+    /**
+     * RedisPersist的key前缀，示例：MQ:CONSUME_DEDUP:APPNAME:TOPIC:TAG:GROUP:
+     */
+    private final String redisKeyPrefix;
+
+    private final byte[] redisKeyPrefixBytes;
+
+    /**
+     * 集群模式下各哈希标签分片的key前缀，首次使用时按分片数计算
+     */
+    @Getter(AccessLevel.NONE)
+    private volatile byte[][] clusterRedisKeyPrefixes;
+
+    public DedupSubscription(String application, String topic, String tag, String consumerGroup) {
+        this.application = application;
+        this.topic = topic;
+        this.tag = tag;
+        this.consumerGroup = consumerGroup;
+        this.redisKeyPrefix = buildRedisKeyPrefix(application, topic, tag, consumerGroup);
+        this.redisKeyPrefixBytes = redisKeyPrefix.getBytes(StandardCharsets.UTF_8);
+    }
+
+    public DedupElement newElement(String msgUniqKey) {
+        return new DedupElement(application, topic, tag, consumerGroup, msgUniqKey, this);
+    }
+
+    /**
+     * 去重元素的订阅信息是否仍与本实例一致（元素构造后可能被修改）
+     */
+    boolean matches(DedupElement dedupElement) {
+        return Objects.equals(application, dedupElement.getApplication()) && Objects.equals(topic, dedupElement.getTopic())
+                && Objects.equals(tag, dedupElement.getTag()) && Objects.equals(consumerGroup, dedupElement.getConsumerGroup());
+    }
+
+    static String buildRedisKeyPrefix(String application, String topic, String tag, String consumerGroup) {
+        String tagPart = StringUtils.isNotBlank(tag) ? COLON + tag : "";
+        return "MQ:CONSUME_DEDUP:" + application + COLON + topic + tagPart + COLON + consumerGroup + COLON;
+    }
+
+    /**
+     * 集群模式的key前缀，示例：MQ:CONSUME_DEDUP:{APPNAME:TOPIC:TAG:GROUP:3}:
+     * 花括号内为哈希标签，同一订阅同一分片的key落在同一个slot
+     */
+    static String buildClusterRedisKeyPrefix(String application, String topic, String tag, String consumerGroup, int hashTagShard) {
+        String tagPart = StringUtils.isNotBlank(tag) ? COLON + tag : "";
+        return "MQ:CONSUME_DEDUP:{" + application + COLON + topic + tagPart + COLON + consumerGroup + COLON + hashTagShard + "}:";
+    }
+
+    /**
+     * 消息Key所属的哈希标签分片，String.hashCode的算法是固定的，各节点结果一致
+     */
+    static int hashTagShard(String msgUniqKey, int hashTagShards) {
+        return (msgUniqKey.hashCode() & Integer.MAX_VALUE) % hashTagShards;
+    }
+
+    /**
+     * 集群模式的key：哈希标签分片前缀 + 消息Key的UTF-8字节
+     */
+    byte[] clusterRedisKey(String msgUniqKey, int hashTagShards) {
+        byte[][] prefixes = clusterRedisKeyPrefixes;
+        if (prefixes == null || prefixes.length != hashTagShards) {
+            prefixes = new byte[hashTagShards][];
+            for (int i = 0; i < hashTagShards; i++) {
+                prefixes[i] = buildClusterRedisKeyPrefix(application, topic, tag, consumerGroup, i).getBytes(StandardCharsets.UTF_8);
+            }
+            clusterRedisKeyPrefixes = prefixes;
+        }
+        return concat(prefixes[hashTagShard(msgUniqKey, hashTagShards)], msgUniqKey);
+    }
+
+    /**
+     * 前缀 + 消息Key的UTF-8字节，除结果数组外不产生其他对象
+     */
+    byte[] redisKey(String msgUniqKey) {
+        return concat(redisKeyPrefixBytes, msgUniqKey);
+    }
+
+    static byte[] concat(byte[] prefix, String msgUniqKey) {
+        int length = msgUniqKey.length();
+        boolean ascii = true;
+        for (int i = 0; i < length; i++) {
+            if (msgUniqKey.charAt(i) >= 0x80) {
+                ascii = false;
+                break;
+            }
+        }
+        if (!ascii) {
+            return KEY_ENCODER.get().concat(prefix, msgUniqKey);
+        }
+        byte[] key = new byte[prefix.length + length];
+        System.arraycopy(prefix, 0, key, 0, prefix.length);
+        for (int i = 0; i < length; i++) {
+            key[prefix.length + i] = (byte) msgUniqKey.charAt(i);
+        }
+        return key;
+    }
+
+    private static class KeyEncoder {
+        private final CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder();
+        private ByteBuffer buffer = ByteBuffer.allocate(256);
+
+        byte[] concat(byte[] prefix, String msgUniqKey) {
+            int maxLength = prefix.length + (int) Math.ceil(msgUniqKey.length() * (double) encoder.maxBytesPerChar());
+            if (buffer.capacity() < maxLength) {
+                buffer = ByteBuffer.allocate(maxLength);
+            }
+            buffer.clear();
+            buffer.put(prefix);
+            encoder.reset();
+            CoderResult result = encoder.encode(CharBuffer.wrap(msgUniqKey), buffer, true);
+            if (result.isError()) {
+                //非法字符（如不成对的代理字符）交给String.getBytes按替换字符处理
+                byte[] keyBytes = msgUniqKey.getBytes(StandardCharsets.UTF_8);
+                byte[] key = new byte[prefix.length + keyBytes.length];
+                System.arraycopy(prefix, 0, key, 0, prefix.length);
+                System.arraycopy(keyBytes, 0, key, prefix.length, keyBytes.length);
+                return key;
+            }
+            encoder.flush(buffer);
+            byte[] key = new byte[buffer.position()];
+            buffer.flip();
+            buffer.get(key);
+            return key;
+        }
+    }
+}
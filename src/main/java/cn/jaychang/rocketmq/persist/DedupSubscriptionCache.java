@@ -0,0 +1,38 @@
+package cn.jaychang.rocketmq.persist;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * 按 Topic -> Tag -> 消费者GROUP 逐级缓存 {@link DedupSubscription}，查找时不需要拼接组合key，命中时不产生任何对象
+ * 每个消费者（应用名固定）一个实例
+ */
+public class DedupSubscriptionCache {
+
+    private final String application;
+
+    private final ConcurrentMap<String, ConcurrentMap<String, ConcurrentMap<String, DedupSubscription>>> subscriptions = new ConcurrentHashMap<>();
+
+    public DedupSubscriptionCache(String application) {
+        this.application = application;
+    }
+
+    public DedupSubscription get(String topic, String tag, String consumerGroup) {
+        if (topic == null || tag == null || consumerGroup == null) {
+            return new DedupSubscription(application, topic, tag, consumerGroup);
+        }
+        ConcurrentMap<String, ConcurrentMap<String, DedupSubscription>> tagMap = subscriptions.get(topic);
+        if (tagMap == null) {
+            tagMap = subscriptions.computeIfAbsent(topic, k -> new ConcurrentHashMap<>());
+        }
+        ConcurrentMap<String, DedupSubscription> groupMap = tagMap.get(tag);
+        if (groupMap == null) {
+            groupMap = tagMap.computeIfAbsent(tag, k -> new ConcurrentHashMap<>());
+        }
+        DedupSubscription subscription = groupMap.get(consumerGroup);
+        if (subscription == null) {
+            subscription = groupMap.computeIfAbsent(consumerGroup, k -> new DedupSubscription(application, topic, tag, consumerGroup));
+        }
+        return subscription;
+    }
+}
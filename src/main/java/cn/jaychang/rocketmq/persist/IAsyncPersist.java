@@ -0,0 +1,42 @@
+package cn.jaychang.rocketmq.persist;
+
+
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 非阻塞的去重存储接口，与 {@link IPersist} 的语义一致，结果以CompletableFuture返回
+ * 阻塞的IPersist通过 {@link BlockingPersistAdapter} 在有界线程池中执行，Redis（Lettuce）使用 {@link LettuceAsyncRedisPersist} 的原生异步命令
+ */
+public interface IAsyncPersist {
+
+    /**
+     * @see IPersist#claim(DedupElement, long)
+     */
+    CompletableFuture<ClaimResultEnum> claimAsync(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds);
+
+    /**
+     * @see IPersist#delete(DedupElement)
+     */
+    CompletableFuture<Void> deleteAsync(DedupElement dedupElement);
+
+    /**
+     * @see IPersist#markConsumed(DedupElement, long)
+     */
+    CompletableFuture<Void> markConsumedAsync(DedupElement dedupElement, long dedupRecordReserveMinutes);
+
+    /**
+     * @see IPersist#getConsumeStatus(DedupElement)
+     */
+    CompletableFuture<Integer> getConsumeStatusAsync(DedupElement dedupElement);
+
+    default String toPrintInfo(DedupElement dedupElement) {
+        return dedupElement.toString();
+    }
+
+    /**
+     * 应用关闭时释放资源（不关闭被适配的IPersist）
+     */
+    default void shutdown() {}
+}
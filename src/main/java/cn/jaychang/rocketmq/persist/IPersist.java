@@ -1,6 +1,11 @@
 package cn.jaychang.rocketmq.persist;
 
 
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+
+import java.util.ArrayList;
+import java.util.List;
+
 public interface IPersist {
     boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds);
 
@@ -10,9 +15,71 @@ public interface IPersist {
 
     Integer getConsumeStatus(DedupElement dedupElement);
 
+    /**
+     * 抢占消费权，抢占失败时一并返回当前的消费状态
+     * 默认先 {@link #setConsumingIfNX(DedupElement, long)} 再 {@link #getConsumeStatus(DedupElement)}，两次调用且非原子，具体实现可覆盖为一次原子操作
+     */
+    default ClaimResultEnum claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        if (setConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds)) {
+            return ClaimResultEnum.CLAIMED;
+        }
+        return ClaimResultEnum.ofConsumeStatus(getConsumeStatus(dedupElement));
+    }
+
+    /**
+     * 批量设置消费中，返回结果与入参顺序一一对应，true表示设置成功（应该消费）
+     * 默认逐条调用 {@link #setConsumingIfNX(DedupElement, long)}，具体实现可覆盖为批量操作
+     */
+    default List<Boolean> batchSetConsumingIfNX(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        List<Boolean> result = new ArrayList<>(dedupElements.size());
+        for (DedupElement dedupElement : dedupElements) {
+            result.add(setConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds));
+        }
+        return result;
+    }
+
+    /**
+     * 批量删除消费记录，默认逐条调用 {@link #delete(DedupElement)}
+     */
+    default void batchDelete(List<DedupElement> dedupElements) {
+        for (DedupElement dedupElement : dedupElements) {
+            delete(dedupElement);
+        }
+    }
+
+    /**
+     * 批量标记为已消费，默认逐条调用 {@link #markConsumed(DedupElement, long)}
+     */
+    default void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+        for (DedupElement dedupElement : dedupElements) {
+            markConsumed(dedupElement, dedupRecordReserveMinutes);
+        }
+    }
+
+    /**
+     * 是否支持续租（{@link #batchRenewConsuming}），不支持时不能开启租约模式，{@link LeaseRenewer} 创建时检查
+     * 基于setnx语义的接口无法原子地延长仍有效记录的过期时间，没有默认实现；包装类按被包装的存储返回
+     */
+    default boolean supportsLeaseRenewal() {
+        return false;
+    }
+
+    /**
+     * 续租：把仍处于消费中状态的记录的过期时间延长为当前时间 + leaseMilliSeconds，已消费或不存在的记录不受影响
+     * 用于租约模式（抢占时只设置较短的过期时间，消费过程中由后台定时续租），实现时需同时覆盖 {@link #supportsLeaseRenewal()}
+     */
+    default void batchRenewConsuming(List<DedupElement> dedupElements, long leaseMilliSeconds) {
+        throw new UnsupportedOperationException(getClass().getSimpleName() + " does not support lease renewal");
+    }
+
     default String toPrintInfo(DedupElement dedupElement) {
         return dedupElement.toString();
     }
 
     default void clearExpiredRecord() {}
+
+    /**
+     * 应用关闭时释放资源
+     */
+    default void shutdown() {}
 }
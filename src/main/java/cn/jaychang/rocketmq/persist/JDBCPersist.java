@@ -1,12 +1,30 @@
 package cn.jaychang.rocketmq.persist;
 
 
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
 import cn.jaychang.rocketmq.core.ConsumeStatusEnum;
+import cn.jaychang.rocketmq.core.JdbcDialectEnum;
+import cn.jaychang.rocketmq.core.JdbcKeyModeEnum;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.time.DateFormatUtils;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
 
+import java.lang.management.ManagementFactory;
+import java.sql.DatabaseMetaData;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  * 需要创建如下表结构
@@ -30,22 +48,248 @@ import java.util.Date;
  ) ENGINE=InnoDB DEFAULT CHARSET=utf8 COMMENT='消息防重消费表';
  </code>
  *
+ * 使用HASHED去重键模式（keyMode=HASHED）时，去重只依赖定长的uniq_key_hash列（应用名/Topic/Tag/GROUP/消息Key的128位摘要），其余列仅用于排查问题，表结构如下
+ *
+ <code>
+ CREATE TABLE `t_rocketmq_dedup` (
+ `id` bigint(20) unsigned NOT NULL AUTO_INCREMENT,
+ `create_time` datetime NOT NULL,
+ `update_time` datetime NOT NULL,
+ `application_name` varchar(32) NOT NULL COMMENT '应用名',
+ `topic` varchar(64) NOT NULL COMMENT '消息Topic',
+ `tag` varchar(64) NOT NULL COMMENT '消息Tag',
+ `consumer_group` varchar(64) NOT NULL COMMENT '消费者GROUP名',
+ `msg_uniq_key` varchar(64) NOT NULL COMMENT '消息Key',
+ `uniq_key_hash` binary(16) NOT NULL COMMENT '去重键摘要',
+ `consume_status` tinyint(1) NOT NULL COMMENT '消费状态：【0=消费中，1=已消费】',
+ `expire_time` bigint(20) NOT NULL COMMENT '过期时间，时间戳【单位：毫秒】',
+ PRIMARY KEY (`id`),
+ UNIQUE KEY `uk_uniq_key_hash` (`uniq_key_hash`),
+ KEY `idx_expire_time` (`expire_time`)
+ ) ENGINE=InnoDB DEFAULT CHARSET=utf8 COMMENT='消息防重消费表';
+ </code>
+ *
+ * 从COMPOSITE模式迁移到HASHED模式：切换期间新旧实例必须看到同一条记录，因此在切换之前每条记录（包括旧实例新写入的）都要带上uniq_key_hash，
+ * 否则新实例按摘要查不到旧实例写入的记录（MySQL撞上uk_uniq_key影响0行、查回状态为空；PostgreSQL的ON CONFLICT不覆盖uk_uniq_key直接报错），会重复消费。
+ * 按以下步骤操作时可以滚动发布，不能省略第1步的触发器：
+ * 1.ALTER TABLE t_rocketmq_dedup ADD COLUMN uniq_key_hash binary(16) NULL COMMENT '去重键摘要', ADD UNIQUE KEY uk_uniq_key_hash (uniq_key_hash);
+ *   并创建插入触发器，为旧实例写入的记录补上摘要：
+ *   CREATE TRIGGER trg_rocketmq_dedup_hash BEFORE INSERT ON t_rocketmq_dedup FOR EACH ROW
+ *   SET NEW.uniq_key_hash = IFNULL(NEW.uniq_key_hash, UNHEX(MD5(CONCAT_WS(CHAR(0), NEW.application_name, NEW.topic, NEW.tag, NEW.consumer_group, NEW.msg_uniq_key))));
+ *   PostgreSQL（uniq_key_hash为bytea）用同样逻辑的plpgsql触发器函数：COALESCE(NEW.uniq_key_hash, decode(md5(convert_to(NEW.application_name, 'UTF8') || '\x00'::bytea || ... || convert_to(NEW.msg_uniq_key, 'UTF8')), 'hex'))
+ * 2.按id分段回填存量记录：UPDATE t_rocketmq_dedup SET uniq_key_hash = UNHEX(MD5(CONCAT_WS(CHAR(0), application_name, topic, tag, consumer_group, msg_uniq_key))) WHERE uniq_key_hash IS NULL AND id BETWEEN ? AND ?;
+ *   回填完成后 SELECT COUNT(*) FROM t_rocketmq_dedup WHERE uniq_key_hash IS NULL 应为0
+ * 3.逐个实例切换为keyMode=HASHED，此期间两个唯一索引同时生效，同一个去重键在两个索引上冲突的是同一条记录
+ * 4.全部实例切换后 DROP TRIGGER trg_rocketmq_dedup_hash; ALTER TABLE t_rocketmq_dedup MODIFY uniq_key_hash binary(16) NOT NULL, DROP INDEX uk_uniq_key;
+ *
+ * 抢占消费中状态时根据数据库方言（从DataSource元数据自动识别）使用一条原子语句完成插入或接管过期记录，正常流程不依赖唯一键冲突异常：
+ * 1.MySQL：INSERT ... ON DUPLICATE KEY UPDATE，只在记录已过期时更新，影响行数 1=插入、2=接管、0=记录仍有效；
+ * 需要在JDBC URL中加上 useAffectedRows=true，否则驱动默认返回匹配行数，无法区分插入和记录仍有效，此时回退到旧的异常方式
+ * 2.PostgreSQL：INSERT ... ON CONFLICT DO UPDATE ... WHERE expire_time &lt; now RETURNING，同一条语句中一并查出仍有效记录的消费状态
+ * 3.H2：MERGE INTO ... WHEN MATCHED AND expire_time &lt; now THEN UPDATE WHEN NOT MATCHED THEN INSERT
+ * 4.其他数据库：INSERT，唯一键冲突时删除过期记录后重试
+ *
+ * 开启清理主节点锁（purgeLeaderLock）时，还需要创建如下表，保证同一时刻只有一个实例在清理过期记录
+ *
+ <code>
+ CREATE TABLE `t_rocketmq_dedup_lock` (
+ `lock_name` varchar(64) NOT NULL COMMENT '锁名',
+ `owner` varchar(128) NOT NULL COMMENT '持有者',
+ `expire_time` bigint(20) NOT NULL COMMENT '锁过期时间，时间戳【单位：毫秒】',
+ PRIMARY KEY (`lock_name`)
+ ) ENGINE=InnoDB DEFAULT CHARSET=utf8 COMMENT='消息防重消费表清理锁';
+ </code>
+ *
  */
 @Slf4j
 public class JDBCPersist implements IPersist {
     private final JdbcTemplate jdbcTemplate;
 
     private final static String DATE_TIME_FORMAT = "yyyy-MM-dd HH:mm:ss";
+
+    private final static String PURGE_LOCK_NAME = "rocketmq_dedup_purge";
+
+    private final static String COMPOSITE_KEY_CONDITION = "application_name = ? AND topic = ? AND tag = ? AND consumer_group = ? AND msg_uniq_key = ?";
+
+    private final static String HASHED_KEY_CONDITION = "uniq_key_hash = ?";
+
+    private final static Object[] NO_ARGS = new Object[0];
+
+    private final static String COMPOSITE_CONFLICT_TARGET = "(application_name, topic, consumer_group, tag, msg_uniq_key)";
+
+    private final static String HASHED_CONFLICT_TARGET = "(uniq_key_hash)";
+
+    /**
+     * 数据库方言，首次使用时识别
+     */
+    private volatile JdbcDialectEnum dialect;
+
+    /**
+     * MySQL连接是否返回实际影响行数（useAffectedRows=true）
+     */
+    private volatile boolean mysqlAffectedRows;
+
+    /**
+     * 批量抢占是否使用JDBC批量 INSERT IGNORE：MySQL或MySQL兼容模式的H2，且没有开启批量改写（rewriteBatchedStatements=true，开启时批量语句不返回每行的影响行数）
+     */
+    private volatile boolean insertIgnoreBatch;
+
+    /**
+     * 清理锁的持有者标识
+     */
+    private final String purgeLockOwner = ManagementFactory.getRuntimeMXBean().getName() + ":" + UUID.randomUUID();
+
+    /**
+     * 去重键模式，COMPOSITE使用uk_uniq_key五列联合唯一索引，HASHED使用uniq_key_hash定长摘要列
+     */
+    @Setter
+    private JdbcKeyModeEnum keyMode = JdbcKeyModeEnum.COMPOSITE;
+
+    /**
+     * 清理过期记录时每批删除多少条
+     */
+    @Setter
+    private int purgeBatchSize = 1000;
+
+    /**
+     * 清理过期记录时每秒最多删除多少条，小于等于0表示不限速
+     */
+    @Setter
+    private int purgeMaxRowsPerSecond = 5000;
+
+    /**
+     * 是否使用t_rocketmq_dedup_lock表保证同一时刻只有一个实例在清理
+     */
+    @Setter
+    private boolean purgeLeaderLock = false;
+
+    /**
+     * 清理锁的租期，清理过程中每批删除后续租
+     */
+    @Setter
+    private long purgeLockLeaseMilliSeconds = 1000 * 60 * 10;
+
+    /**
+     * 抢占时出现未知异常是否视为抢占成功（直接消费），默认true；由 {@link ResilientPersist} 统一降级时设为false，异常原样抛出
+     */
+    @Setter
+    private boolean claimFailOpen = true;
+
     public JDBCPersist(JdbcTemplate jdbcTemplate) {
         this.jdbcTemplate = jdbcTemplate;
     }
 
     @Override
     public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        ClaimResultEnum claimResult = upsertClaim(dedupElement, dedupProcessingExpireMilliSeconds);
+        return claimResult != null && claimResult.isClaimed();
+    }
+
+    @Override
+    public ClaimResultEnum claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        ClaimResultEnum claimResult = upsertClaim(dedupElement, dedupProcessingExpireMilliSeconds);
+        if (claimResult == null) {
+            //抢占失败但语句没有带回状态，再查一次
+            return ClaimResultEnum.ofConsumeStatus(getConsumeStatus(dedupElement));
+        }
+        return claimResult;
+    }
+
+    /**
+     * 按方言抢占，返回null表示抢占失败且不知道已有记录的状态
+     */
+    private ClaimResultEnum upsertClaim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        JdbcDialectEnum currentDialect = dialect();
+        if (JdbcDialectEnum.OTHER.equals(currentDialect) || (JdbcDialectEnum.MYSQL.equals(currentDialect) && !mysqlAffectedRows)) {
+            return legacySetConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds) ? ClaimResultEnum.CLAIMED : null;
+        }
+        long now = System.currentTimeMillis();
+        long expireTime = now + dedupProcessingExpireMilliSeconds;
+        Object dateTime = dateTimeValue(now);
+        try {
+            switch (currentDialect) {
+                case MYSQL:
+                    return claimMySql(dedupElement, dateTime, now, expireTime);
+                case POSTGRESQL:
+                    return claimPostgreSql(dedupElement, dateTime, now, expireTime);
+                default:
+                    return claimH2(dedupElement, dateTime, now, expireTime);
+            }
+        } catch (org.springframework.dao.DuplicateKeyException e) {
+            //冲突的不是本语句处理的唯一索引（如迁移期间并发插入撞上另一个唯一索引），记录已存在，不能视为抢占成功
+            log.warn("duplicate key on other unique index, set setConsumingIfNX fail {}", dedupElement, e);
+            return null;
+        } catch (Exception e) {
+            if (!claimFailOpen) {
+                throw e;
+            }
+            log.error("unknown error when jdbc claim, will consider success", e);
+            return ClaimResultEnum.CLAIMED;
+        }
+    }
+
+    private ClaimResultEnum claimMySql(DedupElement dedupElement, Object dateTime, long now, long expireTime) {
+        //expire_time必须最后更新，前面的IF判断的都是旧值
+        String sql = "INSERT INTO " + insertColumns() + " values " + insertPlaceholders()
+                + " ON DUPLICATE KEY UPDATE update_time = IF(expire_time < ?, VALUES(update_time), update_time),"
+                + " consume_status = IF(expire_time < ?, VALUES(consume_status), consume_status),"
+                + " expire_time = IF(expire_time < ?, VALUES(expire_time), expire_time)";
+        List<Object> args = insertArgs(dedupElement, dateTime, ConsumeStatusEnum.CONSUMING.getCode(), expireTime);
+        args.addAll(Arrays.asList(now, now, now));
+        int i = jdbcTemplate.update(sql, args.toArray());
+        if (i == 1) {
+            return ClaimResultEnum.CLAIMED;
+        } else if (i == 2) {
+            return ClaimResultEnum.TAKEN_OVER;
+        }
+        log.warn("found consuming/consumed record, set setConsumingIfNX fail {}", dedupElement);
+        return null;
+    }
+
+    private ClaimResultEnum claimPostgreSql(DedupElement dedupElement, Object dateTime, long now, long expireTime) {
+        //各子句看到的是语句开始时的快照，existing即为仍有效的旧记录；xmax = 0 表示新插入的行
+        String sql = "WITH existing AS (SELECT consume_status FROM t_rocketmq_dedup WHERE " + keyCondition() + " AND expire_time >= ?),"
+                + " claimed AS (INSERT INTO " + insertColumns() + " values " + insertPlaceholders()
+                + " ON CONFLICT " + conflictTarget() + " DO UPDATE SET update_time = EXCLUDED.update_time, consume_status = EXCLUDED.consume_status, expire_time = EXCLUDED.expire_time"
+                + " WHERE t_rocketmq_dedup.expire_time < ? RETURNING (xmax = 0) AS inserted)"
+                + " SELECT (SELECT inserted FROM claimed) AS inserted, (SELECT consume_status FROM existing) AS consume_status";
+        List<Object> args = new ArrayList<>(Arrays.asList(keyArgs(NO_ARGS, dedupElement, now)));
+        args.addAll(insertArgs(dedupElement, dateTime, ConsumeStatusEnum.CONSUMING.getCode(), expireTime));
+        args.add(now);
+        return jdbcTemplate.queryForObject(sql, args.toArray(), (rs, rowNum) -> {
+            boolean inserted = rs.getBoolean("inserted");
+            if (!rs.wasNull()) {
+                return inserted ? ClaimResultEnum.CLAIMED : ClaimResultEnum.TAKEN_OVER;
+            }
+            log.warn("found consuming/consumed record, set setConsumingIfNX fail {}", dedupElement);
+            int consumeStatus = rs.getInt("consume_status");
+            //并发插入的记录不在快照中，状态未知
+            return rs.wasNull() ? null : ClaimResultEnum.ofConsumeStatus(consumeStatus);
+        });
+    }
+
+    private ClaimResultEnum claimH2(DedupElement dedupElement, Object dateTime, long now, long expireTime) {
+        String sql = "MERGE INTO t_rocketmq_dedup USING DUAL ON (" + keyCondition() + ")"
+                + " WHEN MATCHED AND t_rocketmq_dedup.expire_time < ? THEN UPDATE SET update_time = ?, consume_status = ?, expire_time = ?"
+                + " WHEN NOT MATCHED THEN INSERT " + insertColumnList() + " values " + insertPlaceholders();
+        List<Object> args = new ArrayList<>(Arrays.asList(keyArgs(NO_ARGS, dedupElement, now, dateTime, ConsumeStatusEnum.CONSUMING.getCode(), expireTime)));
+        args.addAll(insertArgs(dedupElement, dateTime, ConsumeStatusEnum.CONSUMING.getCode(), expireTime));
+        //H2的更新计数无法区分插入和接管
+        if (jdbcTemplate.update(sql, args.toArray()) > 0) {
+            return ClaimResultEnum.CLAIMED;
+        }
+        log.warn("found consuming/consumed record, set setConsumingIfNX fail {}", dedupElement);
+        return null;
+    }
+
+    /**
+     * 不识别的数据库：INSERT，唯一键冲突时删除过期记录后重试
+     */
+    private boolean legacySetConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
         long expireTime = System.currentTimeMillis() + dedupProcessingExpireMilliSeconds;
         try {
-            String dateTimeStr = DateFormatUtils.format(new Date(), DATE_TIME_FORMAT);
-            int i = jdbcTemplate.update("INSERT INTO t_rocketmq_dedup(create_time,update_time,application_name, topic, tag, consumer_group, msg_uniq_key, consume_status, expire_time) values (?, ?, ?, ?, ?, ?, ?, ?, ?)", dateTimeStr, dateTimeStr, dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getConsumerGroup(), dedupElement.getMsgUniqKey(), ConsumeStatusEnum.CONSUMING.getCode(), expireTime);
+            Object dateTime = dateTimeValue(System.currentTimeMillis());
+            int i = jdbcTemplate.update("INSERT INTO " + insertColumns() + " values " + insertPlaceholders(), insertArgs(dedupElement, dateTime, ConsumeStatusEnum.CONSUMING.getCode(), expireTime).toArray());
         } catch (org.springframework.dao.DuplicateKeyException e) {
             log.warn("found consuming/consumed record, set setConsumingIfNX fail {}", dedupElement);
 
@@ -55,11 +299,14 @@ public class JDBCPersist implements IPersist {
             int i = delete(dedupElement, true);
             if (i > 0) {//如果删除了过期消息
                 log.info("delete {} expire records, now retry setConsumingIfNX again", i);
-                return setConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds);
+                return legacySetConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds);
             } else {
                 return false;
             }
         } catch (Exception e) {
+            if (!claimFailOpen) {
+                throw e;
+            }
             log.error("unknown error when jdbc insert, will consider success", e);
             return true;
         }
@@ -71,9 +318,9 @@ public class JDBCPersist implements IPersist {
 
     private int delete(DedupElement dedupElement, boolean onlyExpire) {
         if (onlyExpire) {
-            return jdbcTemplate.update("DELETE FROM t_rocketmq_dedup  WHERE application_name = ? AND topic =? AND tag = ? AND consumer_group = ? AND msg_uniq_key = ? AND expire_time < ?", dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getConsumerGroup(), dedupElement.getMsgUniqKey(), System.currentTimeMillis());
+            return jdbcTemplate.update("DELETE FROM t_rocketmq_dedup WHERE " + keyCondition() + " AND expire_time < ?", keyArgs(NO_ARGS, dedupElement, System.currentTimeMillis()));
         } else {
-            return jdbcTemplate.update("DELETE FROM t_rocketmq_dedup  WHERE application_name = ? AND topic =? AND tag = ? AND consumer_group = ? AND msg_uniq_key = ?", dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getConsumerGroup(), dedupElement.getMsgUniqKey());
+            return jdbcTemplate.update("DELETE FROM t_rocketmq_dedup WHERE " + keyCondition(), keyArgs(NO_ARGS, dedupElement));
         }
     }
 
@@ -86,21 +333,389 @@ public class JDBCPersist implements IPersist {
     @Override
     public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
         long expireTime = System.currentTimeMillis() + dedupRecordReserveMinutes * 60 * 1000;
-        String dateTimeStr = DateFormatUtils.format(new Date(), DATE_TIME_FORMAT);
-        int i = jdbcTemplate.update("UPDATE t_rocketmq_dedup SET update_time = ? ,consume_status = ? , expire_time  = ? WHERE application_name = ? AND topic = ? AND tag = ? AND consumer_group = ? AND msg_uniq_key = ? ",
-                dateTimeStr, ConsumeStatusEnum.CONSUMED.getCode(), expireTime, dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getConsumerGroup(), dedupElement.getMsgUniqKey());
+        Object dateTime = dateTimeValue(System.currentTimeMillis());
+        int i = jdbcTemplate.update("UPDATE t_rocketmq_dedup SET update_time = ? ,consume_status = ? , expire_time  = ? WHERE " + keyCondition(),
+                keyArgs(new Object[]{dateTime, ConsumeStatusEnum.CONSUMED.getCode(), expireTime}, dedupElement));
+        if (i == 0) {
+            //记录不存在（如分层存储只在前端抢占，或记录已被清理），直接插入已消费记录
+            insertConsumed(dedupElement, dateTime, expireTime);
+        }
+    }
+
+    private void insertConsumed(DedupElement dedupElement, Object dateTime, long expireTime) {
+        try {
+            jdbcTemplate.update("INSERT INTO " + insertColumns() + " values " + insertPlaceholders(),
+                    insertArgs(dedupElement, dateTime, ConsumeStatusEnum.CONSUMED.getCode(), expireTime).toArray());
+        } catch (org.springframework.dao.DuplicateKeyException e) {
+            //并发插入，再更新一次
+            jdbcTemplate.update("UPDATE t_rocketmq_dedup SET update_time = ? ,consume_status = ? , expire_time  = ? WHERE " + keyCondition(),
+                    keyArgs(new Object[]{dateTime, ConsumeStatusEnum.CONSUMED.getCode(), expireTime}, dedupElement));
+        }
     }
 
     @Override
     public Integer getConsumeStatus(DedupElement dedupElement) {
-        Integer consumeStatus = jdbcTemplate.queryForObject("SELECT consume_status FROM t_rocketmq_dedup WHERE application_name = ? AND topic = ? AND tag = ?  AND consumer_group = ? AND msg_uniq_key  = ? and expire_time > ?",
-                new Object[]{dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getConsumerGroup(), dedupElement.getMsgUniqKey(), System.currentTimeMillis()}, Integer.class);
-        return consumeStatus;
+        List<Integer> consumeStatus = jdbcTemplate.queryForList("SELECT consume_status FROM t_rocketmq_dedup WHERE " + keyCondition() + " and expire_time > ?",
+                Integer.class, keyArgs(NO_ARGS, dedupElement, System.currentTimeMillis()));
+        return consumeStatus.isEmpty() ? null : consumeStatus.get(0);
+    }
+
+    /**
+     * 批量设置消费中：同一批次内重复的消息只有第一条参与抢占，其余直接失败；
+     * 其余每组（COMPOSITE模式按 应用/Topic/Tag/消费者GROUP 分组）一次JDBC批量 INSERT IGNORE，按每行的影响行数判断是否由本次插入（1=插入，0=已有记录）
+     * 已有记录的再一次性查回过期时间，已过期的逐条走 {@link #setConsumingIfNX(DedupElement, long)} 接管
+     * INSERT IGNORE 只有MySQL（及MySQL兼容模式的H2）支持，其他数据库逐条抢占；JDBC URL开启 rewriteBatchedStatements=true 时驱动不返回每行的影响行数，同样逐条抢占
+     */
+    @Override
+    public List<Boolean> batchSetConsumingIfNX(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        if (dedupElements.isEmpty()) {
+            return Collections.emptyList();
+        }
+        dialect();
+        if (!insertIgnoreBatch) {
+            return IPersist.super.batchSetConsumingIfNX(dedupElements, dedupProcessingExpireMilliSeconds);
+        }
+        final long now = System.currentTimeMillis();
+        final long expireTime = now + dedupProcessingExpireMilliSeconds;
+        final Object dateTime = dateTimeValue(now);
+        //按输入位置记录结果，同一批次内重复的消息只有第一条参与抢占
+        final Boolean[] results = new Boolean[dedupElements.size()];
+        Map<DedupElement, Integer> firstIndexMap = new HashMap<>(dedupElements.size() * 2);
+        Map<List<String>, List<Integer>> groupMap = new LinkedHashMap<>();
+        for (int i = 0; i < dedupElements.size(); i++) {
+            DedupElement dedupElement = dedupElements.get(i);
+            if (firstIndexMap.putIfAbsent(dedupElement, i) != null) {
+                results[i] = false;
+                continue;
+            }
+            groupMap.computeIfAbsent(keyPrefix(dedupElement), k -> new ArrayList<>()).add(i);
+        }
+        for (List<Integer> group : groupMap.values()) {
+            try {
+                List<Object[]> batchArgs = new ArrayList<>(group.size());
+                for (Integer index : group) {
+                    batchArgs.add(insertArgs(dedupElements.get(index), dateTime, ConsumeStatusEnum.CONSUMING.getCode(), expireTime).toArray());
+                }
+                int[] inserted = jdbcTemplate.batchUpdate("INSERT IGNORE INTO " + insertColumns() + " values " + insertPlaceholders(), batchArgs);
+
+                List<Integer> existed = new ArrayList<>();
+                for (int i = 0; i < group.size(); i++) {
+                    int index = group.get(i);
+                    if (i < inserted.length && inserted[i] == 1) {
+                        results[index] = true;
+                    } else if (i < inserted.length && inserted[i] < 0) {
+                        //驱动未返回影响行数，无法判断是否由本次插入，稍后重试，本次插入的记录过期后再接管
+                        log.warn("jdbc driver returns no update count, set setConsumingIfNX fail {}", dedupElements.get(index));
+                        results[index] = false;
+                    } else {
+                        existed.add(index);
+                    }
+                }
+                if (existed.isEmpty()) {
+                    continue;
+                }
+
+                List<DedupElement> existedElements = new ArrayList<>(existed.size());
+                for (Integer index : existed) {
+                    existedElements.add(dedupElements.get(index));
+                }
+                Map<String, Long> existExpireTimeMap = new HashMap<>(existed.size() * 2);
+                List<Object> queryArgs = new ArrayList<>(existed.size() + 4);
+                String querySql = "SELECT " + identityColumn() + ", expire_time FROM t_rocketmq_dedup WHERE " + keyInCondition(existedElements, queryArgs);
+                jdbcTemplate.query(querySql, queryArgs.toArray(), (RowCallbackHandler) rs -> {
+                    String identity = JdbcKeyModeEnum.HASHED.equals(keyMode) ? DedupKeyHasher.toHex(rs.getBytes(1)) : rs.getString(1);
+                    existExpireTimeMap.put(identity, rs.getLong("expire_time"));
+                });
+
+                for (Integer index : existed) {
+                    DedupElement dedupElement = dedupElements.get(index);
+                    Long existExpireTime = existExpireTimeMap.get(identity(dedupElement));
+                    if (existExpireTime == null || existExpireTime < now) {
+                        //已被删除或已过期的记录，按单条处理（接管过期记录）
+                        results[index] = setConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds);
+                    } else {
+                        log.warn("found consuming/consumed record, set setConsumingIfNX fail {}", dedupElement);
+                        results[index] = false;
+                    }
+                }
+            } catch (Exception e) {
+                if (!claimFailOpen) {
+                    throw e;
+                }
+                log.error("unknown error when jdbc batch insert, will consider success", e);
+                for (Integer index : group) {
+                    if (results[index] == null) {
+                        results[index] = true;
+                    }
+                }
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    @Override
+    public void batchDelete(List<DedupElement> dedupElements) {
+        for (List<DedupElement> group : groupByKeyPrefix(dedupElements).values()) {
+            List<Object> args = new ArrayList<>(group.size() + 4);
+            String sql = "DELETE FROM t_rocketmq_dedup WHERE " + keyInCondition(group, args);
+            jdbcTemplate.update(sql, args.toArray());
+        }
+    }
+
+    @Override
+    public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+        if (dedupElements.isEmpty()) {
+            return;
+        }
+        long expireTime = System.currentTimeMillis() + dedupRecordReserveMinutes * 60 * 1000;
+        Object dateTime = dateTimeValue(System.currentTimeMillis());
+        List<Object[]> batchArgs = new ArrayList<>(dedupElements.size());
+        for (DedupElement dedupElement : dedupElements) {
+            batchArgs.add(keyArgs(new Object[]{dateTime, ConsumeStatusEnum.CONSUMED.getCode(), expireTime}, dedupElement));
+        }
+        int[] updated = jdbcTemplate.batchUpdate("UPDATE t_rocketmq_dedup SET update_time = ? ,consume_status = ? , expire_time  = ? WHERE " + keyCondition(), batchArgs);
+        for (int i = 0; i < updated.length && i < dedupElements.size(); i++) {
+            if (updated[i] == 0) {
+                insertConsumed(dedupElements.get(i), dateTime, expireTime);
+            }
+        }
+    }
+
+    @Override
+    public boolean supportsLeaseRenewal() {
+        return true;
+    }
+
+    @Override
+    public void batchRenewConsuming(List<DedupElement> dedupElements, long leaseMilliSeconds) {
+        if (dedupElements.isEmpty()) {
+            return;
+        }
+        long expireTime = System.currentTimeMillis() + leaseMilliSeconds;
+        List<Object[]> batchArgs = new ArrayList<>(dedupElements.size());
+        for (DedupElement dedupElement : dedupElements) {
+            batchArgs.add(keyArgs(new Object[]{expireTime}, dedupElement, ConsumeStatusEnum.CONSUMING.getCode()));
+        }
+        jdbcTemplate.batchUpdate("UPDATE t_rocketmq_dedup SET expire_time = ? WHERE " + keyCondition() + " AND consume_status = ?", batchArgs);
+    }
+
+    private String keyCondition() {
+        return JdbcKeyModeEnum.HASHED.equals(keyMode) ? HASHED_KEY_CONDITION : COMPOSITE_KEY_CONDITION;
+    }
+
+    /**
+     * 前置参数（如SET中的参数） + 去重键参数 + 后置参数（如WHERE中去重键之后的条件），与 {@link #keyCondition()} 配合使用
+     */
+    private Object[] keyArgs(Object[] leadingArgs, DedupElement dedupElement, Object... trailingArgs) {
+        List<Object> args = new ArrayList<>(leadingArgs.length + 5 + trailingArgs.length);
+        args.addAll(Arrays.asList(leadingArgs));
+        if (JdbcKeyModeEnum.HASHED.equals(keyMode)) {
+            args.add(DedupKeyHasher.hash(dedupElement));
+        } else {
+            args.addAll(Arrays.asList(dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getConsumerGroup(), dedupElement.getMsgUniqKey()));
+        }
+        args.addAll(Arrays.asList(trailingArgs));
+        return args.toArray();
+    }
+
+    private String insertColumns() {
+        return "t_rocketmq_dedup" + insertColumnList();
+    }
+
+    private String insertColumnList() {
+        return JdbcKeyModeEnum.HASHED.equals(keyMode)
+                ? "(create_time,update_time,application_name, topic, tag, consumer_group, msg_uniq_key, uniq_key_hash, consume_status, expire_time)"
+                : "(create_time,update_time,application_name, topic, tag, consumer_group, msg_uniq_key, consume_status, expire_time)";
+    }
+
+    private String conflictTarget() {
+        return JdbcKeyModeEnum.HASHED.equals(keyMode) ? HASHED_CONFLICT_TARGET : COMPOSITE_CONFLICT_TARGET;
+    }
+
+    private String insertPlaceholders() {
+        return JdbcKeyModeEnum.HASHED.equals(keyMode) ? "(?, ?, ?, ?, ?, ?, ?, ?, ?, ?)" : "(?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    }
+
+    private List<Object> insertArgs(DedupElement dedupElement, Object dateTime, Integer consumeStatus, long expireTime) {
+        List<Object> args = new ArrayList<>(13);
+        args.addAll(Arrays.asList(dateTime, dateTime, dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getConsumerGroup(), dedupElement.getMsgUniqKey()));
+        if (JdbcKeyModeEnum.HASHED.equals(keyMode)) {
+            args.add(DedupKeyHasher.hash(dedupElement));
+        }
+        args.add(consumeStatus);
+        args.add(expireTime);
+        return args;
+    }
+
+    /**
+     * create_time/update_time参数：MySQL沿用字符串，PostgreSQL等严格类型的数据库使用Timestamp
+     */
+    private Object dateTimeValue(long timeMillis) {
+        JdbcDialectEnum currentDialect = dialect();
+        if (JdbcDialectEnum.POSTGRESQL.equals(currentDialect) || JdbcDialectEnum.H2.equals(currentDialect)) {
+            return new Timestamp(timeMillis);
+        }
+        return DateFormatUtils.format(new Date(timeMillis), DATE_TIME_FORMAT);
     }
 
+    private JdbcDialectEnum dialect() {
+        if (dialect == null) {
+            synchronized (this) {
+                if (dialect == null) {
+                    detectDialect();
+                }
+            }
+        }
+        return dialect;
+    }
+
+    private void detectDialect() {
+        JdbcDialectEnum detected;
+        boolean rewriteBatchedStatements = false;
+        try {
+            String[] productNameAndUrl = jdbcTemplate.execute((ConnectionCallback<String[]>) connection -> {
+                DatabaseMetaData metaData = connection.getMetaData();
+                return new String[]{metaData.getDatabaseProductName(), metaData.getURL()};
+            });
+            detected = JdbcDialectEnum.ofProductName(productNameAndUrl[0]);
+            String url = productNameAndUrl[1] == null ? "" : productNameAndUrl[1];
+            mysqlAffectedRows = url.contains("useAffectedRows=true");
+            rewriteBatchedStatements = url.contains("rewriteBatchedStatements=true");
+            insertIgnoreBatch = !rewriteBatchedStatements && (JdbcDialectEnum.MYSQL.equals(detected)
+                    || (JdbcDialectEnum.H2.equals(detected) && url.toUpperCase().contains("MODE=MYSQL")));
+        } catch (Exception e) {
+            log.warn("can not detect database dialect, use generic sql", e);
+            detected = JdbcDialectEnum.OTHER;
+        }
+        if (JdbcDialectEnum.MYSQL.equals(detected) && !mysqlAffectedRows) {
+            log.warn("jdbc url does not contain useAffectedRows=true, claim will fall back to insert and catch duplicate key exception");
+        }
+        if (JdbcDialectEnum.MYSQL.equals(detected) && rewriteBatchedStatements) {
+            log.warn("jdbc url contains rewriteBatchedStatements=true, batch claim will fall back to claim one by one");
+        }
+        log.info("dedup jdbc dialect is {}", detected);
+        dialect = detected;
+    }
+
+    private String identityColumn() {
+        return JdbcKeyModeEnum.HASHED.equals(keyMode) ? "uniq_key_hash" : "msg_uniq_key";
+    }
+
+    /**
+     * 批量操作中区分同一组内不同记录的标识
+     */
+    private String identity(DedupElement dedupElement) {
+        return JdbcKeyModeEnum.HASHED.equals(keyMode) ? DedupKeyHasher.toHex(DedupKeyHasher.hash(dedupElement)) : dedupElement.getMsgUniqKey();
+    }
+
+    /**
+     * 同一组记录的IN条件，参数追加到args中
+     */
+    private String keyInCondition(List<DedupElement> group, List<Object> args) {
+        StringBuilder sql = new StringBuilder();
+        if (!JdbcKeyModeEnum.HASHED.equals(keyMode)) {
+            DedupElement first = group.get(0);
+            sql.append("application_name = ? AND topic = ? AND tag = ? AND consumer_group = ? AND ");
+            args.addAll(Arrays.asList(first.getApplication(), first.getTopic(), first.getTag(), first.getConsumerGroup()));
+        }
+        sql.append(identityColumn()).append(" IN (");
+        for (int i = 0; i < group.size(); i++) {
+            sql.append(i == 0 ? "?" : ", ?");
+            args.add(JdbcKeyModeEnum.HASHED.equals(keyMode) ? DedupKeyHasher.hash(group.get(i)) : group.get(i).getMsgUniqKey());
+        }
+        return sql.append(")").toString();
+    }
+
+    /**
+     * COMPOSITE模式按 应用/Topic/Tag/消费者GROUP 分组，同一组的记录可以合并为一条SQL；HASHED模式不需要分组
+     */
+    private Map<List<String>, List<DedupElement>> groupByKeyPrefix(List<DedupElement> dedupElements) {
+        Map<List<String>, List<DedupElement>> groupMap = new LinkedHashMap<>();
+        for (DedupElement dedupElement : dedupElements) {
+            groupMap.computeIfAbsent(keyPrefix(dedupElement), k -> new ArrayList<>()).add(dedupElement);
+        }
+        return groupMap;
+    }
+
+    private List<String> keyPrefix(DedupElement dedupElement) {
+        return JdbcKeyModeEnum.HASHED.equals(keyMode)
+                ? Collections.<String>emptyList()
+                : Arrays.asList(dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getConsumerGroup());
+    }
+
+    /**
+     * 分批清理过期记录：每批先按expire_time索引查出一批id再按主键删除，批与批之间按purgeMaxRowsPerSecond限速，
+     * 避免一条大DELETE长时间持锁、造成主从延迟；开启purgeLeaderLock时只有拿到锁的实例才会清理
+     */
     @Override
     public void clearExpiredRecord() {
-        int update = jdbcTemplate.update("DELETE FROM t_rocketmq_dedup WHERE expire_time < ? AND consume_status = ?", System.currentTimeMillis(), ConsumeStatusEnum.CONSUMED.getCode());
-        log.debug("{} record has been removed.", update);
+        if (purgeLeaderLock && !tryAcquirePurgeLock()) {
+            log.debug("purge lock is held by other instance, skip clearing expired record");
+            return;
+        }
+        long now = System.currentTimeMillis();
+        long total = 0;
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                List<Long> ids = jdbcTemplate.queryForList("SELECT id FROM t_rocketmq_dedup WHERE expire_time < ? AND consume_status = ? LIMIT ?", Long.class, now, ConsumeStatusEnum.CONSUMED.getCode(), purgeBatchSize);
+                if (ids.isEmpty()) {
+                    break;
+                }
+                StringBuilder sql = new StringBuilder("DELETE FROM t_rocketmq_dedup WHERE id IN (");
+                for (int i = 0; i < ids.size(); i++) {
+                    sql.append(i == 0 ? "?" : ", ?");
+                }
+                sql.append(") AND expire_time < ?");
+                List<Object> args = new ArrayList<Object>(ids);
+                args.add(now);
+                total += jdbcTemplate.update(sql.toString(), args.toArray());
+                if (ids.size() < purgeBatchSize) {
+                    break;
+                }
+                if (purgeLeaderLock && !tryAcquirePurgeLock()) {
+                    log.warn("purge lock lost, stop clearing expired record");
+                    break;
+                }
+                if (purgeMaxRowsPerSecond > 0) {
+                    TimeUnit.MILLISECONDS.sleep(ids.size() * 1000L / purgeMaxRowsPerSecond);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            if (purgeLeaderLock) {
+                releasePurgeLock();
+            }
+        }
+        log.debug("{} record has been removed.", total);
+    }
+
+    /**
+     * 获取或续租清理锁：锁已过期或本实例持有时更新成功；锁记录不存在时插入
+     */
+    private boolean tryAcquirePurgeLock() {
+        long now = System.currentTimeMillis();
+        try {
+            int i = jdbcTemplate.update("UPDATE t_rocketmq_dedup_lock SET owner = ?, expire_time = ? WHERE lock_name = ? AND (expire_time < ? OR owner = ?)",
+                    purgeLockOwner, now + purgeLockLeaseMilliSeconds, PURGE_LOCK_NAME, now, purgeLockOwner);
+            if (i > 0) {
+                return true;
+            }
+            jdbcTemplate.update("INSERT INTO t_rocketmq_dedup_lock(lock_name, owner, expire_time) values (?, ?, ?)", PURGE_LOCK_NAME, purgeLockOwner, now + purgeLockLeaseMilliSeconds);
+            return true;
+        } catch (org.springframework.dao.DuplicateKeyException e) {
+            return false;
+        } catch (Exception e) {
+            log.error("error when acquire purge lock, please make sure table t_rocketmq_dedup_lock exists", e);
+            return false;
+        }
+    }
+
+    private void releasePurgeLock() {
+        try {
+            jdbcTemplate.update("UPDATE t_rocketmq_dedup_lock SET expire_time = 0 WHERE lock_name = ? AND owner = ?", PURGE_LOCK_NAME, purgeLockOwner);
+        } catch (Exception e) {
+            log.warn("error when release purge lock", e);
+        }
     }
 }
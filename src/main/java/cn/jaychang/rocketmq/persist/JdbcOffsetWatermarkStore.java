@@ -0,0 +1,55 @@
+package cn.jaychang.rocketmq.persist;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 消费位点水位存储在DB中，每个队列一行，需要预先建表：
+ *
+ <code>
+ CREATE TABLE `t_rocketmq_dedup_watermark` (
+ `queue_key` varchar(255) NOT NULL COMMENT '应用:GROUP:Topic:broker:queueId',
+ `snapshot` mediumtext NOT NULL COMMENT '水位快照',
+ `update_time` bigint(20) NOT NULL COMMENT '更新时间，时间戳【单位：毫秒】',
+ PRIMARY KEY (`queue_key`)
+ ) ENGINE=InnoDB DEFAULT CHARSET=utf8 COMMENT='消息防重消费位点水位表';
+ </code>
+ *
+ */
+public class JdbcOffsetWatermarkStore implements OffsetWatermarkStore {
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public JdbcOffsetWatermarkStore(JdbcTemplate jdbcTemplate) {
+        if (jdbcTemplate == null) {
+            throw new NullPointerException("jdbc template is null");
+        }
+        this.jdbcTemplate = jdbcTemplate;
+    }
+
+    @Override
+    public String load(String queueKey) {
+        List<String> snapshots = jdbcTemplate.queryForList("SELECT snapshot FROM t_rocketmq_dedup_watermark WHERE queue_key = ?", String.class, queueKey);
+        return snapshots.isEmpty() ? null : snapshots.get(0);
+    }
+
+    @Override
+    public void save(Map<String, String> snapshots) {
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, String> entry : snapshots.entrySet()) {
+            int i = jdbcTemplate.update("UPDATE t_rocketmq_dedup_watermark SET snapshot = ?, update_time = ? WHERE queue_key = ?", entry.getValue(), now, entry.getKey());
+            if (i > 0) {
+                continue;
+            }
+            try {
+                jdbcTemplate.update("INSERT INTO t_rocketmq_dedup_watermark(queue_key, snapshot, update_time) values (?, ?, ?)", entry.getKey(), entry.getValue(), now);
+            } catch (DuplicateKeyException e) {
+                //其他实例同时插入
+                jdbcTemplate.update("UPDATE t_rocketmq_dedup_watermark SET snapshot = ?, update_time = ? WHERE queue_key = ?", entry.getValue(), now, entry.getKey());
+            }
+        }
+    }
+}
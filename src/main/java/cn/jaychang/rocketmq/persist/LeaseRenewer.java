@@ -0,0 +1,106 @@
+package cn.jaychang.rocketmq.persist;
+
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 消费中状态的租约续期
+ * 1.租约模式下抢占时只设置较短的过期时间（leaseMilliSeconds），消息开始消费时登记，消费结束（无论成功失败）时注销
+ * 登记按次数计数，异步存储/异步回写在消费结束后的markConsumed/delete写入之前也登记一次，写入完成后注销，保证写入之前消费中状态不会过期被其他节点接管
+ * 2.后台单线程每隔renewIntervalMilliSeconds把所有登记中的消息按批调用一次 {@link IPersist#batchRenewConsuming}，而不是每条消息一个定时任务
+ * 3.进程挂掉后不再续租，其他节点最多等待一个租期即可接管，不必等待整个dedupProcessingExpireMilliSeconds
+ * 注：renewIntervalMilliSeconds应明显小于leaseMilliSeconds（建议不超过1/3）
+ */
+@Slf4j
+public class LeaseRenewer {
+
+    private final IPersist persist;
+
+    private final long leaseMilliSeconds;
+
+    private final int maxBatchSize;
+
+    /**
+     * 登记中的消息及登记次数
+     */
+    private final ConcurrentMap<DedupElement, Integer> activeElements = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduledExecutorService;
+
+    public LeaseRenewer(IPersist persist, long leaseMilliSeconds, long renewIntervalMilliSeconds, int maxBatchSize) {
+        if (persist == null) {
+            throw new NullPointerException("persist is null");
+        }
+        if (leaseMilliSeconds <= 0 || renewIntervalMilliSeconds <= 0 || renewIntervalMilliSeconds >= leaseMilliSeconds || maxBatchSize <= 0) {
+            throw new IllegalArgumentException("leaseMilliSeconds, renewIntervalMilliSeconds and maxBatchSize must be positive, renewIntervalMilliSeconds must be less than leaseMilliSeconds");
+        }
+        if (!persist.supportsLeaseRenewal()) {
+            throw new IllegalArgumentException(persist.getClass().getSimpleName() + " does not support lease renewal, disable rocketmq.consume.dedup.lease");
+        }
+        this.persist = persist;
+        this.leaseMilliSeconds = leaseMilliSeconds;
+        this.maxBatchSize = maxBatchSize;
+        this.scheduledExecutorService = new ScheduledThreadPoolExecutor(1,
+                new BasicThreadFactory.Builder().daemon(true).namingPattern("DedupLeaseRenewThread-%d").build());
+        this.scheduledExecutorService.scheduleWithFixedDelay(this::renew, renewIntervalMilliSeconds, renewIntervalMilliSeconds, TimeUnit.MILLISECONDS);
+    }
+
+    public long getLeaseMilliSeconds() {
+        return leaseMilliSeconds;
+    }
+
+    /**
+     * 消息开始消费（或开始等待写入），开始续租
+     */
+    public void register(DedupElement dedupElement) {
+        activeElements.merge(dedupElement, 1, Integer::sum);
+    }
+
+    /**
+     * 消息消费结束（或写入完成），所有登记都注销后停止续租
+     */
+    public void unregister(DedupElement dedupElement) {
+        activeElements.computeIfPresent(dedupElement, (k, count) -> count > 1 ? count - 1 : null);
+    }
+
+    public void shutdown() {
+        scheduledExecutorService.shutdown();
+        activeElements.clear();
+    }
+
+    private void renew() {
+        if (activeElements.isEmpty()) {
+            return;
+        }
+        List<DedupElement> batch = new ArrayList<>(Math.min(activeElements.size(), maxBatchSize));
+        for (DedupElement dedupElement : activeElements.keySet()) {
+            batch.add(dedupElement);
+            if (batch.size() >= maxBatchSize) {
+                renew(batch);
+                batch = new ArrayList<>(maxBatchSize);
+            }
+        }
+        renew(batch);
+    }
+
+    private void renew(List<DedupElement> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            persist.batchRenewConsuming(batch, leaseMilliSeconds);
+        } catch (Exception e) {
+            //续租失败不影响消费，租约到期前下一轮会再次续租
+            log.error("renew dedup lease fail, size : {}", batch.size(), e);
+        }
+    }
+}
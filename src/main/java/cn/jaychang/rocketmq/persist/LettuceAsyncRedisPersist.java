@@ -0,0 +1,141 @@
+package cn.jaychang.rocketmq.persist;
+
+
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+import cn.jaychang.rocketmq.metrics.DedupMetrics;
+import io.lettuce.core.ScriptOutputType;
+import io.lettuce.core.SetArgs;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.RedisConnectionFactory;
+import org.springframework.data.redis.connection.lettuce.LettuceConnectionFactory;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于Lettuce原生异步命令的Redis存储，key布局与 {@link RedisPersist} 完全一致，可与之混用
+ * 命令发出后不占用任何线程，结果由Lettuce的事件循环回调
+ * 要求连接工厂为LettuceConnectionFactory且共享原生连接（shareNativeConnection，默认开启），否则连接会在命令完成前被归还
+ */
+public class LettuceAsyncRedisPersist implements IAsyncPersist {
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final RedisPersist keyLayout;
+
+    private final DedupMetrics metrics;
+
+    public LettuceAsyncRedisPersist(StringRedisTemplate redisTemplate, RedisPersist keyLayout, DedupMetrics metrics) {
+        if (redisTemplate == null || keyLayout == null) {
+            throw new NullPointerException("redis template or key layout is null");
+        }
+        if (!isSupported(redisTemplate)) {
+            throw new IllegalArgumentException("LettuceAsyncRedisPersist requires a LettuceConnectionFactory with shareNativeConnection enabled");
+        }
+        this.redisTemplate = redisTemplate;
+        this.keyLayout = keyLayout;
+        this.metrics = metrics == null ? DedupMetrics.NOOP : metrics;
+    }
+
+    public static boolean isSupported(StringRedisTemplate redisTemplate) {
+        RedisConnectionFactory connectionFactory = redisTemplate.getConnectionFactory();
+        return connectionFactory instanceof LettuceConnectionFactory && ((LettuceConnectionFactory) connectionFactory).getShareNativeConnection();
+    }
+
+    @Override
+    public CompletableFuture<ClaimResultEnum> claimAsync(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        final long start = System.nanoTime();
+        byte[][] keys = {keyLayout.buildDedupMessageRedisKeyBytes(dedupElement)};
+        byte[] ttl = String.valueOf(dedupProcessingExpireMilliSeconds).getBytes(StandardCharsets.UTF_8);
+        RedisClusterAsyncCommands<byte[], byte[]> commands = commands();
+        CompletableFuture<Long> future = commands.<Long>evalsha(RedisPersist.CLAIM_SCRIPT.getSha1(), ScriptOutputType.INTEGER, keys, RedisPersist.CONSUMING_VALUE, ttl)
+                .handle((result, e) -> {
+                    if (e == null) {
+                        return CompletableFuture.completedFuture(result);
+                    }
+                    if (isNoScriptError(e)) {
+                        //Redis中没有缓存该脚本，EVAL后即被缓存
+                        return commands.<Long>eval(RedisPersist.CLAIM_SCRIPT.getScriptAsString(), ScriptOutputType.INTEGER, keys, RedisPersist.CONSUMING_VALUE, ttl);
+                    }
+                    return failed(e);
+                })
+                .thenCompose(stage -> stage)
+                .toCompletableFuture();
+        return record(future, dedupElement, DedupMetrics.OPERATION_CLAIM, start).thenApply(execute -> {
+            if (execute == null) {
+                return ClaimResultEnum.UNKNOWN;
+            }
+            if (execute == RedisPersist.CLAIMED) {
+                return ClaimResultEnum.CLAIMED;
+            }
+            return ClaimResultEnum.ofConsumeStatus(execute.intValue());
+        });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAsync(DedupElement dedupElement) {
+        final long start = System.nanoTime();
+        CompletableFuture<Long> future = commands().del(keyLayout.buildDedupMessageRedisKeyBytes(dedupElement)).toCompletableFuture();
+        return record(future, dedupElement, DedupMetrics.OPERATION_DELETE, start).thenApply(result -> null);
+    }
+
+    @Override
+    public CompletableFuture<Void> markConsumedAsync(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        final long start = System.nanoTime();
+        CompletableFuture<String> future = commands().set(keyLayout.buildDedupMessageRedisKeyBytes(dedupElement), RedisPersist.CONSUMED_VALUE,
+                SetArgs.Builder.px(TimeUnit.MINUTES.toMillis(dedupRecordReserveMinutes))).toCompletableFuture();
+        return record(future, dedupElement, DedupMetrics.OPERATION_MARK_CONSUMED, start).thenApply(result -> null);
+    }
+
+    @Override
+    public CompletableFuture<Integer> getConsumeStatusAsync(DedupElement dedupElement) {
+        final long start = System.nanoTime();
+        CompletableFuture<byte[]> future = commands().get(keyLayout.buildDedupMessageRedisKeyBytes(dedupElement)).toCompletableFuture();
+        return record(future, dedupElement, DedupMetrics.OPERATION_STATUS, start)
+                .thenApply(status -> status == null ? null : Integer.valueOf(new String(status, StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public String toPrintInfo(DedupElement dedupElement) {
+        return keyLayout.toPrintInfo(dedupElement);
+    }
+
+    /**
+     * 共享的原生异步连接，由连接工厂管理，无需归还
+     */
+    @SuppressWarnings("unchecked")
+    private RedisClusterAsyncCommands<byte[], byte[]> commands() {
+        return (RedisClusterAsyncCommands<byte[], byte[]>) redisTemplate.execute((RedisCallback<Object>) RedisConnection::getNativeConnection);
+    }
+
+    private <T> CompletableFuture<T> record(CompletableFuture<T> future, DedupElement dedupElement, String operation, long start) {
+        return future.whenComplete((result, e) -> {
+            if (e != null) {
+                metrics.recordPersistError(dedupElement, operation, e);
+            }
+            metrics.recordPersist(dedupElement, operation, System.nanoTime() - start);
+        });
+    }
+
+    private static <T> CompletionStage<T> failed(Throwable e) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        future.completeExceptionally(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+        return future;
+    }
+
+    private static boolean isNoScriptError(Throwable e) {
+        while (e != null) {
+            if (e.getMessage() != null && e.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+            e = e.getCause();
+        }
+        return false;
+    }
+}
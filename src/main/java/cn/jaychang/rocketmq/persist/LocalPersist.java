@@ -0,0 +1,456 @@
+package cn.jaychang.rocketmq.persist;
+
+
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+import cn.jaychang.rocketmq.core.ConsumeStatusEnum;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 基于本地内存映射文件的去重存储，适用于单实例消费者，无需任何网络调用，进程重启后记录依然存在
+ * 1.文件为开放寻址（线性探测）哈希表，按段（segment）加锁，每段单独映射
+ * 2.每个槽位定长32字节：消息摘要高8字节、低8字节、过期时间、消费状态、槽位状态
+ * 3.过期的槽位在插入时直接复用，clearExpiredRecord时过期记录置为墓碑，墓碑过多时整段重建
+ * 4.打开时对文件加排他锁，同一个文件已被其他进程（或本进程的其他实例）打开时启动失败，shutdown时释放
+ * 注：多个实例消费同一个GROUP时，本地存储无法跨实例去重，此时应使用DB或REDIS
+ */
+@Slf4j
+public class LocalPersist implements IPersist {
+
+    private static final long MAGIC = 0x524D514445445550L;
+
+    private static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 64;
+
+    private static final int SLOT_SIZE = 32;
+
+    private static final int OFFSET_HASH_HI = 0;
+    private static final int OFFSET_HASH_LO = 8;
+    private static final int OFFSET_EXPIRE_TIME = 16;
+    private static final int OFFSET_CONSUME_STATUS = 24;
+    private static final int OFFSET_SLOT_STATE = 28;
+
+    private static final int SLOT_EMPTY = 0;
+    private static final int SLOT_USED = 1;
+    private static final int SLOT_DELETED = 2;
+
+    /**
+     * 没有找到记录且没有可用槽位
+     */
+    private static final int SEGMENT_FULL = Integer.MIN_VALUE;
+
+    private final File file;
+
+    private final RandomAccessFile randomAccessFile;
+
+    private final FileLock fileLock;
+
+    private final Segment[] segments;
+
+    private final int slotsPerSegment;
+
+    /**
+     * @param filePath      存储文件路径，不存在则创建
+     * @param capacity      最多存储多少条记录（包括已过期但未清理的记录）
+     * @param segmentCount  分段数（加锁粒度），必须是2的幂
+     */
+    public LocalPersist(String filePath, long capacity, int segmentCount) {
+        if (segmentCount <= 0 || Integer.bitCount(segmentCount) != 1) {
+            throw new IllegalArgumentException("segmentCount must be a power of 2");
+        }
+        long slots = (capacity + segmentCount - 1) / segmentCount;
+        if (slots <= 0 || slots * SLOT_SIZE > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("capacity per segment must be in (0, " + Integer.MAX_VALUE / SLOT_SIZE + "], increase segmentCount");
+        }
+        this.slotsPerSegment = (int) slots;
+        this.file = new File(filePath);
+        try {
+            File parent = file.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.exists() && !parent.mkdirs()) {
+                throw new IOException("can not create directory " + parent);
+            }
+            boolean exists = file.exists() && file.length() > 0;
+            this.randomAccessFile = new RandomAccessFile(file, "rw");
+            FileChannel channel = randomAccessFile.getChannel();
+            this.fileLock = tryLock(channel);
+            long segmentBytes = (long) slotsPerSegment * SLOT_SIZE;
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if (exists) {
+                checkHeader(header, segmentCount);
+            } else {
+                header.putLong(0, MAGIC).putInt(8, VERSION).putInt(12, segmentCount).putInt(16, slotsPerSegment);
+                header.force();
+            }
+            this.segments = new Segment[segmentCount];
+            for (int i = 0; i < segmentCount; i++) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + i * segmentBytes, segmentBytes);
+                segments[i] = new Segment(buffer);
+            }
+        } catch (IOException e) {
+            closeQuietly();
+            throw new UncheckedIOException("can not open local dedup file " + filePath, e);
+        } catch (RuntimeException e) {
+            closeQuietly();
+            throw e;
+        }
+        log.info("open local dedup file {}, segments {}, slots per segment {}", file.getAbsolutePath(), segmentCount, slotsPerSegment);
+    }
+
+    /**
+     * 对整个文件加排他锁，已被其他进程或本进程的其他实例锁定时失败
+     */
+    private FileLock tryLock(FileChannel channel) throws IOException {
+        FileLock lock;
+        try {
+            lock = channel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            lock = null;
+        }
+        if (lock == null) {
+            throw new IllegalStateException("local dedup file " + file.getAbsolutePath() + " is locked by another process or persist instance");
+        }
+        return lock;
+    }
+
+    private void closeQuietly() {
+        if (randomAccessFile == null) {
+            return;
+        }
+        try {
+            //关闭文件同时释放锁
+            randomAccessFile.close();
+        } catch (IOException e) {
+            log.warn("error when close local dedup file {}", file.getAbsolutePath(), e);
+        }
+    }
+
+    private void checkHeader(ByteBuffer header, int segmentCount) {
+        if (header.getLong(0) != MAGIC || header.getInt(8) != VERSION) {
+            throw new IllegalStateException("file " + file.getAbsolutePath() + " is not a local dedup file");
+        }
+        if (header.getInt(12) != segmentCount || header.getInt(16) != slotsPerSegment) {
+            throw new IllegalStateException("file " + file.getAbsolutePath() + " was created with segments " + header.getInt(12)
+                    + ", slots per segment " + header.getInt(16) + ", which does not match current capacity config");
+        }
+    }
+
+    @Override
+    public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        return claim(dedupElement, dedupProcessingExpireMilliSeconds).isClaimed();
+    }
+
+    @Override
+    public ClaimResultEnum claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        Key key = new Key(dedupElement);
+        Segment segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            int index = segment.findOrInsertPosition(key, now);
+            if (index >= 0 && segment.isLive(index, now)) {
+                return ClaimResultEnum.ofConsumeStatus(segment.buffer.getInt(index * SLOT_SIZE + OFFSET_CONSUME_STATUS));
+            }
+            segment.write(index >= 0 ? index : -index - 1, key, ConsumeStatusEnum.CONSUMING.getCode(), now + dedupProcessingExpireMilliSeconds);
+            //同一个key的记录已过期，属于接管
+            return index >= 0 ? ClaimResultEnum.TAKEN_OVER : ClaimResultEnum.CLAIMED;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public void delete(DedupElement dedupElement) {
+        Key key = new Key(dedupElement);
+        Segment segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            int index = segment.find(key);
+            if (index >= 0) {
+                segment.remove(index);
+            }
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        Key key = new Key(dedupElement);
+        Segment segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            long now = System.currentTimeMillis();
+            int index = segment.findOrInsertPosition(key, now);
+            segment.write(index >= 0 ? index : -index - 1, key, ConsumeStatusEnum.CONSUMED.getCode(), now + TimeUnit.MINUTES.toMillis(dedupRecordReserveMinutes));
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public Integer getConsumeStatus(DedupElement dedupElement) {
+        Key key = new Key(dedupElement);
+        Segment segment = segmentFor(key);
+        segment.lock.lock();
+        try {
+            int index = segment.find(key);
+            if (index >= 0 && segment.isLive(index, System.currentTimeMillis())) {
+                return segment.buffer.getInt(index * SLOT_SIZE + OFFSET_CONSUME_STATUS);
+            }
+            return null;
+        } finally {
+            segment.lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean supportsLeaseRenewal() {
+        return true;
+    }
+
+    @Override
+    public void batchRenewConsuming(List<DedupElement> dedupElements, long leaseMilliSeconds) {
+        for (DedupElement dedupElement : dedupElements) {
+            Key key = new Key(dedupElement);
+            Segment segment = segmentFor(key);
+            segment.lock.lock();
+            try {
+                long now = System.currentTimeMillis();
+                int index = segment.find(key);
+                if (index >= 0 && segment.isLive(index, now)
+                        && segment.buffer.getInt(index * SLOT_SIZE + OFFSET_CONSUME_STATUS) == ConsumeStatusEnum.CONSUMING.getCode()) {
+                    segment.buffer.putLong(index * SLOT_SIZE + OFFSET_EXPIRE_TIME, now + leaseMilliSeconds);
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+    }
+
+    @Override
+    public String toPrintInfo(DedupElement dedupElement) {
+        return dedupElement + "@" + file.getName();
+    }
+
+    @Override
+    public void clearExpiredRecord() {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                removed += segment.removeExpired(now);
+                //墓碑超过1/4时整段重建，避免探测链过长
+                if (segment.deleted > slotsPerSegment / 4) {
+                    segment.rebuild();
+                }
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        log.debug("{} record has been removed.", removed);
+    }
+
+    @Override
+    public void shutdown() {
+        for (Segment segment : segments) {
+            segment.lock.lock();
+            try {
+                segment.buffer.force();
+            } finally {
+                segment.lock.unlock();
+            }
+        }
+        try {
+            fileLock.release();
+        } catch (IOException e) {
+            log.warn("error when release local dedup file lock {}", file.getAbsolutePath(), e);
+        }
+        closeQuietly();
+    }
+
+    private Segment segmentFor(Key key) {
+        return segments[(int) (key.hi >>> 32) & (segments.length - 1)];
+    }
+
+    private static class Key {
+        private final long hi;
+        private final long lo;
+
+        Key(DedupElement dedupElement) {
+            ByteBuffer hash = ByteBuffer.wrap(DedupKeyHasher.hash(dedupElement));
+            this.hi = hash.getLong();
+            this.lo = hash.getLong();
+        }
+    }
+
+    private class Segment {
+        private final ReentrantLock lock = new ReentrantLock();
+        private final MappedByteBuffer buffer;
+        private int used;
+        private int deleted;
+
+        Segment(MappedByteBuffer buffer) {
+            this.buffer = buffer;
+            for (int i = 0; i < slotsPerSegment; i++) {
+                int state = buffer.getInt(i * SLOT_SIZE + OFFSET_SLOT_STATE);
+                if (state == SLOT_USED) {
+                    used++;
+                } else if (state == SLOT_DELETED) {
+                    deleted++;
+                }
+            }
+        }
+
+        private int home(Key key) {
+            return (int) ((key.lo & Long.MAX_VALUE) % slotsPerSegment);
+        }
+
+        private boolean matches(int index, Key key) {
+            int base = index * SLOT_SIZE;
+            return buffer.getLong(base + OFFSET_HASH_HI) == key.hi && buffer.getLong(base + OFFSET_HASH_LO) == key.lo;
+        }
+
+        boolean isLive(int index, long now) {
+            return buffer.getLong(index * SLOT_SIZE + OFFSET_EXPIRE_TIME) > now;
+        }
+
+        /**
+         * @return 记录所在槽位，不存在返回-1
+         */
+        int find(Key key) {
+            int index = home(key);
+            for (int probe = 0; probe < slotsPerSegment; probe++) {
+                int state = buffer.getInt(index * SLOT_SIZE + OFFSET_SLOT_STATE);
+                if (state == SLOT_EMPTY) {
+                    return -1;
+                }
+                if (state == SLOT_USED && matches(index, key)) {
+                    return index;
+                }
+                index = index + 1 == slotsPerSegment ? 0 : index + 1;
+            }
+            return -1;
+        }
+
+        /**
+         * @return 记录存在则返回所在槽位（可能已过期），否则返回 -(可写入槽位 + 1)，优先复用墓碑或已过期的槽位
+         */
+        int findOrInsertPosition(Key key, long now) {
+            int position = probe(key, now);
+            if (position == SEGMENT_FULL) {
+                removeExpired(now);
+                rebuild();
+                position = probe(key, now);
+                if (position == SEGMENT_FULL) {
+                    throw new IllegalStateException("local dedup file " + file.getAbsolutePath() + " is full, increase capacity");
+                }
+            }
+            return position;
+        }
+
+        private int probe(Key key, long now) {
+            int reusable = -1;
+            int index = home(key);
+            for (int probe = 0; probe < slotsPerSegment; probe++) {
+                int state = buffer.getInt(index * SLOT_SIZE + OFFSET_SLOT_STATE);
+                if (state == SLOT_EMPTY) {
+                    return -(reusable >= 0 ? reusable : index) - 1;
+                }
+                if (state == SLOT_USED && matches(index, key)) {
+                    return index;
+                }
+                if (reusable < 0 && (state == SLOT_DELETED || !isLive(index, now))) {
+                    reusable = index;
+                }
+                index = index + 1 == slotsPerSegment ? 0 : index + 1;
+            }
+            return reusable >= 0 ? -reusable - 1 : SEGMENT_FULL;
+        }
+
+        void write(int index, Key key, int consumeStatus, long expireTime) {
+            int base = index * SLOT_SIZE;
+            int state = buffer.getInt(base + OFFSET_SLOT_STATE);
+            if (state != SLOT_USED) {
+                used++;
+                if (state == SLOT_DELETED) {
+                    deleted--;
+                }
+            }
+            buffer.putLong(base + OFFSET_HASH_HI, key.hi);
+            buffer.putLong(base + OFFSET_HASH_LO, key.lo);
+            buffer.putLong(base + OFFSET_EXPIRE_TIME, expireTime);
+            buffer.putInt(base + OFFSET_CONSUME_STATUS, consumeStatus);
+            buffer.putInt(base + OFFSET_SLOT_STATE, SLOT_USED);
+        }
+
+        void remove(int index) {
+            int base = index * SLOT_SIZE;
+            buffer.putLong(base + OFFSET_EXPIRE_TIME, 0L);
+            buffer.putInt(base + OFFSET_SLOT_STATE, SLOT_DELETED);
+            used--;
+            deleted++;
+        }
+
+        int removeExpired(long now) {
+            int removed = 0;
+            for (int i = 0; i < slotsPerSegment; i++) {
+                if (buffer.getInt(i * SLOT_SIZE + OFFSET_SLOT_STATE) == SLOT_USED && !isLive(i, now)) {
+                    remove(i);
+                    removed++;
+                }
+            }
+            return removed;
+        }
+
+        /**
+         * 清空墓碑后重新插入所有有效记录
+         */
+        void rebuild() {
+            long[] his = new long[used];
+            long[] los = new long[used];
+            long[] expireTimes = new long[used];
+            int[] statuses = new int[used];
+            int count = 0;
+            for (int i = 0; i < slotsPerSegment; i++) {
+                int base = i * SLOT_SIZE;
+                if (buffer.getInt(base + OFFSET_SLOT_STATE) == SLOT_USED) {
+                    his[count] = buffer.getLong(base + OFFSET_HASH_HI);
+                    los[count] = buffer.getLong(base + OFFSET_HASH_LO);
+                    expireTimes[count] = buffer.getLong(base + OFFSET_EXPIRE_TIME);
+                    statuses[count] = buffer.getInt(base + OFFSET_CONSUME_STATUS);
+                    count++;
+                }
+                buffer.putInt(base + OFFSET_SLOT_STATE, SLOT_EMPTY);
+            }
+            used = 0;
+            deleted = 0;
+            for (int i = 0; i < count; i++) {
+                int index = (int) ((los[i] & Long.MAX_VALUE) % slotsPerSegment);
+                while (buffer.getInt(index * SLOT_SIZE + OFFSET_SLOT_STATE) != SLOT_EMPTY) {
+                    index = index + 1 == slotsPerSegment ? 0 : index + 1;
+                }
+                int base = index * SLOT_SIZE;
+                buffer.putLong(base + OFFSET_HASH_HI, his[i]);
+                buffer.putLong(base + OFFSET_HASH_LO, los[i]);
+                buffer.putLong(base + OFFSET_EXPIRE_TIME, expireTimes[i]);
+                buffer.putInt(base + OFFSET_CONSUME_STATUS, statuses[i]);
+                buffer.putInt(base + OFFSET_SLOT_STATE, SLOT_USED);
+                used++;
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package cn.jaychang.rocketmq.persist;
+
+
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+import cn.jaychang.rocketmq.metrics.DedupMetrics;
+
+import java.util.List;
+
+/**
+ * 埋点装饰器，直接装饰真实的 {@link IPersist}，记录每次存储操作的耗时和异常
+ * 批量操作按整批计时，标签取批次中第一条消息
+ */
+public class MeteredPersist implements IPersist {
+
+    private final IPersist delegate;
+
+    private final DedupMetrics metrics;
+
+    public MeteredPersist(IPersist delegate, DedupMetrics metrics) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate persist is null");
+        }
+        this.delegate = delegate;
+        this.metrics = metrics;
+    }
+
+    @Override
+    public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        long start = System.nanoTime();
+        try {
+            return delegate.setConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds);
+        } catch (RuntimeException e) {
+            metrics.recordPersistError(dedupElement, DedupMetrics.OPERATION_CLAIM, e);
+            throw e;
+        } finally {
+            metrics.recordPersist(dedupElement, DedupMetrics.OPERATION_CLAIM, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public ClaimResultEnum claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        long start = System.nanoTime();
+        try {
+            return delegate.claim(dedupElement, dedupProcessingExpireMilliSeconds);
+        } catch (RuntimeException e) {
+            metrics.recordPersistError(dedupElement, DedupMetrics.OPERATION_CLAIM, e);
+            throw e;
+        } finally {
+            metrics.recordPersist(dedupElement, DedupMetrics.OPERATION_CLAIM, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void delete(DedupElement dedupElement) {
+        long start = System.nanoTime();
+        try {
+            delegate.delete(dedupElement);
+        } catch (RuntimeException e) {
+            metrics.recordPersistError(dedupElement, DedupMetrics.OPERATION_DELETE, e);
+            throw e;
+        } finally {
+            metrics.recordPersist(dedupElement, DedupMetrics.OPERATION_DELETE, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        long start = System.nanoTime();
+        try {
+            delegate.markConsumed(dedupElement, dedupRecordReserveMinutes);
+        } catch (RuntimeException e) {
+            metrics.recordPersistError(dedupElement, DedupMetrics.OPERATION_MARK_CONSUMED, e);
+            throw e;
+        } finally {
+            metrics.recordPersist(dedupElement, DedupMetrics.OPERATION_MARK_CONSUMED, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public Integer getConsumeStatus(DedupElement dedupElement) {
+        long start = System.nanoTime();
+        try {
+            return delegate.getConsumeStatus(dedupElement);
+        } catch (RuntimeException e) {
+            metrics.recordPersistError(dedupElement, DedupMetrics.OPERATION_STATUS, e);
+            throw e;
+        } finally {
+            metrics.recordPersist(dedupElement, DedupMetrics.OPERATION_STATUS, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public List<Boolean> batchSetConsumingIfNX(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        if (dedupElements.isEmpty()) {
+            return delegate.batchSetConsumingIfNX(dedupElements, dedupProcessingExpireMilliSeconds);
+        }
+        long start = System.nanoTime();
+        try {
+            return delegate.batchSetConsumingIfNX(dedupElements, dedupProcessingExpireMilliSeconds);
+        } catch (RuntimeException e) {
+            metrics.recordPersistError(dedupElements.get(0), DedupMetrics.OPERATION_CLAIM, e);
+            throw e;
+        } finally {
+            metrics.recordPersist(dedupElements.get(0), DedupMetrics.OPERATION_CLAIM, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void batchDelete(List<DedupElement> dedupElements) {
+        if (dedupElements.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            delegate.batchDelete(dedupElements);
+        } catch (RuntimeException e) {
+            metrics.recordPersistError(dedupElements.get(0), DedupMetrics.OPERATION_DELETE, e);
+            throw e;
+        } finally {
+            metrics.recordPersist(dedupElements.get(0), DedupMetrics.OPERATION_DELETE, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+        if (dedupElements.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            delegate.batchMarkConsumed(dedupElements, dedupRecordReserveMinutes);
+        } catch (RuntimeException e) {
+            metrics.recordPersistError(dedupElements.get(0), DedupMetrics.OPERATION_MARK_CONSUMED, e);
+            throw e;
+        } finally {
+            metrics.recordPersist(dedupElements.get(0), DedupMetrics.OPERATION_MARK_CONSUMED, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public boolean supportsLeaseRenewal() {
+        return delegate.supportsLeaseRenewal();
+    }
+
+    @Override
+    public void batchRenewConsuming(List<DedupElement> dedupElements, long leaseMilliSeconds) {
+        if (dedupElements.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        try {
+            delegate.batchRenewConsuming(dedupElements, leaseMilliSeconds);
+        } catch (RuntimeException e) {
+            metrics.recordPersistError(dedupElements.get(0), DedupMetrics.OPERATION_RENEW, e);
+            throw e;
+        } finally {
+            metrics.recordPersist(dedupElements.get(0), DedupMetrics.OPERATION_RENEW, System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public String toPrintInfo(DedupElement dedupElement) {
+        return delegate.toPrintInfo(dedupElement);
+    }
+
+    @Override
+    public void clearExpiredRecord() {
+        delegate.clearExpiredRecord();
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+}
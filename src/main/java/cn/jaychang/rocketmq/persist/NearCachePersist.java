@@ -0,0 +1,208 @@
+package cn.jaychang.rocketmq.persist;
+
+
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+import cn.jaychang.rocketmq.core.ConsumeStatusEnum;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 本地已消费记录缓存（near cache），装饰真实的 {@link IPersist}
+ * 1.本节点markConsumed过的消息会在本地缓存一段时间，重复消息命中时直接认为已消费，不再访问Redis/MySQL
+ * 2.只缓存已消费状态，消费中/消费失败等状态仍以真实存储为准
+ * 3.按条数（LRU淘汰）和存活时间双重限制，分段加锁以降低并发竞争
+ */
+@Slf4j
+public class NearCachePersist implements IPersist {
+
+    private static final int SEGMENT_COUNT = 16;
+
+    private final IPersist delegate;
+
+    private final long expireMilliSeconds;
+
+    private final LinkedHashMap<DedupElement, Long>[] segments;
+
+    @SuppressWarnings("unchecked")
+    public NearCachePersist(IPersist delegate, int maxEntries, long expireMilliSeconds) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate persist is null");
+        }
+        this.delegate = delegate;
+        this.expireMilliSeconds = expireMilliSeconds;
+        final int segmentMaxEntries = Math.max(1, maxEntries / SEGMENT_COUNT);
+        this.segments = new LinkedHashMap[SEGMENT_COUNT];
+        for (int i = 0; i < SEGMENT_COUNT; i++) {
+            segments[i] = new LinkedHashMap<DedupElement, Long>(16, 0.75f, true) {
+                private static final long serialVersionUID = 3417825426514368261L;
+
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<DedupElement, Long> eldest) {
+                    return size() > segmentMaxEntries;
+                }
+            };
+        }
+    }
+
+    @Override
+    public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        if (isConsumedLocally(dedupElement)) {
+            return false;
+        }
+        return delegate.setConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds);
+    }
+
+    @Override
+    public ClaimResultEnum claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        if (isConsumedLocally(dedupElement)) {
+            return ClaimResultEnum.CONSUMED;
+        }
+        return delegate.claim(dedupElement, dedupProcessingExpireMilliSeconds);
+    }
+
+    @Override
+    public void delete(DedupElement dedupElement) {
+        LinkedHashMap<DedupElement, Long> segment = segmentFor(dedupElement);
+        synchronized (segment) {
+            segment.remove(dedupElement);
+        }
+        delegate.delete(dedupElement);
+    }
+
+    @Override
+    public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        delegate.markConsumed(dedupElement, dedupRecordReserveMinutes);
+        //本地缓存时间不能超过真实记录的保留时间
+        long expireAt = System.currentTimeMillis() + Math.min(expireMilliSeconds, TimeUnit.MINUTES.toMillis(dedupRecordReserveMinutes));
+        LinkedHashMap<DedupElement, Long> segment = segmentFor(dedupElement);
+        synchronized (segment) {
+            segment.put(dedupElement, expireAt);
+        }
+    }
+
+    @Override
+    public Integer getConsumeStatus(DedupElement dedupElement) {
+        if (isConsumedLocally(dedupElement)) {
+            return ConsumeStatusEnum.CONSUMED.getCode();
+        }
+        return delegate.getConsumeStatus(dedupElement);
+    }
+
+    @Override
+    public List<Boolean> batchSetConsumingIfNX(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        List<DedupElement> missElements = new ArrayList<>(dedupElements.size());
+        for (DedupElement dedupElement : dedupElements) {
+            if (!isConsumedLocally(dedupElement)) {
+                missElements.add(dedupElement);
+            }
+        }
+        if (missElements.size() == dedupElements.size()) {
+            return delegate.batchSetConsumingIfNX(dedupElements, dedupProcessingExpireMilliSeconds);
+        }
+        //本地命中的直接返回false，未命中的批量交给真实存储
+        Iterator<Boolean> missResults = delegate.batchSetConsumingIfNX(missElements, dedupProcessingExpireMilliSeconds).iterator();
+        Iterator<DedupElement> missIterator = missElements.iterator();
+        DedupElement nextMiss = missIterator.hasNext() ? missIterator.next() : null;
+        List<Boolean> result = new ArrayList<>(dedupElements.size());
+        for (DedupElement dedupElement : dedupElements) {
+            if (dedupElement == nextMiss) {
+                result.add(missResults.next());
+                nextMiss = missIterator.hasNext() ? missIterator.next() : null;
+            } else {
+                result.add(false);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void batchDelete(List<DedupElement> dedupElements) {
+        for (DedupElement dedupElement : dedupElements) {
+            LinkedHashMap<DedupElement, Long> segment = segmentFor(dedupElement);
+            synchronized (segment) {
+                segment.remove(dedupElement);
+            }
+        }
+        delegate.batchDelete(dedupElements);
+    }
+
+    @Override
+    public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+        delegate.batchMarkConsumed(dedupElements, dedupRecordReserveMinutes);
+        long expireAt = System.currentTimeMillis() + Math.min(expireMilliSeconds, TimeUnit.MINUTES.toMillis(dedupRecordReserveMinutes));
+        for (DedupElement dedupElement : dedupElements) {
+            LinkedHashMap<DedupElement, Long> segment = segmentFor(dedupElement);
+            synchronized (segment) {
+                segment.put(dedupElement, expireAt);
+            }
+        }
+    }
+
+    @Override
+    public boolean supportsLeaseRenewal() {
+        return delegate.supportsLeaseRenewal();
+    }
+
+    @Override
+    public void batchRenewConsuming(List<DedupElement> dedupElements, long leaseMilliSeconds) {
+        delegate.batchRenewConsuming(dedupElements, leaseMilliSeconds);
+    }
+
+    @Override
+    public String toPrintInfo(DedupElement dedupElement) {
+        return delegate.toPrintInfo(dedupElement);
+    }
+
+    @Override
+    public void clearExpiredRecord() {
+        long now = System.currentTimeMillis();
+        int removed = 0;
+        for (LinkedHashMap<DedupElement, Long> segment : segments) {
+            synchronized (segment) {
+                Iterator<Long> iterator = segment.values().iterator();
+                while (iterator.hasNext()) {
+                    if (iterator.next() < now) {
+                        iterator.remove();
+                        removed++;
+                    }
+                }
+            }
+        }
+        log.debug("{} near cache record has been removed.", removed);
+        delegate.clearExpiredRecord();
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    private boolean isConsumedLocally(DedupElement dedupElement) {
+        if (dedupElement.getMsgUniqKey() == null) {
+            return false;
+        }
+        LinkedHashMap<DedupElement, Long> segment = segmentFor(dedupElement);
+        synchronized (segment) {
+            Long expireAt = segment.get(dedupElement);
+            if (expireAt == null) {
+                return false;
+            }
+            if (expireAt < System.currentTimeMillis()) {
+                segment.remove(dedupElement);
+                return false;
+            }
+            return true;
+        }
+    }
+
+    private LinkedHashMap<DedupElement, Long> segmentFor(DedupElement dedupElement) {
+        int h = dedupElement.hashCode();
+        return segments[(h ^ (h >>> 16)) & (SEGMENT_COUNT - 1)];
+    }
+}
@@ -0,0 +1,109 @@
+package cn.jaychang.rocketmq.persist;
+
+
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+
+/**
+ * 消费完成通知装饰器：markConsumed/delete写入存储后发布通知，发布失败只记录日志（等待者会查询状态兜底）
+ * 需要装饰在异步回写（WriteBehindPersist）之内，保证通知发出时存储中的状态已经更新
+ */
+@Slf4j
+public class NotifyingPersist implements IPersist {
+
+    private final IPersist delegate;
+
+    private final CompletionNotifier notifier;
+
+    public NotifyingPersist(IPersist delegate, CompletionNotifier notifier) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate persist is null");
+        }
+        this.delegate = delegate;
+        this.notifier = notifier;
+    }
+
+    @Override
+    public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        return delegate.setConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds);
+    }
+
+    @Override
+    public ClaimResultEnum claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        return delegate.claim(dedupElement, dedupProcessingExpireMilliSeconds);
+    }
+
+    @Override
+    public void delete(DedupElement dedupElement) {
+        delegate.delete(dedupElement);
+        publish(dedupElement, false);
+    }
+
+    @Override
+    public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        delegate.markConsumed(dedupElement, dedupRecordReserveMinutes);
+        publish(dedupElement, true);
+    }
+
+    @Override
+    public Integer getConsumeStatus(DedupElement dedupElement) {
+        return delegate.getConsumeStatus(dedupElement);
+    }
+
+    @Override
+    public List<Boolean> batchSetConsumingIfNX(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        return delegate.batchSetConsumingIfNX(dedupElements, dedupProcessingExpireMilliSeconds);
+    }
+
+    @Override
+    public void batchDelete(List<DedupElement> dedupElements) {
+        delegate.batchDelete(dedupElements);
+        for (DedupElement dedupElement : dedupElements) {
+            publish(dedupElement, false);
+        }
+    }
+
+    @Override
+    public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+        delegate.batchMarkConsumed(dedupElements, dedupRecordReserveMinutes);
+        for (DedupElement dedupElement : dedupElements) {
+            publish(dedupElement, true);
+        }
+    }
+
+    @Override
+    public boolean supportsLeaseRenewal() {
+        return delegate.supportsLeaseRenewal();
+    }
+
+    @Override
+    public void batchRenewConsuming(List<DedupElement> dedupElements, long leaseMilliSeconds) {
+        delegate.batchRenewConsuming(dedupElements, leaseMilliSeconds);
+    }
+
+    @Override
+    public String toPrintInfo(DedupElement dedupElement) {
+        return delegate.toPrintInfo(dedupElement);
+    }
+
+    @Override
+    public void clearExpiredRecord() {
+        delegate.clearExpiredRecord();
+    }
+
+    @Override
+    public void shutdown() {
+        notifier.shutdown();
+        delegate.shutdown();
+    }
+
+    private void publish(DedupElement dedupElement, boolean consumed) {
+        try {
+            notifier.publish(dedupElement, consumed);
+        } catch (Exception e) {
+            log.warn("error when publish dedup completion {}", dedupElement, e);
+        }
+    }
+}
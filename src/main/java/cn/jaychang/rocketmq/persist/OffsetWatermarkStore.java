@@ -0,0 +1,23 @@
+package cn.jaychang.rocketmq.persist;
+
+import java.util.Map;
+
+/**
+ * 消费位点水位的持久化，每个队列一条记录，由 {@link OffsetWatermarkTracker} 定期批量写入
+ */
+public interface OffsetWatermarkStore {
+
+    /**
+     * 读取队列的水位快照
+     *
+     * @return 没有记录时返回null
+     */
+    String load(String queueKey);
+
+    /**
+     * 写入有变化的队列的水位快照
+     *
+     * @param snapshots queueKey -> 快照
+     */
+    void save(Map<String, String> snapshots);
+}
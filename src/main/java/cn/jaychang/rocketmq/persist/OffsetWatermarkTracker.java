@@ -0,0 +1,142 @@
+package cn.jaychang.rocketmq.persist;
+
+
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按队列跟踪已消费的offset（消费位点水位 + 水位之上的位图），用于以消息ID去重时判断broker对同一个offset的重复投递
+ * 1.判断和标记都是内存操作，队列第一次出现时从存储加载一次水位
+ * 2.后台单线程每隔flushIntervalMilliSeconds把有变化的队列写入存储，空闲超过idleMilliSeconds的队列从内存淘汰，rebalance回来时重新加载
+ * 3.写入是周期性的，进程挂掉或rebalance时最近一个周期内标记的offset可能丢失，只会导致重复消费，不会漏消费
+ */
+@Slf4j
+public class OffsetWatermarkTracker {
+
+    private final OffsetWatermarkStore store;
+
+    private final int maxSpan;
+
+    private final long idleMilliSeconds;
+
+    private final ConcurrentMap<String, QueueOffsetWatermark> watermarks = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService scheduledExecutorService;
+
+    /**
+     * @param maxSpan 水位之上最多跟踪多少个offset，超过时水位前移，但不越过消费中的offset
+     */
+    public OffsetWatermarkTracker(OffsetWatermarkStore store, long flushIntervalMilliSeconds, int maxSpan, long idleMilliSeconds) {
+        if (store == null) {
+            throw new NullPointerException("store is null");
+        }
+        if (flushIntervalMilliSeconds <= 0 || maxSpan <= 0 || idleMilliSeconds <= 0) {
+            throw new IllegalArgumentException("flushIntervalMilliSeconds, maxSpan and idleMilliSeconds must be positive");
+        }
+        this.store = store;
+        this.maxSpan = maxSpan;
+        this.idleMilliSeconds = idleMilliSeconds;
+        this.scheduledExecutorService = new ScheduledThreadPoolExecutor(1,
+                new BasicThreadFactory.Builder().daemon(true).namingPattern("DedupOffsetWatermarkFlushThread-%d").build());
+        this.scheduledExecutorService.scheduleWithFixedDelay(this::flush, flushIntervalMilliSeconds, flushIntervalMilliSeconds, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 开始消费队列中的offset
+     *
+     * @return CONSUMED表示已消费过；CONSUMING表示本节点正在消费同一个offset；CLAIMED表示未消费，已登记为消费中，消费结束后必须调用 {@link #end}
+     */
+    public ClaimResultEnum begin(String queueKey, long offset) {
+        QueueOffsetWatermark watermark = watermarkOf(queueKey);
+        ClaimResultEnum claimResult;
+        while ((claimResult = watermark.begin(offset)) == null) {
+            //刚被淘汰，重新加载
+            watermarks.remove(queueKey, watermark);
+            watermark = watermarkOf(queueKey);
+        }
+        return claimResult;
+    }
+
+    /**
+     * 消费结束，消费成功时标记offset已消费；有消费中的offset时队列不会被淘汰
+     */
+    public void end(String queueKey, long offset, boolean consumed) {
+        watermarkOf(queueKey).end(offset, consumed);
+    }
+
+    private QueueOffsetWatermark watermarkOf(String queueKey) {
+        QueueOffsetWatermark watermark = watermarks.get(queueKey);
+        if (watermark != null) {
+            return watermark;
+        }
+        //在computeIfAbsent之外加载，避免访问存储时阻塞同一个桶的其他队列
+        watermark = load(queueKey);
+        QueueOffsetWatermark previous = watermarks.putIfAbsent(queueKey, watermark);
+        return previous != null ? previous : watermark;
+    }
+
+    private QueueOffsetWatermark load(String queueKey) {
+        try {
+            String snapshot = store.load(queueKey);
+            if (snapshot != null) {
+                return QueueOffsetWatermark.fromSnapshot(snapshot, maxSpan);
+            }
+        } catch (Exception e) {
+            //加载失败时从空的水位开始，之前消费过的offset会再消费一次
+            log.error("load offset watermark fail, queue : {}", queueKey, e);
+        }
+        return new QueueOffsetWatermark(maxSpan);
+    }
+
+    /**
+     * 把有变化的队列写入存储，并淘汰空闲的队列
+     */
+    public void flush() {
+        Map<String, String> snapshots = new HashMap<>();
+        long now = System.currentTimeMillis();
+        for (Map.Entry<String, QueueOffsetWatermark> entry : watermarks.entrySet()) {
+            String snapshot = entry.getValue().takeSnapshot();
+            if (snapshot != null) {
+                snapshots.put(entry.getKey(), snapshot);
+            } else if (entry.getValue().evictIfIdle(now, idleMilliSeconds)) {
+                watermarks.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        if (snapshots.isEmpty()) {
+            return;
+        }
+        try {
+            store.save(snapshots);
+        } catch (Exception e) {
+            log.error("save offset watermark fail, size : {}", snapshots.size(), e);
+            for (String queueKey : snapshots.keySet()) {
+                QueueOffsetWatermark watermark = watermarks.get(queueKey);
+                if (watermark != null) {
+                    watermark.markDirty();
+                }
+            }
+        }
+    }
+
+    /**
+     * 停止后台线程，并把未写入的变化写入存储
+     */
+    public void shutdown() {
+        scheduledExecutorService.shutdown();
+        try {
+            scheduledExecutorService.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+}
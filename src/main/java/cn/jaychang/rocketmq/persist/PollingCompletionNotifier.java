@@ -0,0 +1,53 @@
+package cn.jaychang.rocketmq.persist;
+
+import cn.jaychang.rocketmq.core.ConsumeStatusEnum;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 轮询方式的消费完成通知，适用于没有发布订阅能力的存储（如MySQL），发布为空操作，等待时按固定间隔查询消费状态
+ */
+public class PollingCompletionNotifier implements CompletionNotifier {
+
+    private final long pollIntervalMilliSeconds;
+
+    public PollingCompletionNotifier(long pollIntervalMilliSeconds) {
+        if (pollIntervalMilliSeconds <= 0) {
+            throw new IllegalArgumentException("pollIntervalMilliSeconds must be positive");
+        }
+        this.pollIntervalMilliSeconds = pollIntervalMilliSeconds;
+    }
+
+    @Override
+    public void publish(DedupElement dedupElement, boolean consumed) {
+    }
+
+    @Override
+    public Boolean await(DedupElement dedupElement, long timeoutMilliSeconds, IPersist persist) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMilliSeconds;
+        while (true) {
+            Boolean completed = completedOf(persist.getConsumeStatus(dedupElement));
+            if (completed != null) {
+                return completed;
+            }
+            long remainingMilliSeconds = deadline - System.currentTimeMillis();
+            if (remainingMilliSeconds <= 0) {
+                return null;
+            }
+            TimeUnit.MILLISECONDS.sleep(Math.min(pollIntervalMilliSeconds, remainingMilliSeconds));
+        }
+    }
+
+    /**
+     * 消费状态对应的等待结果，仍在消费中返回null
+     */
+    static Boolean completedOf(Integer consumeStatus) {
+        if (consumeStatus == null) {
+            return false;
+        }
+        if (ConsumeStatusEnum.CONSUMED.getCode().equals(consumeStatus)) {
+            return true;
+        }
+        return null;
+    }
+}
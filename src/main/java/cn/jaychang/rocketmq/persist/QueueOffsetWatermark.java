@@ -0,0 +1,194 @@
+package cn.jaychang.rocketmq.persist;
+
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Base64;
+import java.util.BitSet;
+import java.util.TreeSet;
+
+/**
+ * 单个队列的消费位点水位：[floor, watermark)内的offset都已消费，watermark之上乱序完成的offset记录在位图中
+ * 1.floor以下的offset状态未知，视为未消费（例如首次见到该队列之前的消息），只会多消费不会漏消费
+ * 2.消费中的offset登记在inFlight中，同一个offset在本节点消费结束之前的重复投递稍后再消费；位图跨度超过maxSpan时水位强制前移，但不会越过最小的消费中offset；越过的空洞不视为已消费，floor随之前移，其下的offset重新变为未知（只会多消费）
+ * 3.所有方法在实例上同步，同一个队列的并发只来自本节点的消费线程
+ */
+@Slf4j
+class QueueOffsetWatermark {
+
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final int maxSpan;
+
+    private long floor = EMPTY;
+
+    private long watermark = EMPTY;
+
+    /**
+     * 第i位表示offset watermark + i 已消费
+     */
+    private BitSet above = new BitSet();
+
+    /**
+     * 消费中的offset，不写入快照
+     */
+    private final TreeSet<Long> inFlight = new TreeSet<>();
+
+    /**
+     * 上次写入存储之后是否有变化
+     */
+    private boolean dirty;
+
+    private long lastAccessMilliSeconds = System.currentTimeMillis();
+
+    /**
+     * 已从内存中淘汰，之后的标记需要重新加载
+     */
+    private boolean evicted;
+
+    QueueOffsetWatermark(int maxSpan) {
+        this.maxSpan = maxSpan;
+    }
+
+    synchronized boolean isConsumed(long offset) {
+        lastAccessMilliSeconds = System.currentTimeMillis();
+        if (floor == EMPTY || offset < floor) {
+            return false;
+        }
+        if (offset < watermark) {
+            return true;
+        }
+        long index = offset - watermark;
+        return index < maxSpan && above.get((int) index);
+    }
+
+    /**
+     * 开始消费offset：未消费且不在消费中时登记为消费中
+     *
+     * @return null表示已被淘汰，需要重新获取；CONSUMED表示已消费，CONSUMING表示本节点正在消费，都不登记；CLAIMED表示已登记，消费结束后需要调用 {@link #end}
+     */
+    synchronized ClaimResultEnum begin(long offset) {
+        if (evicted) {
+            return null;
+        }
+        if (isConsumed(offset)) {
+            return ClaimResultEnum.CONSUMED;
+        }
+        if (!inFlight.add(offset)) {
+            return ClaimResultEnum.CONSUMING;
+        }
+        return ClaimResultEnum.CLAIMED;
+    }
+
+    /**
+     * 消费结束（只由登记成功的一方调用），注销消费中的offset，消费成功时标记已消费
+     */
+    synchronized void end(long offset, boolean consumed) {
+        inFlight.remove(offset);
+        if (consumed) {
+            markConsumed(offset);
+        }
+    }
+
+    /**
+     * 标记offset已消费
+     *
+     * @return false表示已被淘汰，需要重新获取
+     */
+    synchronized boolean markConsumed(long offset) {
+        if (evicted) {
+            return false;
+        }
+        lastAccessMilliSeconds = System.currentTimeMillis();
+        if (floor == EMPTY) {
+            floor = offset;
+            watermark = offset;
+        } else if (offset < floor) {
+            if (watermark - offset > maxSpan) {
+                //首次见到该队列之前很久的消息，不记录，重复投递时会再消费一次
+                return true;
+            }
+            //以offset为新的水位重建位图，[floor, watermark)及原位图平移
+            BitSet rebased = new BitSet();
+            rebased.set((int) (floor - offset), (int) (watermark - offset));
+            int shift = (int) (watermark - offset);
+            for (int i = above.nextSetBit(0); i >= 0; i = above.nextSetBit(i + 1)) {
+                rebased.set(i + shift);
+            }
+            above = rebased;
+            floor = offset;
+            watermark = offset;
+        } else if (offset < watermark) {
+            return true;
+        }
+        long index = offset - watermark;
+        if (index >= maxSpan) {
+            //不越过消费中的offset，否则进程挂掉或rebalance后从原队列重新投递时会被当作已消费
+            long target = offset - maxSpan + 1;
+            if (!inFlight.isEmpty()) {
+                target = Math.min(target, inFlight.first());
+            }
+            if (target <= watermark) {
+                log.debug("offset {} exceeds max span above watermark {} which is held by consuming offset, not recorded", offset, watermark);
+                return true;
+            }
+            long slide = target - watermark;
+            int from = (int) Math.min(slide, above.length());
+            long skipped = slide - above.get(0, from).cardinality();
+            //位图第0位总是未消费（否则水位已前移），越过的范围内必有空洞，状态未知，floor前移，之前的offset都视为未消费
+            floor = target;
+            watermark = target;
+            above = above.get(from, Math.max(from, above.length()));
+            log.debug("offset watermark slides to {}, {} unconsumed offsets become unknown", watermark, skipped);
+            index = offset - watermark;
+        }
+        above.set((int) index);
+        int consumed = above.nextClearBit(0);
+        if (consumed > 0) {
+            watermark += consumed;
+            above = above.get(consumed, Math.max(consumed, above.length()));
+        }
+        dirty = true;
+        return true;
+    }
+
+    /**
+     * 有变化时返回快照并清除变化标记，否则返回null
+     */
+    synchronized String takeSnapshot() {
+        if (!dirty) {
+            return null;
+        }
+        dirty = false;
+        return floor + ":" + watermark + ":" + Base64.getEncoder().encodeToString(above.toByteArray());
+    }
+
+    /**
+     * 快照写入失败，下次重新写入
+     */
+    synchronized void markDirty() {
+        dirty = true;
+    }
+
+    /**
+     * 没有未写入的变化、没有消费中的offset且空闲超过idleMilliSeconds时淘汰
+     */
+    synchronized boolean evictIfIdle(long now, long idleMilliSeconds) {
+        if (!dirty && inFlight.isEmpty() && now - lastAccessMilliSeconds >= idleMilliSeconds) {
+            evicted = true;
+        }
+        return evicted;
+    }
+
+    static QueueOffsetWatermark fromSnapshot(String snapshot, int maxSpan) {
+        QueueOffsetWatermark queueOffsetWatermark = new QueueOffsetWatermark(maxSpan);
+        String[] parts = snapshot.split(":", 3);
+        if (parts.length != 3) {
+            throw new IllegalArgumentException("invalid offset watermark snapshot " + snapshot);
+        }
+        queueOffsetWatermark.floor = Long.parseLong(parts[0]);
+        queueOffsetWatermark.watermark = Long.parseLong(parts[1]);
+        queueOffsetWatermark.above = BitSet.valueOf(Base64.getDecoder().decode(parts[2]));
+        return queueOffsetWatermark;
+    }
+}
@@ -0,0 +1,71 @@
+package cn.jaychang.rocketmq.persist;
+
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Redis Cluster的slot计算（CRC16/XMODEM对16384取模，key中有非空的 {...} 时只计算花括号内的部分）
+ * 用于把批量操作按slot拆分，保证每个多key命令/脚本只涉及一个slot
+ */
+final class RedisClusterSlots {
+
+    static final int SLOT_COUNT = 16384;
+
+    private static final int[] CRC16_TABLE = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int crc = i << 8;
+            for (int j = 0; j < 8; j++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x1021 : crc << 1;
+            }
+            CRC16_TABLE[i] = crc & 0xFFFF;
+        }
+    }
+
+    private RedisClusterSlots() {
+    }
+
+    static int slot(byte[] key) {
+        int start = 0;
+        int end = key.length;
+        for (int i = 0; i < key.length; i++) {
+            if (key[i] == '{') {
+                for (int j = i + 1; j < key.length; j++) {
+                    if (key[j] == '}') {
+                        //空的 {} 不算哈希标签
+                        if (j > i + 1) {
+                            start = i + 1;
+                            end = j;
+                        }
+                        break;
+                    }
+                }
+                break;
+            }
+        }
+        return crc16(key, start, end) % SLOT_COUNT;
+    }
+
+    /**
+     * 按slot分组，返回 slot -> 各key在入参中的位置（保持原有顺序）
+     */
+    static Map<Integer, List<Integer>> groupBySlot(byte[][] keys) {
+        Map<Integer, List<Integer>> groups = new LinkedHashMap<>();
+        for (int i = 0; i < keys.length; i++) {
+            groups.computeIfAbsent(slot(keys[i]), k -> new ArrayList<>()).add(i);
+        }
+        return groups;
+    }
+
+    private static int crc16(byte[] bytes, int start, int end) {
+        int crc = 0;
+        for (int i = start; i < end; i++) {
+            crc = ((crc << 8) ^ CRC16_TABLE[((crc >>> 8) ^ bytes[i]) & 0xFF]) & 0xFFFF;
+        }
+        return crc;
+    }
+}
@@ -0,0 +1,125 @@
+package cn.jaychang.rocketmq.persist;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 基于Redis发布订阅的消费完成通知
+ * 1.每个订阅（应用/Topic/Tag/GROUP）一个channel：MQ:CONSUME_DEDUP:DONE:应用:Topic[:Tag]:GROUP，消息体为 状态码 + 消息Key
+ * 2.有等待者时才订阅对应的channel（订阅后保持），只有等待者所在的节点会收到通知
+ * 3.发布订阅不保证送达，等待前后都会查询一次存储中的状态兜底
+ */
+@Slf4j
+public class RedisCompletionNotifier implements CompletionNotifier, MessageListener {
+
+    private static final String CHANNEL_PREFIX = "MQ:CONSUME_DEDUP:DONE:";
+
+    private static final String CONSUMED = "1";
+
+    private static final String RELEASED = "0";
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final RedisMessageListenerContainer listenerContainer;
+
+    /**
+     * channel -> 订阅
+     */
+    private final ConcurrentMap<String, DedupSubscription> subscribedChannels = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<DedupElement, CompletableFuture<Boolean>> waiters = new ConcurrentHashMap<>();
+
+    public RedisCompletionNotifier(StringRedisTemplate redisTemplate) {
+        if (redisTemplate == null) {
+            throw new NullPointerException("redis template is null");
+        }
+        this.redisTemplate = redisTemplate;
+        this.listenerContainer = new RedisMessageListenerContainer();
+        this.listenerContainer.setConnectionFactory(redisTemplate.getRequiredConnectionFactory());
+        this.listenerContainer.afterPropertiesSet();
+        this.listenerContainer.start();
+    }
+
+    @Override
+    public void publish(DedupElement dedupElement, boolean consumed) {
+        if (dedupElement.getMsgUniqKey() == null) {
+            return;
+        }
+        redisTemplate.convertAndSend(channelOf(dedupElement), (consumed ? CONSUMED : RELEASED) + dedupElement.getMsgUniqKey());
+    }
+
+    @Override
+    public Boolean await(DedupElement dedupElement, long timeoutMilliSeconds, IPersist persist) throws InterruptedException {
+        String channel = channelOf(dedupElement);
+        if (subscribedChannels.putIfAbsent(channel, new DedupSubscription(dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getConsumerGroup())) == null) {
+            listenerContainer.addMessageListener(this, new ChannelTopic(channel));
+        }
+        CompletableFuture<Boolean> future = new CompletableFuture<>();
+        CompletableFuture<Boolean> existing = waiters.putIfAbsent(dedupElement, future);
+        if (existing != null) {
+            //同一节点上的多个等待者共用一个结果
+            future = existing;
+        }
+        try {
+            //先登记再查状态，在此之前完成的消息不会被漏掉
+            Boolean completed = PollingCompletionNotifier.completedOf(persist.getConsumeStatus(dedupElement));
+            if (completed != null) {
+                return completed;
+            }
+            try {
+                return future.get(timeoutMilliSeconds, TimeUnit.MILLISECONDS);
+            } catch (TimeoutException e) {
+                //通知可能丢失，最后再查一次
+                return PollingCompletionNotifier.completedOf(persist.getConsumeStatus(dedupElement));
+            } catch (ExecutionException e) {
+                return null;
+            }
+        } finally {
+            waiters.remove(dedupElement, future);
+        }
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        DedupSubscription subscription = subscribedChannels.get(channel);
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        if (subscription == null || body.isEmpty()) {
+            return;
+        }
+        CompletableFuture<Boolean> future = waiters.remove(subscription.newElement(body.substring(1)));
+        if (future != null) {
+            future.complete(body.startsWith(CONSUMED));
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        try {
+            listenerContainer.destroy();
+        } catch (Exception e) {
+            log.warn("error when stop redis completion notifier", e);
+        }
+    }
+
+    private static String channelOf(DedupElement dedupElement) {
+        DedupSubscription subscription = dedupElement.getSubscription();
+        String prefix = subscription != null && subscription.matches(dedupElement)
+                ? subscription.getRedisKeyPrefix()
+                : DedupSubscription.buildRedisKeyPrefix(dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getConsumerGroup());
+        //MQ:CONSUME_DEDUP:应用:... -> MQ:CONSUME_DEDUP:DONE:应用:...，去掉末尾的冒号
+        return CHANNEL_PREFIX + prefix.substring("MQ:CONSUME_DEDUP:".length(), prefix.length() - 1);
+    }
+}
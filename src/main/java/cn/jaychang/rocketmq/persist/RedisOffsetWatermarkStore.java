@@ -0,0 +1,42 @@
+package cn.jaychang.rocketmq.persist;
+
+import org.springframework.data.redis.core.StringRedisTemplate;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 消费位点水位存储在Redis中，每个队列一个key：MQ:CONSUME_DEDUP:WATERMARK:队列，过期时间在每次写入时刷新
+ */
+public class RedisOffsetWatermarkStore implements OffsetWatermarkStore {
+
+    private static final String KEY_PREFIX = "MQ:CONSUME_DEDUP:WATERMARK:";
+
+    private final StringRedisTemplate redisTemplate;
+
+    private final long expireMinutes;
+
+    /**
+     * @param expireMinutes 队列多久没有消费后删除水位记录
+     */
+    public RedisOffsetWatermarkStore(StringRedisTemplate redisTemplate, long expireMinutes) {
+        if (redisTemplate == null) {
+            throw new NullPointerException("redis template is null");
+        }
+        this.redisTemplate = redisTemplate;
+        this.expireMinutes = expireMinutes;
+    }
+
+    @Override
+    public String load(String queueKey) {
+        return redisTemplate.opsForValue().get(KEY_PREFIX + queueKey);
+    }
+
+    @Override
+    public void save(Map<String, String> snapshots) {
+        //每个队列一个key，Cluster模式下分布在不同slot，逐个写入
+        for (Map.Entry<String, String> entry : snapshots.entrySet()) {
+            redisTemplate.opsForValue().set(KEY_PREFIX + entry.getKey(), entry.getValue(), expireMinutes, TimeUnit.MINUTES);
+        }
+    }
+}
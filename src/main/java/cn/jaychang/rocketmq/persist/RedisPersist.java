@@ -1,13 +1,24 @@
 package cn.jaychang.rocketmq.persist;
 
 
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
 import cn.jaychang.rocketmq.core.ConsumeStatusEnum;
 import org.apache.commons.lang3.StringUtils;
 import org.springframework.data.redis.connection.RedisStringCommands;
+import org.springframework.data.redis.connection.ReturnType;
 import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.data.redis.core.script.RedisScript;
 import org.springframework.data.redis.core.types.Expiration;
 
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.TimeUnit;
 
 /**
@@ -16,21 +27,89 @@ import java.util.concurrent.TimeUnit;
 
 public class RedisPersist implements IPersist {
     private final StringRedisTemplate redisTemplate;
-    private static final String COLON = ":";
+
+    /**
+     * 原子地setnx，失败则返回当前状态：-1表示设置成功，否则为已有记录的消费状态
+     */
+    private static final String CLAIM_LUA = "if redis.call('SET', KEYS[1], ARGV[1], 'PX', ARGV[2], 'NX') then return -1 end "
+            + "local status = redis.call('GET', KEYS[1]) "
+            + "if status then return tonumber(status) end "
+            + "return -2";
+
+    /**
+     * 脚本以sha1缓存在Redis中，执行时优先EVALSHA，NOSCRIPT时自动退化为EVAL
+     */
+    static final RedisScript<Long> CLAIM_SCRIPT = new DefaultRedisScript<>(CLAIM_LUA, Long.class);
+
+    static final long CLAIMED = -1L;
+
+    /**
+     * 只续租值仍为消费中的key；KEYS为各消息key，ARGV[1]为消费中状态值，ARGV[2]为租期毫秒数
+     */
+    private static final RedisScript<Long> RENEW_SCRIPT = new DefaultRedisScript<>(
+            "local renewed = 0 "
+                    + "for i = 1, #KEYS do if redis.call('GET', KEYS[i]) == ARGV[1] then redis.call('PEXPIRE', KEYS[i], ARGV[2]) renewed = renewed + 1 end end "
+                    + "return renewed", Long.class);
+
+    /**
+     * 集群模式下同一slot的批量setnx；KEYS为各消息key，ARGV[1]为消费中状态值，ARGV[2]为过期毫秒数，返回每个key是否设置成功（1/0）
+     */
+    private static final RedisScript<List> BATCH_SET_NX_SCRIPT = new DefaultRedisScript<>(
+            "local result = {} "
+                    + "for i = 1, #KEYS do if redis.call('SET', KEYS[i], ARGV[1], 'PX', ARGV[2], 'NX') then result[i] = 1 else result[i] = 0 end end "
+                    + "return result", List.class);
+
+    /**
+     * 集群模式下同一slot的批量标记已消费；KEYS为各消息key，ARGV[1]为已消费状态值，ARGV[2]为过期毫秒数
+     */
+    private static final RedisScript<Long> BATCH_SET_SCRIPT = new DefaultRedisScript<>(
+            "for i = 1, #KEYS do redis.call('SET', KEYS[i], ARGV[1], 'PX', ARGV[2]) end "
+                    + "return #KEYS", Long.class);
+
+    static final byte[] CONSUMING_VALUE = String.valueOf(ConsumeStatusEnum.CONSUMING.getCode()).getBytes(StandardCharsets.UTF_8);
+
+    static final byte[] CONSUMED_VALUE = String.valueOf(ConsumeStatusEnum.CONSUMED.getCode()).getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * 过期时间参数来自各去重策略的配置，取值很少，按值缓存其编码结果；超过上限时不再缓存，直接计算
+     */
+    private static final int MAX_CACHED_TTLS = 64;
+
+    private final ConcurrentMap<Long, CachedTtl> cachedProcessingTtls = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<Long, CachedTtl> cachedReserveTtls = new ConcurrentHashMap<>();
+
+    /**
+     * 集群模式下每个订阅的哈希标签分片数，0表示非集群模式（key不带哈希标签）
+     */
+    private final int clusterHashTagShards;
 
     public RedisPersist(StringRedisTemplate redisTemplate) {
+        this(redisTemplate, 0);
+    }
+
+    /**
+     * @param clusterHashTagShards 大于0时为Redis Cluster模式：key带上 {订阅:分片} 哈希标签，同一订阅的key只分布在这么多个slot上，
+     *                             批量操作按slot拆分，每个slot一次脚本调用。切换模式会改变key，已有的去重记录将失效
+     */
+    public RedisPersist(StringRedisTemplate redisTemplate, int clusterHashTagShards) {
         if (redisTemplate == null) {
             throw new NullPointerException("redis template is null");
         }
+        if (clusterHashTagShards < 0) {
+            throw new IllegalArgumentException("clusterHashTagShards must not be negative");
+        }
         this.redisTemplate = redisTemplate;
+        this.clusterHashTagShards = clusterHashTagShards;
     }
 
 
     @Override
     public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
-        String dedupKey = buildDedupMessageRedisKey(dedupElement);
+        byte[] dedupKey = buildDedupMessageRedisKeyBytes(dedupElement);
+        Expiration expiration = processingTtl(dedupProcessingExpireMilliSeconds).expiration;
         //setnx, 成功就可以消费
-        Boolean execute = redisTemplate.execute((RedisCallback<Boolean>) redisConnection -> redisConnection.set(dedupKey.getBytes(), (String.valueOf(ConsumeStatusEnum.CONSUMED.getCode())).getBytes(), Expiration.milliseconds(dedupProcessingExpireMilliSeconds), RedisStringCommands.SetOption.SET_IF_ABSENT));
+        Boolean execute = redisTemplate.execute((RedisCallback<Boolean>) redisConnection -> redisConnection.set(dedupKey, CONSUMING_VALUE, expiration, RedisStringCommands.SetOption.SET_IF_ABSENT));
 
         if (execute == null) {
             return false;
@@ -41,21 +120,167 @@ public class RedisPersist implements IPersist {
 
     @Override
     public void delete(DedupElement dedupElement) {
-        String dedupKey = buildDedupMessageRedisKey(dedupElement);
-        redisTemplate.delete(dedupKey);
+        byte[] dedupKey = buildDedupMessageRedisKeyBytes(dedupElement);
+        redisTemplate.execute((RedisCallback<Long>) redisConnection -> redisConnection.del(dedupKey));
     }
 
     @Override
     public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
-        String dedupKey = buildDedupMessageRedisKey(dedupElement);
-        redisTemplate.opsForValue().set(dedupKey, String.valueOf(ConsumeStatusEnum.CONSUMING.getCode()), dedupRecordReserveMinutes, TimeUnit.MINUTES);
+        byte[] dedupKey = buildDedupMessageRedisKeyBytes(dedupElement);
+        Expiration expiration = reserveTtl(dedupRecordReserveMinutes).expiration;
+        redisTemplate.execute((RedisCallback<Boolean>) redisConnection -> redisConnection.set(dedupKey, CONSUMED_VALUE, expiration, RedisStringCommands.SetOption.UPSERT));
 
     }
 
     @Override
     public Integer getConsumeStatus(DedupElement dedupElement) {
-        String dedupKey = buildDedupMessageRedisKey(dedupElement);
-        return Integer.valueOf(redisTemplate.opsForValue().get(dedupKey));
+        byte[] dedupKey = buildDedupMessageRedisKeyBytes(dedupElement);
+        byte[] status = redisTemplate.execute((RedisCallback<byte[]>) redisConnection -> redisConnection.get(dedupKey));
+        //setnx失败后key可能已经过期
+        return status == null ? null : Integer.valueOf(new String(status, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public ClaimResultEnum claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        byte[] dedupKey = buildDedupMessageRedisKeyBytes(dedupElement);
+        byte[] ttl = processingTtl(dedupProcessingExpireMilliSeconds).bytes;
+        Long execute = redisTemplate.execute((RedisCallback<Long>) redisConnection -> RedisScriptSupport.eval(redisConnection, CLAIM_SCRIPT, ReturnType.INTEGER, 1, dedupKey, CONSUMING_VALUE, ttl));
+        if (execute == null) {
+            return ClaimResultEnum.UNKNOWN;
+        }
+        if (execute == CLAIMED) {
+            return ClaimResultEnum.CLAIMED;
+        }
+        return ClaimResultEnum.ofConsumeStatus(execute.intValue());
+    }
+
+    @Override
+    public List<Boolean> batchSetConsumingIfNX(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        if (dedupElements.isEmpty()) {
+            return Collections.emptyList();
+        }
+        if (clusterHashTagShards > 0) {
+            return clusterBatchSetConsumingIfNX(dedupElements, processingTtl(dedupProcessingExpireMilliSeconds).bytes);
+        }
+        final Expiration expiration = processingTtl(dedupProcessingExpireMilliSeconds).expiration;
+        //pipeline批量setnx，一次网络往返
+        List<Object> executeList = redisTemplate.executePipelined((RedisCallback<Object>) redisConnection -> {
+            for (DedupElement dedupElement : dedupElements) {
+                redisConnection.set(buildDedupMessageRedisKeyBytes(dedupElement), CONSUMING_VALUE, expiration, RedisStringCommands.SetOption.SET_IF_ABSENT);
+            }
+            return null;
+        });
+        List<Boolean> result = new ArrayList<>(executeList.size());
+        for (Object execute : executeList) {
+            result.add(Boolean.TRUE.equals(execute));
+        }
+        return result;
+    }
+
+    @Override
+    public void batchDelete(List<DedupElement> dedupElements) {
+        if (dedupElements.isEmpty()) {
+            return;
+        }
+        final byte[][] dedupKeys = buildDedupMessageRedisKeys(dedupElements);
+        if (clusterHashTagShards > 0) {
+            //多key的DEL只能在同一个slot内执行
+            for (List<Integer> positions : RedisClusterSlots.groupBySlot(dedupKeys).values()) {
+                final byte[][] slotKeys = select(dedupKeys, positions, 0);
+                redisTemplate.execute((RedisCallback<Long>) redisConnection -> redisConnection.del(slotKeys));
+            }
+            return;
+        }
+        redisTemplate.execute((RedisCallback<Long>) redisConnection -> redisConnection.del(dedupKeys));
+    }
+
+    @Override
+    public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+        if (dedupElements.isEmpty()) {
+            return;
+        }
+        if (clusterHashTagShards > 0) {
+            final byte[] ttl = String.valueOf(TimeUnit.MINUTES.toMillis(dedupRecordReserveMinutes)).getBytes(StandardCharsets.UTF_8);
+            final byte[][] dedupKeys = buildDedupMessageRedisKeys(dedupElements);
+            for (List<Integer> positions : RedisClusterSlots.groupBySlot(dedupKeys).values()) {
+                final byte[][] keysAndArgs = select(dedupKeys, positions, 2);
+                keysAndArgs[positions.size()] = CONSUMED_VALUE;
+                keysAndArgs[positions.size() + 1] = ttl;
+                redisTemplate.execute((RedisCallback<Long>) redisConnection -> RedisScriptSupport.eval(redisConnection, BATCH_SET_SCRIPT, ReturnType.INTEGER, positions.size(), keysAndArgs));
+            }
+            return;
+        }
+        final Expiration expiration = reserveTtl(dedupRecordReserveMinutes).expiration;
+        redisTemplate.executePipelined((RedisCallback<Object>) redisConnection -> {
+            for (DedupElement dedupElement : dedupElements) {
+                redisConnection.set(buildDedupMessageRedisKeyBytes(dedupElement), CONSUMED_VALUE, expiration, RedisStringCommands.SetOption.UPSERT);
+            }
+            return null;
+        });
+    }
+
+    @Override
+    public boolean supportsLeaseRenewal() {
+        return true;
+    }
+
+    @Override
+    public void batchRenewConsuming(List<DedupElement> dedupElements, long leaseMilliSeconds) {
+        if (dedupElements.isEmpty()) {
+            return;
+        }
+        final byte[] lease = String.valueOf(leaseMilliSeconds).getBytes(StandardCharsets.UTF_8);
+        final byte[][] dedupKeys = buildDedupMessageRedisKeys(dedupElements);
+        if (clusterHashTagShards > 0) {
+            for (List<Integer> positions : RedisClusterSlots.groupBySlot(dedupKeys).values()) {
+                renew(select(dedupKeys, positions, 2), positions.size(), lease);
+            }
+            return;
+        }
+        renew(Arrays.copyOf(dedupKeys, dedupKeys.length + 2), dedupKeys.length, lease);
+    }
+
+    private void renew(byte[][] keysAndArgs, int numKeys, byte[] lease) {
+        keysAndArgs[numKeys] = CONSUMING_VALUE;
+        keysAndArgs[numKeys + 1] = lease;
+        redisTemplate.execute((RedisCallback<Long>) redisConnection -> RedisScriptSupport.eval(redisConnection, RENEW_SCRIPT, ReturnType.INTEGER, numKeys, keysAndArgs));
+    }
+
+    /**
+     * 集群模式的批量setnx：按slot拆分，每个slot一次脚本调用，结果按入参顺序合并
+     */
+    private List<Boolean> clusterBatchSetConsumingIfNX(List<DedupElement> dedupElements, byte[] ttl) {
+        final byte[][] dedupKeys = buildDedupMessageRedisKeys(dedupElements);
+        Boolean[] result = new Boolean[dedupKeys.length];
+        for (List<Integer> positions : RedisClusterSlots.groupBySlot(dedupKeys).values()) {
+            final byte[][] keysAndArgs = select(dedupKeys, positions, 2);
+            keysAndArgs[positions.size()] = CONSUMING_VALUE;
+            keysAndArgs[positions.size() + 1] = ttl;
+            List<Object> slotResult = redisTemplate.execute((RedisCallback<List<Object>>) redisConnection -> RedisScriptSupport.eval(redisConnection, BATCH_SET_NX_SCRIPT, ReturnType.MULTI, positions.size(), keysAndArgs));
+            for (int i = 0; i < positions.size(); i++) {
+                result[positions.get(i)] = slotResult != null && i < slotResult.size() && Long.valueOf(1L).equals(slotResult.get(i));
+            }
+        }
+        return Arrays.asList(result);
+    }
+
+    private byte[][] buildDedupMessageRedisKeys(List<DedupElement> dedupElements) {
+        final byte[][] dedupKeys = new byte[dedupElements.size()][];
+        for (int i = 0; i < dedupKeys.length; i++) {
+            dedupKeys[i] = buildDedupMessageRedisKeyBytes(dedupElements.get(i));
+        }
+        return dedupKeys;
+    }
+
+    /**
+     * 取出指定位置的key，并在末尾预留extraArgs个参数位置
+     */
+    private static byte[][] select(byte[][] keys, List<Integer> positions, int extraArgs) {
+        byte[][] selected = new byte[positions.size() + extraArgs][];
+        for (int i = 0; i < positions.size(); i++) {
+            selected[i] = keys[positions.get(i)];
+        }
+        return selected;
     }
 
     @Override
@@ -63,14 +288,76 @@ public class RedisPersist implements IPersist {
         return buildDedupMessageRedisKey(dedupElement);
     }
 
-    private String buildDedupMessageRedisKey(DedupElement dedupElement) {
+    String buildDedupMessageRedisKey(DedupElement dedupElement) {
         if (StringUtils.isEmpty(dedupElement.getMsgUniqKey())) {
             return null;
         } else {
-            //示例：MQ:CONSUME_DEDUP:APPNAME:TOPIC:TAG:APP_DEDUP_KEY
-            String tag = StringUtils.isNotBlank(dedupElement.getTag()) ? COLON + dedupElement.getTag() : "";
-            String prefix = "MQ:CONSUME_DEDUP:" + dedupElement.getApplication() + COLON + dedupElement.getTopic() + tag + COLON + dedupElement.getConsumerGroup();
-            return prefix + COLON + dedupElement.getMsgUniqKey();
+            //示例：MQ:CONSUME_DEDUP:APPNAME:TOPIC:TAG:GROUP:APP_DEDUP_KEY，集群模式 MQ:CONSUME_DEDUP:{APPNAME:TOPIC:TAG:GROUP:3}:APP_DEDUP_KEY
+            if (clusterHashTagShards > 0) {
+                return DedupSubscription.buildClusterRedisKeyPrefix(dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getConsumerGroup(),
+                        DedupSubscription.hashTagShard(dedupElement.getMsgUniqKey(), clusterHashTagShards)) + dedupElement.getMsgUniqKey();
+            }
+            DedupSubscription subscription = dedupElement.getSubscription();
+            if (subscription != null && subscription.matches(dedupElement)) {
+                return subscription.getRedisKeyPrefix() + dedupElement.getMsgUniqKey();
+            }
+            return DedupSubscription.buildRedisKeyPrefix(dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getConsumerGroup()) + dedupElement.getMsgUniqKey();
+        }
+    }
+
+    /**
+     * 与 {@link #buildDedupMessageRedisKey(DedupElement)} 相同的key，直接编码为字节，有预先计算的订阅前缀时不产生中间字符串
+     */
+    byte[] buildDedupMessageRedisKeyBytes(DedupElement dedupElement) {
+        if (StringUtils.isEmpty(dedupElement.getMsgUniqKey())) {
+            return null;
+        }
+        DedupSubscription subscription = dedupElement.getSubscription();
+        if (clusterHashTagShards > 0) {
+            if (subscription != null && subscription.matches(dedupElement)) {
+                return subscription.clusterRedisKey(dedupElement.getMsgUniqKey(), clusterHashTagShards);
+            }
+            return buildDedupMessageRedisKey(dedupElement).getBytes(StandardCharsets.UTF_8);
+        }
+        if (subscription != null && subscription.matches(dedupElement)) {
+            return subscription.redisKey(dedupElement.getMsgUniqKey());
+        }
+        byte[] prefix = DedupSubscription.buildRedisKeyPrefix(dedupElement.getApplication(), dedupElement.getTopic(), dedupElement.getTag(), dedupElement.getConsumerGroup()).getBytes(StandardCharsets.UTF_8);
+        return DedupSubscription.concat(prefix, dedupElement.getMsgUniqKey());
+    }
+
+    private CachedTtl processingTtl(long dedupProcessingExpireMilliSeconds) {
+        CachedTtl cached = cachedProcessingTtls.get(dedupProcessingExpireMilliSeconds);
+        if (cached == null) {
+            cached = new CachedTtl(dedupProcessingExpireMilliSeconds, Expiration.milliseconds(dedupProcessingExpireMilliSeconds));
+            if (cachedProcessingTtls.size() < MAX_CACHED_TTLS) {
+                cachedProcessingTtls.putIfAbsent(dedupProcessingExpireMilliSeconds, cached);
+            }
+        }
+        return cached;
+    }
+
+    private CachedTtl reserveTtl(long dedupRecordReserveMinutes) {
+        CachedTtl cached = cachedReserveTtls.get(dedupRecordReserveMinutes);
+        if (cached == null) {
+            cached = new CachedTtl(dedupRecordReserveMinutes, Expiration.from(dedupRecordReserveMinutes, TimeUnit.MINUTES));
+            if (cachedReserveTtls.size() < MAX_CACHED_TTLS) {
+                cachedReserveTtls.putIfAbsent(dedupRecordReserveMinutes, cached);
+            }
+        }
+        return cached;
+    }
+
+    /**
+     * 过期时间及其编码结果
+     */
+    private static class CachedTtl {
+        private final byte[] bytes;
+        private final Expiration expiration;
+
+        CachedTtl(long value, Expiration expiration) {
+            this.bytes = String.valueOf(value).getBytes(StandardCharsets.UTF_8);
+            this.expiration = expiration;
         }
     }
 
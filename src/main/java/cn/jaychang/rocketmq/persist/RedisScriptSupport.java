@@ -0,0 +1,38 @@
+package cn.jaychang.rocketmq.persist;
+
+
+import org.springframework.data.redis.connection.RedisConnection;
+import org.springframework.data.redis.connection.ReturnType;
+import org.springframework.data.redis.core.script.RedisScript;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 以二进制key执行Lua脚本：优先EVALSHA，Redis中没有缓存该脚本（NOSCRIPT）时退化为EVAL，EVAL后脚本即被缓存
+ */
+final class RedisScriptSupport {
+
+    private RedisScriptSupport() {
+    }
+
+    static <T> T eval(RedisConnection redisConnection, RedisScript<?> script, ReturnType returnType, int numKeys, byte[]... keysAndArgs) {
+        try {
+            return redisConnection.evalSha(script.getSha1(), returnType, numKeys, keysAndArgs);
+        } catch (RuntimeException e) {
+            if (!isNoScriptError(e)) {
+                throw e;
+            }
+            return redisConnection.eval(script.getScriptAsString().getBytes(StandardCharsets.UTF_8), returnType, numKeys, keysAndArgs);
+        }
+    }
+
+    private static boolean isNoScriptError(Throwable e) {
+        while (e != null) {
+            if (e.getMessage() != null && e.getMessage().contains("NOSCRIPT")) {
+                return true;
+            }
+            e = e.getCause();
+        }
+        return false;
+    }
+}
@@ -0,0 +1,400 @@
+package cn.jaychang.rocketmq.persist;
+
+
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+import cn.jaychang.rocketmq.core.ConsumeStatusEnum;
+import cn.jaychang.rocketmq.core.DegradeModeEnum;
+import cn.jaychang.rocketmq.metrics.DedupMetrics;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * 容错装饰器，为存储操作设置超时并熔断，存储变慢或不可用时消费线程最多阻塞timeoutMilliSeconds
+ * 1.每次操作在有界线程池中执行并限时等待，超时、异常计为失败，交给 {@link DedupCircuitBreaker} 统计
+ * 线程池满时在超时时间内等待空位，等待超时同样降级，但不计为失败（本地并发高不代表存储不可用，不应打开熔断）
+ * 2.失败或熔断打开时按降级方式返回：LOCAL在本地有界内存中去重，PASS_THROUGH不去重直接消费，CONSUME_LATER视为消费中稍后重试
+ * 3.熔断打开期间不再访问存储，openMilliSeconds后放行一次探测调用，成功即恢复
+ * 注：每次操作多一次线程切换；降级期间的写入（标记已消费/删除）不会补写到存储，记录以存储中的为准
+ */
+@Slf4j
+public class ResilientPersist implements IPersist {
+
+    private static final int LOCAL_SEGMENT_COUNT = 16;
+
+    private final IPersist delegate;
+
+    private final DedupCircuitBreaker circuitBreaker;
+
+    private final long timeoutMilliSeconds;
+
+    private final DegradeModeEnum degradeMode;
+
+    private final DedupMetrics metrics;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * 执行中及排队中的操作数上限（线程数的2倍），排队时间也计入超时，不需要太多
+     */
+    private final Semaphore pending;
+
+    /**
+     * LOCAL降级方式的本地记录，其他降级方式为null
+     */
+    private final LinkedHashMap<DedupElement, LocalRecord>[] localSegments;
+
+    /**
+     * @param threads         执行存储操作的线程数，即同时等待存储的最大操作数
+     * @param localMaxEntries LOCAL降级方式最多在本地保存多少条记录（LRU淘汰）
+     */
+    @SuppressWarnings("unchecked")
+    public ResilientPersist(IPersist delegate, DedupCircuitBreaker circuitBreaker, long timeoutMilliSeconds, int threads,
+                            DegradeModeEnum degradeMode, int localMaxEntries, DedupMetrics metrics) {
+        if (delegate == null || circuitBreaker == null) {
+            throw new NullPointerException("delegate persist or circuit breaker is null");
+        }
+        if (timeoutMilliSeconds <= 0 || threads <= 0) {
+            throw new IllegalArgumentException("timeoutMilliSeconds and threads must be positive");
+        }
+        this.delegate = delegate;
+        this.circuitBreaker = circuitBreaker;
+        this.timeoutMilliSeconds = timeoutMilliSeconds;
+        this.degradeMode = degradeMode == null ? DegradeModeEnum.CONSUME_LATER : degradeMode;
+        this.metrics = metrics == null ? DedupMetrics.NOOP : metrics;
+        //队列长度由pending限制，超时放弃的操作留在队列中不占用名额
+        this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new BasicThreadFactory.Builder().daemon(true).namingPattern("DedupResilientPersistThread-%d").build(),
+                new ThreadPoolExecutor.AbortPolicy());
+        this.pending = new Semaphore(threads * 2);
+        if (DegradeModeEnum.LOCAL.equals(this.degradeMode)) {
+            final int segmentMaxEntries = Math.max(1, localMaxEntries / LOCAL_SEGMENT_COUNT);
+            this.localSegments = new LinkedHashMap[LOCAL_SEGMENT_COUNT];
+            for (int i = 0; i < LOCAL_SEGMENT_COUNT; i++) {
+                localSegments[i] = new LinkedHashMap<DedupElement, LocalRecord>(16, 0.75f, true) {
+                    private static final long serialVersionUID = -2937615843018745913L;
+
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<DedupElement, LocalRecord> eldest) {
+                        return size() > segmentMaxEntries;
+                    }
+                };
+            }
+        } else {
+            this.localSegments = null;
+        }
+        this.metrics.bindCircuitBreaker(circuitBreaker);
+    }
+
+    @Override
+    public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        return execute(dedupElement, DedupMetrics.OPERATION_CLAIM,
+                () -> delegate.setConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds),
+                () -> degradedClaim(dedupElement, dedupProcessingExpireMilliSeconds).isClaimed());
+    }
+
+    @Override
+    public ClaimResultEnum claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        return execute(dedupElement, DedupMetrics.OPERATION_CLAIM,
+                () -> delegate.claim(dedupElement, dedupProcessingExpireMilliSeconds),
+                () -> degradedClaim(dedupElement, dedupProcessingExpireMilliSeconds));
+    }
+
+    @Override
+    public void delete(DedupElement dedupElement) {
+        removeLocal(dedupElement);
+        execute(dedupElement, DedupMetrics.OPERATION_DELETE, () -> {
+            delegate.delete(dedupElement);
+            return null;
+        }, () -> null);
+    }
+
+    @Override
+    public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        markLocalConsumedIfPresent(dedupElement, dedupRecordReserveMinutes);
+        execute(dedupElement, DedupMetrics.OPERATION_MARK_CONSUMED, () -> {
+            delegate.markConsumed(dedupElement, dedupRecordReserveMinutes);
+            return null;
+        }, () -> null);
+    }
+
+    @Override
+    public Integer getConsumeStatus(DedupElement dedupElement) {
+        return execute(dedupElement, DedupMetrics.OPERATION_STATUS,
+                () -> delegate.getConsumeStatus(dedupElement),
+                () -> degradedConsumeStatus(dedupElement));
+    }
+
+    @Override
+    public List<Boolean> batchSetConsumingIfNX(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        if (dedupElements.isEmpty()) {
+            return Collections.emptyList();
+        }
+        return execute(dedupElements.get(0), DedupMetrics.OPERATION_CLAIM,
+                () -> delegate.batchSetConsumingIfNX(dedupElements, dedupProcessingExpireMilliSeconds),
+                () -> {
+                    List<Boolean> result = new ArrayList<>(dedupElements.size());
+                    for (DedupElement dedupElement : dedupElements) {
+                        result.add(degradedClaim(dedupElement, dedupProcessingExpireMilliSeconds).isClaimed());
+                    }
+                    return result;
+                });
+    }
+
+    @Override
+    public void batchDelete(List<DedupElement> dedupElements) {
+        if (dedupElements.isEmpty()) {
+            return;
+        }
+        for (DedupElement dedupElement : dedupElements) {
+            removeLocal(dedupElement);
+        }
+        execute(dedupElements.get(0), DedupMetrics.OPERATION_DELETE, () -> {
+            delegate.batchDelete(dedupElements);
+            return null;
+        }, () -> null);
+    }
+
+    @Override
+    public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+        if (dedupElements.isEmpty()) {
+            return;
+        }
+        for (DedupElement dedupElement : dedupElements) {
+            markLocalConsumedIfPresent(dedupElement, dedupRecordReserveMinutes);
+        }
+        execute(dedupElements.get(0), DedupMetrics.OPERATION_MARK_CONSUMED, () -> {
+            delegate.batchMarkConsumed(dedupElements, dedupRecordReserveMinutes);
+            return null;
+        }, () -> null);
+    }
+
+    @Override
+    public boolean supportsLeaseRenewal() {
+        return delegate.supportsLeaseRenewal();
+    }
+
+    @Override
+    public void batchRenewConsuming(List<DedupElement> dedupElements, long leaseMilliSeconds) {
+        if (dedupElements.isEmpty()) {
+            return;
+        }
+        if (localSegments != null) {
+            long expireAt = System.currentTimeMillis() + leaseMilliSeconds;
+            for (DedupElement dedupElement : dedupElements) {
+                LinkedHashMap<DedupElement, LocalRecord> segment = localSegmentFor(dedupElement);
+                synchronized (segment) {
+                    LocalRecord record = segment.get(dedupElement);
+                    if (record != null && record.consumeStatus == ConsumeStatusEnum.CONSUMING.getCode()) {
+                        segment.put(dedupElement, new LocalRecord(record.consumeStatus, expireAt));
+                    }
+                }
+            }
+        }
+        execute(dedupElements.get(0), DedupMetrics.OPERATION_RENEW, () -> {
+            delegate.batchRenewConsuming(dedupElements, leaseMilliSeconds);
+            return null;
+        }, () -> null);
+    }
+
+    @Override
+    public String toPrintInfo(DedupElement dedupElement) {
+        return delegate.toPrintInfo(dedupElement);
+    }
+
+    @Override
+    public void clearExpiredRecord() {
+        if (localSegments != null) {
+            long now = System.currentTimeMillis();
+            for (LinkedHashMap<DedupElement, LocalRecord> segment : localSegments) {
+                synchronized (segment) {
+                    segment.values().removeIf(record -> record.expireAt < now);
+                }
+            }
+        }
+        //后台清理不限时，熔断打开时跳过
+        if (circuitBreaker.getState() != DedupCircuitBreaker.State.OPEN) {
+            delegate.clearExpiredRecord();
+        }
+    }
+
+    @Override
+    public void shutdown() {
+        executor.shutdownNow();
+        delegate.shutdown();
+    }
+
+    public DedupCircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * 限时执行存储操作，失败或熔断打开时返回降级结果
+     */
+    private <R> R execute(DedupElement dedupElement, String operation, Supplier<R> action, Supplier<R> fallback) {
+        if (!circuitBreaker.tryAcquire()) {
+            metrics.recordDegraded(dedupElement, operation);
+            return fallback.get();
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMilliSeconds);
+        try {
+            //等待空位的时间计入超时，等不到时降级但不计为存储失败
+            if (!pending.tryAcquire(timeoutMilliSeconds, TimeUnit.MILLISECONDS)) {
+                circuitBreaker.release();
+                log.warn("too many pending dedup {} operations, degrade to {}, dedupKey : {}", operation, degradeMode, delegate.toPrintInfo(dedupElement));
+                metrics.recordDegraded(dedupElement, operation);
+                return fallback.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            circuitBreaker.release();
+            metrics.recordDegraded(dedupElement, operation);
+            return fallback.get();
+        }
+        //超时后还没开始执行的操作不再执行，名额由放弃的一方归还
+        final AtomicBoolean started = new AtomicBoolean();
+        Future<R> future;
+        try {
+            future = executor.submit(() -> {
+                if (!started.compareAndSet(false, true)) {
+                    return null;
+                }
+                try {
+                    return action.get();
+                } finally {
+                    pending.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            //已关闭
+            pending.release();
+            circuitBreaker.release();
+            metrics.recordDegraded(dedupElement, operation);
+            return fallback.get();
+        }
+        try {
+            R result = future.get(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            circuitBreaker.onSuccess();
+            return result;
+        } catch (TimeoutException e) {
+            abandon(future, started);
+            circuitBreaker.onFailure();
+            log.warn("dedup {} timed out after {}ms, degrade to {}, dedupKey : {}", operation, timeoutMilliSeconds, degradeMode, delegate.toPrintInfo(dedupElement));
+        } catch (ExecutionException e) {
+            circuitBreaker.onFailure();
+            log.warn("dedup {} failed, degrade to {}, dedupKey : {}", operation, degradeMode, delegate.toPrintInfo(dedupElement), e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            abandon(future, started);
+            //释放可能持有的半开探测
+            circuitBreaker.onFailure();
+        }
+        metrics.recordDegraded(dedupElement, operation);
+        return fallback.get();
+    }
+
+    /**
+     * 放弃等待：还没开始执行时由当前线程归还名额，已在执行时中断，由执行线程结束后归还
+     */
+    private void abandon(Future<?> future, AtomicBoolean started) {
+        if (started.compareAndSet(false, true)) {
+            pending.release();
+        }
+        future.cancel(true);
+    }
+
+    private ClaimResultEnum degradedClaim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        switch (degradeMode) {
+            case LOCAL:
+                return localClaim(dedupElement, dedupProcessingExpireMilliSeconds);
+            case PASS_THROUGH:
+                return ClaimResultEnum.CLAIMED;
+            default:
+                return ClaimResultEnum.CONSUMING;
+        }
+    }
+
+    private Integer degradedConsumeStatus(DedupElement dedupElement) {
+        switch (degradeMode) {
+            case LOCAL:
+                LinkedHashMap<DedupElement, LocalRecord> segment = localSegmentFor(dedupElement);
+                synchronized (segment) {
+                    LocalRecord record = segment.get(dedupElement);
+                    return record == null || record.expireAt < System.currentTimeMillis() ? null : record.consumeStatus;
+                }
+            case PASS_THROUGH:
+                return null;
+            default:
+                return ConsumeStatusEnum.CONSUMING.getCode();
+        }
+    }
+
+    private ClaimResultEnum localClaim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        long now = System.currentTimeMillis();
+        LinkedHashMap<DedupElement, LocalRecord> segment = localSegmentFor(dedupElement);
+        synchronized (segment) {
+            LocalRecord record = segment.get(dedupElement);
+            if (record != null && record.expireAt >= now) {
+                return ClaimResultEnum.ofConsumeStatus(record.consumeStatus);
+            }
+            segment.put(dedupElement, new LocalRecord(ConsumeStatusEnum.CONSUMING.getCode(), now + dedupProcessingExpireMilliSeconds));
+            return record == null ? ClaimResultEnum.CLAIMED : ClaimResultEnum.TAKEN_OVER;
+        }
+    }
+
+    /**
+     * 降级期间在本地抢占的记录随消费结果更新，存储正常时不写本地
+     */
+    private void markLocalConsumedIfPresent(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        if (localSegments == null) {
+            return;
+        }
+        LinkedHashMap<DedupElement, LocalRecord> segment = localSegmentFor(dedupElement);
+        synchronized (segment) {
+            if (segment.containsKey(dedupElement)) {
+                segment.put(dedupElement, new LocalRecord(ConsumeStatusEnum.CONSUMED.getCode(),
+                        System.currentTimeMillis() + TimeUnit.MINUTES.toMillis(dedupRecordReserveMinutes)));
+            }
+        }
+    }
+
+    private void removeLocal(DedupElement dedupElement) {
+        if (localSegments == null) {
+            return;
+        }
+        LinkedHashMap<DedupElement, LocalRecord> segment = localSegmentFor(dedupElement);
+        synchronized (segment) {
+            segment.remove(dedupElement);
+        }
+    }
+
+    private LinkedHashMap<DedupElement, LocalRecord> localSegmentFor(DedupElement dedupElement) {
+        int h = dedupElement.hashCode();
+        return localSegments[(h ^ (h >>> 16)) & (LOCAL_SEGMENT_COUNT - 1)];
+    }
+
+    private static class LocalRecord {
+        private final int consumeStatus;
+        private final long expireAt;
+
+        LocalRecord(int consumeStatus, long expireAt) {
+            this.consumeStatus = consumeStatus;
+            this.expireAt = expireAt;
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package cn.jaychang.rocketmq.persist;
+
+
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 客户端分片存储，按去重记录摘要在一致性哈希环上路由到多个同类型的存储（多个数据源或多个Redis实例）之一
+ * 1.每个分片在环上有virtualNodes个虚拟节点，新增/减少分片时只有约1/N的记录改变路由（这部分记录的去重历史会失效，由新分片重新记录）
+ * 2.批量操作按分片拆分后分别调用各分片的批量接口，结果按入参顺序合并
+ * 3.清理过期记录时所有分片并行执行
+ * 注：分片列表的顺序决定环上的位置，调整配置时只应在末尾追加
+ */
+@Slf4j
+public class ShardingPersist implements IPersist {
+
+    private final List<IPersist> shards;
+
+    private final TreeMap<Long, Integer> ring = new TreeMap<>();
+
+    private final ExecutorService purgeExecutor;
+
+    public ShardingPersist(List<IPersist> shards, int virtualNodes) {
+        if (shards == null || shards.isEmpty()) {
+            throw new IllegalArgumentException("shards must not be empty");
+        }
+        if (virtualNodes <= 0) {
+            throw new IllegalArgumentException("virtualNodes must be positive");
+        }
+        this.shards = Collections.unmodifiableList(new ArrayList<>(shards));
+        for (int i = 0; i < shards.size(); i++) {
+            for (int v = 0; v < virtualNodes; v++) {
+                ring.put(toLong(DedupKeyHasher.md5("SHARD-" + i, String.valueOf(v))), i);
+            }
+        }
+        this.purgeExecutor = new ThreadPoolExecutor(shards.size(), shards.size(), 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new BasicThreadFactory.Builder().daemon(true).namingPattern("DedupShardPurgeThread-%d").build());
+    }
+
+    @Override
+    public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        return shardFor(dedupElement).setConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds);
+    }
+
+    @Override
+    public ClaimResultEnum claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        return shardFor(dedupElement).claim(dedupElement, dedupProcessingExpireMilliSeconds);
+    }
+
+    @Override
+    public void delete(DedupElement dedupElement) {
+        shardFor(dedupElement).delete(dedupElement);
+    }
+
+    @Override
+    public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        shardFor(dedupElement).markConsumed(dedupElement, dedupRecordReserveMinutes);
+    }
+
+    @Override
+    public Integer getConsumeStatus(DedupElement dedupElement) {
+        return shardFor(dedupElement).getConsumeStatus(dedupElement);
+    }
+
+    @Override
+    public List<Boolean> batchSetConsumingIfNX(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        if (shards.size() == 1) {
+            return shards.get(0).batchSetConsumingIfNX(dedupElements, dedupProcessingExpireMilliSeconds);
+        }
+        List<List<Integer>> positions = new ArrayList<>(shards.size());
+        List<List<DedupElement>> groups = groupByShard(dedupElements, positions);
+        Boolean[] result = new Boolean[dedupElements.size()];
+        for (int i = 0; i < groups.size(); i++) {
+            if (groups.get(i).isEmpty()) {
+                continue;
+            }
+            List<Boolean> shardResult = shards.get(i).batchSetConsumingIfNX(groups.get(i), dedupProcessingExpireMilliSeconds);
+            for (int j = 0; j < shardResult.size(); j++) {
+                result[positions.get(i).get(j)] = shardResult.get(j);
+            }
+        }
+        return Arrays.asList(result);
+    }
+
+    @Override
+    public void batchDelete(List<DedupElement> dedupElements) {
+        List<List<DedupElement>> groups = groupByShard(dedupElements, null);
+        for (int i = 0; i < groups.size(); i++) {
+            if (!groups.get(i).isEmpty()) {
+                shards.get(i).batchDelete(groups.get(i));
+            }
+        }
+    }
+
+    @Override
+    public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+        List<List<DedupElement>> groups = groupByShard(dedupElements, null);
+        for (int i = 0; i < groups.size(); i++) {
+            if (!groups.get(i).isEmpty()) {
+                shards.get(i).batchMarkConsumed(groups.get(i), dedupRecordReserveMinutes);
+            }
+        }
+    }
+
+    @Override
+    public boolean supportsLeaseRenewal() {
+        for (IPersist shard : shards) {
+            if (!shard.supportsLeaseRenewal()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void batchRenewConsuming(List<DedupElement> dedupElements, long leaseMilliSeconds) {
+        List<List<DedupElement>> groups = groupByShard(dedupElements, null);
+        for (int i = 0; i < groups.size(); i++) {
+            if (!groups.get(i).isEmpty()) {
+                shards.get(i).batchRenewConsuming(groups.get(i), leaseMilliSeconds);
+            }
+        }
+    }
+
+    @Override
+    public String toPrintInfo(DedupElement dedupElement) {
+        return shardFor(dedupElement).toPrintInfo(dedupElement);
+    }
+
+    @Override
+    public void clearExpiredRecord() {
+        List<CompletableFuture<Void>> futures = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            final int index = i;
+            futures.add(CompletableFuture.runAsync(() -> {
+                try {
+                    shards.get(index).clearExpiredRecord();
+                } catch (Exception e) {
+                    log.error("error when clear expired dedup record of shard {}", index, e);
+                }
+            }, purgeExecutor));
+        }
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0])).join();
+    }
+
+    @Override
+    public void shutdown() {
+        purgeExecutor.shutdownNow();
+        for (IPersist shard : shards) {
+            try {
+                shard.shutdown();
+            } catch (Exception e) {
+                log.error("error when shutdown dedup persist shard {}", shard, e);
+            }
+        }
+    }
+
+    private IPersist shardFor(DedupElement dedupElement) {
+        return shards.get(shardIndex(dedupElement));
+    }
+
+    private int shardIndex(DedupElement dedupElement) {
+        if (shards.size() == 1) {
+            return 0;
+        }
+        Map.Entry<Long, Integer> entry = ring.ceilingEntry(toLong(DedupKeyHasher.hash(dedupElement)));
+        return entry != null ? entry.getValue() : ring.firstEntry().getValue();
+    }
+
+    /**
+     * 按分片拆分，positions不为空时同时记录每条记录在入参中的位置
+     */
+    private List<List<DedupElement>> groupByShard(List<DedupElement> dedupElements, List<List<Integer>> positions) {
+        List<List<DedupElement>> groups = new ArrayList<>(shards.size());
+        for (int i = 0; i < shards.size(); i++) {
+            groups.add(new ArrayList<>());
+            if (positions != null) {
+                positions.add(new ArrayList<>());
+            }
+        }
+        for (int i = 0; i < dedupElements.size(); i++) {
+            int index = shardIndex(dedupElements.get(i));
+            groups.get(index).add(dedupElements.get(i));
+            if (positions != null) {
+                positions.get(index).add(i);
+            }
+        }
+        return groups;
+    }
+
+    private static long toLong(byte[] hash) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (hash[i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -0,0 +1,149 @@
+package cn.jaychang.rocketmq.persist;
+
+
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+import cn.jaychang.rocketmq.core.ConsumeStatusEnum;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+
+/**
+ * 分层存储：前端（通常是Redis）负责抢占和热数据，后端（通常是MySQL）持久保存已消费记录
+ * 1.抢占只在前端进行，消费中状态不写后端；前端抢占成功后再查一次后端，后端已消费（前端记录已过期或被淘汰）时回填前端并按已消费处理
+ * 2.markConsumed先写后端再写前端，前端只保留frontReserveMinutes（不超过dedupRecordReserveMinutes），以控制前端内存
+ * 3.查询消费状态前端未命中时查后端，后端已消费时回填前端
+ * 4.delete只删除前端（后端不存在消费中记录）
+ * 注：后端写入可以通过 {@link WriteBehindPersist} 装饰为异步回写，此时回写完成前前端已是已消费状态，不影响去重
+ */
+@Slf4j
+public class TieredPersist implements IPersist {
+
+    private final IPersist front;
+
+    private final IPersist back;
+
+    private final long frontReserveMinutes;
+
+    public TieredPersist(IPersist front, IPersist back, long frontReserveMinutes) {
+        if (front == null || back == null) {
+            throw new NullPointerException("front or back persist is null");
+        }
+        if (frontReserveMinutes <= 0) {
+            throw new IllegalArgumentException("frontReserveMinutes must be positive");
+        }
+        this.front = front;
+        this.back = back;
+        this.frontReserveMinutes = frontReserveMinutes;
+    }
+
+    @Override
+    public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        return claim(dedupElement, dedupProcessingExpireMilliSeconds).isClaimed();
+    }
+
+    @Override
+    public ClaimResultEnum claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        ClaimResultEnum claimResult = front.claim(dedupElement, dedupProcessingExpireMilliSeconds);
+        if (!claimResult.isClaimed()) {
+            return claimResult;
+        }
+        //前端没有记录，以后端的已消费记录为准
+        if (consumedInBack(dedupElement)) {
+            return ClaimResultEnum.CONSUMED;
+        }
+        return claimResult;
+    }
+
+    @Override
+    public void delete(DedupElement dedupElement) {
+        front.delete(dedupElement);
+    }
+
+    @Override
+    public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        back.markConsumed(dedupElement, dedupRecordReserveMinutes);
+        front.markConsumed(dedupElement, Math.min(dedupRecordReserveMinutes, frontReserveMinutes));
+    }
+
+    @Override
+    public Integer getConsumeStatus(DedupElement dedupElement) {
+        Integer consumeStatus = front.getConsumeStatus(dedupElement);
+        if (consumeStatus != null) {
+            return consumeStatus;
+        }
+        Integer backConsumeStatus = back.getConsumeStatus(dedupElement);
+        if (ConsumeStatusEnum.CONSUMED.getCode().equals(backConsumeStatus)) {
+            refillFront(dedupElement);
+            return backConsumeStatus;
+        }
+        return null;
+    }
+
+    @Override
+    public void batchDelete(List<DedupElement> dedupElements) {
+        front.batchDelete(dedupElements);
+    }
+
+    @Override
+    public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+        back.batchMarkConsumed(dedupElements, dedupRecordReserveMinutes);
+        front.batchMarkConsumed(dedupElements, Math.min(dedupRecordReserveMinutes, frontReserveMinutes));
+    }
+
+    @Override
+    public boolean supportsLeaseRenewal() {
+        return front.supportsLeaseRenewal();
+    }
+
+    @Override
+    public void batchRenewConsuming(List<DedupElement> dedupElements, long leaseMilliSeconds) {
+        front.batchRenewConsuming(dedupElements, leaseMilliSeconds);
+    }
+
+    @Override
+    public String toPrintInfo(DedupElement dedupElement) {
+        return front.toPrintInfo(dedupElement);
+    }
+
+    @Override
+    public void clearExpiredRecord() {
+        front.clearExpiredRecord();
+        back.clearExpiredRecord();
+    }
+
+    @Override
+    public void shutdown() {
+        try {
+            front.shutdown();
+        } finally {
+            back.shutdown();
+        }
+    }
+
+    /**
+     * 后端已消费时回填前端，并释放本次在前端抢占的消费中记录
+     */
+    private boolean consumedInBack(DedupElement dedupElement) {
+        Integer backConsumeStatus;
+        try {
+            backConsumeStatus = back.getConsumeStatus(dedupElement);
+        } catch (Exception e) {
+            //后端不可用时以前端为准，最多导致前端过期之后的极少数重复消费
+            log.error("error when get consume status from back persist, use front result {}", dedupElement, e);
+            return false;
+        }
+        if (!ConsumeStatusEnum.CONSUMED.getCode().equals(backConsumeStatus)) {
+            return false;
+        }
+        refillFront(dedupElement);
+        return true;
+    }
+
+    private void refillFront(DedupElement dedupElement) {
+        try {
+            front.markConsumed(dedupElement, frontReserveMinutes);
+        } catch (Exception e) {
+            log.warn("refill front persist fail {}", dedupElement, e);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package cn.jaychang.rocketmq.persist;
+
+
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+import lombok.Setter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 异步回写（write-behind）装饰器，装饰真实的 {@link IPersist}
+ * 1.消费完成后的markConsumed/delete先放入有界队列，由后台线程按条数（maxBatchSize）或等待时间（maxDelayMilliSeconds）攒批后调用批量接口写入，消费线程不再等待存储
+ * 2.同一批次内同一条消息的多次操作只保留最后一次
+ * 3.队列满时消费线程阻塞等待（背压）；shutdown时先把队列中的操作全部写完再关闭真实存储
+ * 4.写入之前该消息仍是消费中状态，重复消息会被延迟消费，不会被重复消费；进程异常退出丢失的操作在消费中状态过期后由消息重投补偿
+ * 5.开启租约续期时，操作在队列中等待期间在 {@link LeaseRenewer} 上登记，写入完成后注销，消费中状态不会在写入之前过期
+ * 注：延迟的delete按去重键删除，不比较持有者；未开启租约时如果消费中状态在回写之前过期并被其他节点接管，会删掉其他节点的消费中记录，导致重复消费
+ * 因此启动时校验maxDelayMilliSeconds小于dedupProcessingExpireMilliSeconds（含各策略），且应远小于，队列积压同样会推迟写入
+ */
+@Slf4j
+public class WriteBehindPersist implements IPersist {
+
+    private final IPersist delegate;
+
+    private final BlockingQueue<PendingOperation> queue;
+
+    private final int maxBatchSize;
+
+    private final long maxDelayMilliSeconds;
+
+    private final Thread flushThread;
+
+    private volatile boolean running = true;
+
+    /**
+     * 租约续期，为空表示不开启
+     */
+    @Setter
+    private volatile LeaseRenewer leaseRenewer;
+
+    public WriteBehindPersist(IPersist delegate, int bufferSize, int maxBatchSize, long maxDelayMilliSeconds) {
+        if (delegate == null) {
+            throw new NullPointerException("delegate persist is null");
+        }
+        if (bufferSize <= 0 || maxBatchSize <= 0 || maxDelayMilliSeconds < 0) {
+            throw new IllegalArgumentException("bufferSize and maxBatchSize must be positive, maxDelayMilliSeconds must not be negative");
+        }
+        this.delegate = delegate;
+        this.queue = new ArrayBlockingQueue<>(bufferSize);
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMilliSeconds = maxDelayMilliSeconds;
+        this.flushThread = new BasicThreadFactory.Builder().daemon(true).namingPattern("DedupWriteBehindThread-%d").build().newThread(this::flushLoop);
+        this.flushThread.start();
+    }
+
+    @Override
+    public boolean setConsumingIfNX(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        return delegate.setConsumingIfNX(dedupElement, dedupProcessingExpireMilliSeconds);
+    }
+
+    @Override
+    public ClaimResultEnum claim(DedupElement dedupElement, long dedupProcessingExpireMilliSeconds) {
+        return delegate.claim(dedupElement, dedupProcessingExpireMilliSeconds);
+    }
+
+    @Override
+    public void delete(DedupElement dedupElement) {
+        enqueue(new PendingOperation(dedupElement, false, 0));
+    }
+
+    @Override
+    public void markConsumed(DedupElement dedupElement, long dedupRecordReserveMinutes) {
+        enqueue(new PendingOperation(dedupElement, true, dedupRecordReserveMinutes));
+    }
+
+    @Override
+    public Integer getConsumeStatus(DedupElement dedupElement) {
+        return delegate.getConsumeStatus(dedupElement);
+    }
+
+    @Override
+    public List<Boolean> batchSetConsumingIfNX(List<DedupElement> dedupElements, long dedupProcessingExpireMilliSeconds) {
+        return delegate.batchSetConsumingIfNX(dedupElements, dedupProcessingExpireMilliSeconds);
+    }
+
+    @Override
+    public void batchDelete(List<DedupElement> dedupElements) {
+        for (DedupElement dedupElement : dedupElements) {
+            delete(dedupElement);
+        }
+    }
+
+    @Override
+    public void batchMarkConsumed(List<DedupElement> dedupElements, long dedupRecordReserveMinutes) {
+        for (DedupElement dedupElement : dedupElements) {
+            markConsumed(dedupElement, dedupRecordReserveMinutes);
+        }
+    }
+
+    @Override
+    public boolean supportsLeaseRenewal() {
+        return delegate.supportsLeaseRenewal();
+    }
+
+    @Override
+    public void batchRenewConsuming(List<DedupElement> dedupElements, long leaseMilliSeconds) {
+        delegate.batchRenewConsuming(dedupElements, leaseMilliSeconds);
+    }
+
+    @Override
+    public String toPrintInfo(DedupElement dedupElement) {
+        return delegate.toPrintInfo(dedupElement);
+    }
+
+    @Override
+    public void clearExpiredRecord() {
+        delegate.clearExpiredRecord();
+    }
+
+    @Override
+    public void shutdown() {
+        running = false;
+        try {
+            //后台线程退出前会写完队列中剩余的操作
+            flushThread.join(TimeUnit.SECONDS.toMillis(30));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        //后台线程没能及时退出时，剩余操作由当前线程写入
+        flush(drain(Integer.MAX_VALUE));
+        delegate.shutdown();
+    }
+
+    private void enqueue(PendingOperation operation) {
+        LeaseRenewer currentLeaseRenewer = leaseRenewer;
+        if (currentLeaseRenewer != null) {
+            currentLeaseRenewer.register(operation.dedupElement);
+        }
+        if (!running) {
+            //已关闭，直接同步写入
+            flush(Collections.singletonList(operation));
+            return;
+        }
+        try {
+            queue.put(operation);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            flush(Collections.singletonList(operation));
+        }
+    }
+
+    private void flushLoop() {
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingOperation first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                List<PendingOperation> batch = new ArrayList<>(maxBatchSize);
+                batch.add(first);
+                long deadline = System.currentTimeMillis() + maxDelayMilliSeconds;
+                while (batch.size() < maxBatchSize && running) {
+                    long waitMilliSeconds = deadline - System.currentTimeMillis();
+                    PendingOperation next = waitMilliSeconds > 0 ? queue.poll(waitMilliSeconds, TimeUnit.MILLISECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                queue.drainTo(batch, maxBatchSize - batch.size());
+                flush(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            } catch (Throwable e) {
+                log.error("error in dedup write behind thread", e);
+            }
+        }
+    }
+
+    private List<PendingOperation> drain(int maxElements) {
+        List<PendingOperation> operations = new ArrayList<>();
+        queue.drainTo(operations, maxElements);
+        return operations;
+    }
+
+    /**
+     * 写入后注销租约登记
+     */
+    private void flush(List<PendingOperation> operations) {
+        try {
+            write(operations);
+        } finally {
+            LeaseRenewer currentLeaseRenewer = leaseRenewer;
+            if (currentLeaseRenewer != null) {
+                for (PendingOperation operation : operations) {
+                    currentLeaseRenewer.unregister(operation.dedupElement);
+                }
+            }
+        }
+    }
+
+    /**
+     * 合并同一条消息的操作后按类型（及保留时间）批量写入，批量写入失败时逐条重试一次
+     */
+    private void write(List<PendingOperation> operations) {
+        if (operations.isEmpty()) {
+            return;
+        }
+        Map<DedupElement, PendingOperation> coalesced = new LinkedHashMap<>(operations.size() * 2);
+        for (PendingOperation operation : operations) {
+            coalesced.remove(operation.dedupElement);
+            coalesced.put(operation.dedupElement, operation);
+        }
+        List<DedupElement> deleteElements = new ArrayList<>();
+        Map<Long, List<DedupElement>> consumedElementsMap = new LinkedHashMap<>();
+        for (PendingOperation operation : coalesced.values()) {
+            if (operation.consumed) {
+                consumedElementsMap.computeIfAbsent(operation.dedupRecordReserveMinutes, k -> new ArrayList<>()).add(operation.dedupElement);
+            } else {
+                deleteElements.add(operation.dedupElement);
+            }
+        }
+        if (!deleteElements.isEmpty()) {
+            try {
+                delegate.batchDelete(deleteElements);
+            } catch (Exception e) {
+                log.warn("batch delete dedup record fail, retry one by one", e);
+                for (DedupElement dedupElement : deleteElements) {
+                    try {
+                        delegate.delete(dedupElement);
+                    } catch (Exception ex) {
+                        log.error("delete dedup record fail {}", dedupElement, ex);
+                    }
+                }
+            }
+        }
+        for (Map.Entry<Long, List<DedupElement>> entry : consumedElementsMap.entrySet()) {
+            try {
+                delegate.batchMarkConsumed(entry.getValue(), entry.getKey());
+            } catch (Exception e) {
+                log.warn("batch mark dedup record consumed fail, retry one by one", e);
+                for (DedupElement dedupElement : entry.getValue()) {
+                    try {
+                        delegate.markConsumed(dedupElement, entry.getKey());
+                    } catch (Exception ex) {
+                        log.error("mark dedup record consumed fail {}", dedupElement, ex);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * 等待写入的状态变更
+     */
+    private static class PendingOperation {
+        private final DedupElement dedupElement;
+        /**
+         * true=markConsumed，false=delete
+         */
+        private final boolean consumed;
+        private final long dedupRecordReserveMinutes;
+
+        PendingOperation(DedupElement dedupElement, boolean consumed, long dedupRecordReserveMinutes) {
+            this.dedupElement = dedupElement;
+            this.consumed = consumed;
+            this.dedupRecordReserveMinutes = dedupRecordReserveMinutes;
+        }
+    }
+}
@@ -2,23 +2,38 @@ package cn.jaychang.rocketmq.strategy;
 
 
 import cn.jaychang.rocketmq.base.MessageExtConst;
-import cn.jaychang.rocketmq.core.ConsumeStatusEnum;
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
 import cn.jaychang.rocketmq.core.DedupConfig;
+import cn.jaychang.rocketmq.metrics.DedupMetrics;
+import cn.jaychang.rocketmq.metrics.DuplicateAnalyzer;
+import cn.jaychang.rocketmq.metrics.LogRateLimiter;
+import cn.jaychang.rocketmq.persist.CompletionNotifier;
 import cn.jaychang.rocketmq.persist.DedupElement;
+import cn.jaychang.rocketmq.persist.DedupSubscriptionCache;
+import cn.jaychang.rocketmq.persist.IAsyncPersist;
 import cn.jaychang.rocketmq.persist.IPersist;
-import lombok.AllArgsConstructor;
+import cn.jaychang.rocketmq.persist.LeaseRenewer;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.function.BiFunction;
 
 /**
  * 去重策略的消费策略，去重数据存储目前支持MySQL（JDBC）和Redis，详见 persist包下的实现类
  * 1.如果已经消费过，则直接消费幂等掉
  * 2.如果正在消费中，则消费会延迟消费（consume later）注：如果一直消费中，由于需要避免消息丢失，即使前一个消息没消费结束依然会消费
+ * 3.其他节点正在消费时，开启完成通知（completionNotifier）的情况下最多等待completionWaitMilliSeconds，消费成功则直接确认，失败则重新抢占
+ * 4.同一节点上同一条消息的重复投递（如重复消息同时到达），等待正在消费的那一条的结果（最多inFlightWaitMilliSeconds），成功则直接确认，失败则接管消费
+ * 5.配置了异步存储（asyncPersist）时，消费结束后的写入不阻塞消费线程，与ack重叠进行
+ * 6.消费者可以在消息体反序列化之前通过 {@link #preClaim} 发出抢占，反序列化之后通过 {@link #awaitPreClaim} 取得结果，抢占结果在随后的 {@link #invoke} 中使用；
+ * 同步存储时已消费的重复消息不再反序列化，异步存储时抢占与反序列化重叠进行
+ * 7.重复消息的告警日志按duplicateLogPermitsPerSecond限流，配置了duplicateAnalyzer时统计重复次数最多的去重键
+ * 每个消费者创建一次，订阅（应用/Topic/Tag/GROUP）信息按订阅缓存
  */
 @Slf4j
-@AllArgsConstructor
 public class DedupConsumeStrategy implements ConsumeStrategy {
 
 
@@ -27,46 +42,382 @@ public class DedupConsumeStrategy implements ConsumeStrategy {
     //获取去重键的函数
     private final BiFunction<Object, Map<String, Object>, String> dedupMessageKeyFunction;
 
+    private final DedupSubscriptionCache subscriptionCache;
+
+    private final InFlightRegistry inFlightRegistry = new InFlightRegistry();
+
+    /**
+     * 反序列化之前的抢占结果，同一消费线程上随后的invoke使用
+     */
+    private final ThreadLocal<PreClaim> preClaimed = new ThreadLocal<>();
+
+    private final LogRateLimiter duplicateLogLimiter;
+
+    public DedupConsumeStrategy(DedupConfig dedupConfig, BiFunction<Object, Map<String, Object>, String> dedupMessageKeyFunction) {
+        this.dedupConfig = dedupConfig;
+        this.dedupMessageKeyFunction = dedupMessageKeyFunction;
+        this.subscriptionCache = new DedupSubscriptionCache(dedupConfig.getApplicationName());
+        this.duplicateLogLimiter = new LogRateLimiter(dedupConfig.getDuplicateLogPermitsPerSecond());
+    }
 
     @Override
     public <T> boolean invoke(BiFunction<T, Map<String, Object>, Boolean> consumeCallback, T message, Map<String, Object> extMap) {
-        IPersist persist = dedupConfig.getPersist();
         final String topic = (String) extMap.get(MessageExtConst.PROPERTY_TOPIC);
         final String tags = (String) extMap.getOrDefault(MessageExtConst.PROPERTY_TAGS, "");
         final String consumerGroup = (String) extMap.get(MessageExtConst.CONSUMER_GROUP);
-        DedupElement dedupElement = new DedupElement(dedupConfig.getApplicationName(), topic, tags, consumerGroup, dedupMessageKeyFunction.apply(message, extMap));
-        Boolean shouldConsume = true;
+        PreClaim preClaim = takePreClaim((String) extMap.get(MessageExtConst.PROPERTY_EXT_MSG_ID));
+        if (preClaim != null && preClaim.claimResult.isClaimed()) {
+            //已经持有消费记录，不能再等待本节点上的其他消费，否则记录要等到过期才能释放
+            CompletableFuture<InFlightRegistry.Outcome> future = new CompletableFuture<>();
+            boolean registered = inFlightRegistry.register(preClaim.dedupElement, future) == null;
+            return claimAndConsume(consumeCallback, message, extMap, preClaim.dedupElement, registered ? future : null, preClaim.claimResult);
+        }
+        DedupElement dedupElement = preClaim != null ? preClaim.dedupElement
+                : subscriptionCache.get(topic, tags, consumerGroup).newElement(dedupMessageKeyFunction.apply(message, extMap));
+        ClaimResultEnum preClaimResult = preClaim != null ? preClaim.claimResult : null;
 
-        if (dedupElement.getMsgUniqKey() != null) {
-            shouldConsume = persist.setConsumingIfNX(dedupElement, dedupConfig.getDedupProcessingExpireMilliSeconds());
+        final long inFlightWaitMilliSeconds = dedupConfig.getInFlightWaitMilliSeconds();
+        if (dedupElement.getMsgUniqKey() == null || inFlightWaitMilliSeconds <= 0) {
+            return claimAndConsume(consumeCallback, message, extMap, dedupElement, null, preClaimResult);
         }
 
-        //设置成功，证明应该要消费
-        if (shouldConsume != null && shouldConsume) {
-            //开始消费
-            return doHandleMsgAndUpdateStatus(consumeCallback, message, extMap, dedupElement);
-        } else {//有消费过/中的，做对应策略处理
-            Integer val = persist.getConsumeStatus(dedupElement);
-            final ConsumeStatusEnum consumeStatusEnum = ConsumeStatusEnum.codeOf(val);
+        //本节点上同一条消息正在消费时，等待其结果，而不是走存储和broker的延迟重试
+        final long deadline = System.currentTimeMillis() + inFlightWaitMilliSeconds;
+        while (true) {
+            CompletableFuture<InFlightRegistry.Outcome> future = new CompletableFuture<>();
+            CompletableFuture<InFlightRegistry.Outcome> inFlight = inFlightRegistry.register(dedupElement, future);
+            if (inFlight == null) {
+                return claimAndConsume(consumeCallback, message, extMap, dedupElement, future, preClaimResult);
+            }
+            //等待之后抢占结果已过时
+            preClaimResult = null;
+            long remainingMilliSeconds = deadline - System.currentTimeMillis();
+            InFlightRegistry.Outcome outcome;
+            try {
+                outcome = remainingMilliSeconds > 0 ? InFlightRegistry.await(inFlight, remainingMilliSeconds) : null;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
             final String msgId = (String) extMap.get(MessageExtConst.PROPERTY_EXT_MSG_ID);
-
-            if (ConsumeStatusEnum.CONSUMING.equals(consumeStatusEnum)) {//正在消费中，稍后重试
-                log.warn("the same message is considered consuming, try consume later dedupKey : {}, {}, {}", persist.toPrintInfo(dedupElement), msgId, persist.getClass().getSimpleName());
+            if (outcome == null) {
+                if (shouldLogDuplicate()) {
+                    log.warn("the same message is still consuming in this node after {}ms, try consume later dedupKey : {}, {}", inFlightWaitMilliSeconds, dedupElement, msgId);
+                }
+                recordClaimResult(dedupElement, ClaimResultEnum.CONSUMING);
                 return false;
-            } else if (ConsumeStatusEnum.CONSUMED.equals(consumeStatusEnum)) {//证明消费过了，直接消费认为成功
-                log.warn("message has been consumed before! dedupKey : {}, msgId : {} , so just ack. {}", persist.toPrintInfo(dedupElement), msgId, persist.getClass().getSimpleName());
+            } else if (InFlightRegistry.Outcome.CONSUMED.equals(outcome)) {
+                if (shouldLogDuplicate()) {
+                    log.warn("message has been consumed by the same node! dedupKey : {}, msgId : {} , so just ack.", dedupElement, msgId);
+                }
+                recordClaimResult(dedupElement, ClaimResultEnum.CONSUMED);
                 return true;
+            } else if (InFlightRegistry.Outcome.CONSUMING.equals(outcome)) {
+                if (shouldLogDuplicate()) {
+                    log.warn("the same message is considered consuming, try consume later dedupKey : {}, {}", dedupElement, msgId);
+                }
+                recordClaimResult(dedupElement, ClaimResultEnum.CONSUMING);
+                return false;
+            }
+            //前一条消费失败，消费记录已删除，重新登记后接管
+            log.info("the same message failed in this node, take over dedupKey : {}, {}", dedupElement, msgId);
+        }
+    }
+
+    /**
+     * 在消息体反序列化之前，以从原始消息中提取的去重键发出抢占；配置了异步存储时不等待结果，与反序列化重叠进行
+     *
+     * @return false表示已确定是消费过的重复消息，可以不反序列化直接确认；true表示需要继续反序列化，之后调用 {@link #awaitPreClaim}
+     */
+    public boolean preClaim(String msgId, String topic, String tags, String consumerGroup, String dedupKey) {
+        PreClaim previous = preClaimed.get();
+        if (previous != null) {
+            //之前的抢占没有被invoke使用（正常不会出现），释放之前的抢占
+            preClaimed.remove();
+            log.warn("discard pre claim not taken {}, current msgId : {}", previous.dedupElement, msgId);
+            discard(previous);
+        }
+        DedupElement dedupElement = subscriptionCache.get(topic, tags == null ? "" : tags, consumerGroup).newElement(dedupKey);
+        PreClaim preClaim = new PreClaim(msgId, dedupElement, claimAsync(dedupElement));
+        preClaimed.set(preClaim);
+        //同步存储时结果已经拿到，已消费的重复消息不再反序列化
+        return !preClaim.future.isDone() || awaitPreClaim();
+    }
+
+    /**
+     * 等待preClaim发出的抢占结果
+     *
+     * @return false表示已消费过的重复消息，直接确认；true表示需要消费，抢占结果由随后的invoke使用
+     */
+    public boolean awaitPreClaim() {
+        PreClaim preClaim = preClaimed.get();
+        if (preClaim == null) {
+            return true;
+        }
+        ClaimResultEnum claimResult;
+        try {
+            claimResult = resolve(preClaim);
+        } catch (RuntimeException e) {
+            preClaimed.remove();
+            throw e;
+        }
+        if (ClaimResultEnum.CONSUMED.equals(claimResult)) {
+            preClaimed.remove();
+            if (shouldLogDuplicate()) {
+                log.warn("message has been consumed before! dedupKey : {}, msgId : {} , so just ack.", dedupConfig.getPersist().toPrintInfo(preClaim.dedupElement), preClaim.msgId);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * 反序列化失败（不会再调用invoke）时释放preClaim抢占到的消费记录
+     */
+    public void releasePreClaim() {
+        PreClaim preClaim = preClaimed.get();
+        preClaimed.remove();
+        if (preClaim != null) {
+            discard(preClaim);
+        }
+    }
+
+    private PreClaim takePreClaim(String msgId) {
+        PreClaim preClaim = preClaimed.get();
+        if (preClaim == null) {
+            return null;
+        }
+        preClaimed.remove();
+        if (!Objects.equals(preClaim.msgId, msgId)) {
+            //不是同一条消息（正常不会出现），释放之前的抢占
+            log.warn("discard pre claim of another message {}, current msgId : {}", preClaim.dedupElement, msgId);
+            discard(preClaim);
+            return null;
+        }
+        resolve(preClaim);
+        return preClaim;
+    }
+
+    /**
+     * 取得preClaim的抢占结果并记录，只记录一次
+     */
+    private ClaimResultEnum resolve(PreClaim preClaim) {
+        if (preClaim.claimResult == null) {
+            try {
+                preClaim.claimResult = preClaim.future.join();
+            } catch (CompletionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw e;
+            }
+            recordClaimResult(preClaim.dedupElement, preClaim.claimResult);
+        }
+        return preClaim.claimResult;
+    }
+
+    /**
+     * 放弃不再使用的preClaim，抢占成功时删除消费记录
+     */
+    private void discard(PreClaim preClaim) {
+        ClaimResultEnum claimResult;
+        try {
+            claimResult = resolve(preClaim);
+        } catch (RuntimeException e) {
+            log.error("pre claim fail, discard {}", preClaim.dedupElement, e);
+            return;
+        }
+        if (claimResult.isClaimed()) {
+            commit(preClaim.dedupElement, false, preClaim.msgId);
+        }
+    }
+
+    /**
+     * 抢占消费记录并消费，inFlight不为空时在结束后通知本节点上等待的重复消息
+     * preClaimResult不为空时第一次抢占直接使用该结果（反序列化之前已经抢占过）
+     */
+    private <T> boolean claimAndConsume(BiFunction<T, Map<String, Object>, Boolean> consumeCallback, T message, Map<String, Object> extMap,
+                                        DedupElement dedupElement, CompletableFuture<InFlightRegistry.Outcome> inFlight, ClaimResultEnum preClaimResult) {
+        IPersist persist = dedupConfig.getPersist();
+        InFlightRegistry.Outcome outcome = InFlightRegistry.Outcome.RELEASED;
+        try {
+            //等到其他节点消费失败（记录已删除）时再抢占一次
+            for (int attempt = 0; ; attempt++) {
+                ClaimResultEnum claimResult = ClaimResultEnum.CLAIMED;
+
+                if (attempt == 0 && preClaimResult != null) {
+                    claimResult = preClaimResult;
+                } else if (dedupElement.getMsgUniqKey() != null) {
+                    //一次调用完成setnx，失败时一并拿到当前消费状态；这里没有可以重叠的工作，直接走阻塞接口
+                    claimResult = dedupConfig.getPersist().claim(dedupElement, claimExpireMilliSeconds());
+                    recordClaimResult(dedupElement, claimResult);
+                }
+
+                //设置成功，证明应该要消费
+                if (claimResult.isClaimed()) {
+                    if (ClaimResultEnum.TAKEN_OVER.equals(claimResult)) {
+                        log.info("took over expired dedup record, dedupKey : {}", persist.toPrintInfo(dedupElement));
+                    }
+                    boolean consumeRes = doHandleMsgAndUpdateStatus(consumeCallback, message, extMap, dedupElement);
+                    outcome = consumeRes ? InFlightRegistry.Outcome.CONSUMED : InFlightRegistry.Outcome.RELEASED;
+                    return consumeRes;
+                } else {//有消费过/中的，做对应策略处理
+                    final String msgId = (String) extMap.get(MessageExtConst.PROPERTY_EXT_MSG_ID);
+
+                    if (ClaimResultEnum.CONSUMING.equals(claimResult)) {
+                        //其他节点正在消费，开启完成通知时等待其结果
+                        Boolean completed = attempt == 0 ? awaitCompletion(dedupElement) : null;
+                        if (Boolean.TRUE.equals(completed)) {
+                            if (shouldLogDuplicate()) {
+                                log.warn("message has been consumed by other node! dedupKey : {}, msgId : {} , so just ack.", persist.toPrintInfo(dedupElement), msgId);
+                            }
+                            outcome = InFlightRegistry.Outcome.CONSUMED;
+                            return true;
+                        } else if (Boolean.FALSE.equals(completed)) {
+                            log.info("the same message is released by other node, try claim again dedupKey : {}, {}", persist.toPrintInfo(dedupElement), msgId);
+                            continue;
+                        }
+                        //正在消费中，稍后重试
+                        if (shouldLogDuplicate()) {
+                            log.warn("the same message is considered consuming, try consume later dedupKey : {}, {}, {}", persist.toPrintInfo(dedupElement), msgId, persist.getClass().getSimpleName());
+                        }
+                        outcome = InFlightRegistry.Outcome.CONSUMING;
+                        return false;
+                    } else if (ClaimResultEnum.CONSUMED.equals(claimResult)) {//证明消费过了，直接消费认为成功
+                        if (shouldLogDuplicate()) {
+                            log.warn("message has been consumed before! dedupKey : {}, msgId : {} , so just ack. {}", persist.toPrintInfo(dedupElement), msgId, persist.getClass().getSimpleName());
+                        }
+                        outcome = InFlightRegistry.Outcome.CONSUMED;
+                        return true;
+                    } else {
+                        //非法结果，降级，直接消费
+                        log.warn("[NOTIFYME]unknown consume result {}, ignore dedup, continue consuming,  dedupKey : {}, {}, {} ", claimResult, persist.toPrintInfo(dedupElement), msgId, persist.getClass().getSimpleName());
+                        boolean consumeRes = doHandleMsgAndUpdateStatus(consumeCallback, message, extMap, dedupElement);
+                        outcome = consumeRes ? InFlightRegistry.Outcome.CONSUMED : InFlightRegistry.Outcome.RELEASED;
+                        return consumeRes;
+                    }
+                }
+            }
+        } finally {
+            if (inFlight != null) {
+                inFlightRegistry.complete(dedupElement, inFlight, outcome);
+            }
+        }
+    }
+
+    /**
+     * 记录抢占结果，重复消息同时交给重复风暴检测
+     */
+    private void recordClaimResult(DedupElement dedupElement, ClaimResultEnum claimResult) {
+        dedupConfig.getMetrics().recordClaimResult(dedupElement, claimResult);
+        DuplicateAnalyzer duplicateAnalyzer = dedupConfig.getDuplicateAnalyzer();
+        if (duplicateAnalyzer != null && (ClaimResultEnum.CONSUMED.equals(claimResult) || ClaimResultEnum.CONSUMING.equals(claimResult))) {
+            duplicateAnalyzer.recordDuplicate(dedupElement);
+        }
+    }
+
+    /**
+     * 重复消息的告警日志按duplicateLogPermitsPerSecond限流，恢复输出时先输出期间被抑制的条数
+     */
+    private boolean shouldLogDuplicate() {
+        long suppressed = duplicateLogLimiter.acquire();
+        if (suppressed > 0) {
+            log.warn("{} duplicate message warnings suppressed", suppressed);
+        }
+        return suppressed >= 0;
+    }
+
+    /**
+     * 发出抢占，配置了异步存储时通过异步接口发出，不等待结果；否则同步抢占，返回已完成的结果
+     */
+    private CompletableFuture<ClaimResultEnum> claimAsync(DedupElement dedupElement) {
+        IAsyncPersist asyncPersist = dedupConfig.getAsyncPersist();
+        if (asyncPersist == null) {
+            return CompletableFuture.completedFuture(dedupConfig.getPersist().claim(dedupElement, claimExpireMilliSeconds()));
+        }
+        return asyncPersist.claimAsync(dedupElement, claimExpireMilliSeconds());
+    }
+
+    /**
+     * 消费结束后更新消费记录：成功标记为已消费，失败删除
+     * 配置了异步存储时只发出写入不等待结果，消费线程直接返回（ack与写入重叠）；写入完成前重复消息看到的是消费中状态，会延迟消费而不会重复消费
+     * 租约模式下写入完成之前继续续租，否则消费中状态可能在写入之前过期，被其他节点接管后重复消费
+     */
+    private void commit(DedupElement dedupElement, boolean consumed, String msgId) {
+        IAsyncPersist asyncPersist = dedupConfig.getAsyncPersist();
+        if (asyncPersist != null) {
+            LeaseRenewer leaseRenewer = dedupConfig.getLeaseRenewer();
+            if (leaseRenewer != null) {
+                leaseRenewer.register(dedupElement);
+            }
+            CompletableFuture<Void> future;
+            try {
+                future = consumed
+                        ? asyncPersist.markConsumedAsync(dedupElement, dedupConfig.getDedupRecordReserveMinutes())
+                        : asyncPersist.deleteAsync(dedupElement);
+            } catch (RuntimeException e) {
+                if (leaseRenewer != null) {
+                    leaseRenewer.unregister(dedupElement);
+                }
+                log.error("消费去重收尾工作异常 {}，忽略异常", msgId, e);
+                return;
+            }
+            future.whenComplete((result, e) -> {
+                if (leaseRenewer != null) {
+                    leaseRenewer.unregister(dedupElement);
+                }
+                if (e != null) {
+                    log.error("消费去重收尾工作异常 {}，忽略异常", msgId, e);
+                }
+            });
+            return;
+        }
+        IPersist persist = dedupConfig.getPersist();
+        try {
+            if (consumed) {//标记为这个消息消费过
+                log.debug("set consume res as CONSUME_STATUS_CONSUMED , {}", dedupElement);
+                persist.markConsumed(dedupElement, dedupConfig.getDedupRecordReserveMinutes());
             } else {
-                //非法结果，降级，直接消费
-                log.warn("[NOTIFYME]unknown consume result {}, ignore dedup, continue consuming,  dedupKey : {}, {}, {} ", val, persist.toPrintInfo(dedupElement), msgId, persist.getClass().getSimpleName());
-                return doHandleMsgAndUpdateStatus(consumeCallback, message, extMap, dedupElement);
+                log.info("consume Res is false, try deleting dedup record {} , {}", dedupElement, persist);
+                persist.delete(dedupElement);//消费失败了，删除这个key
             }
+        } catch (Exception e) {
+            log.error("消费去重收尾工作异常 {}，忽略异常", msgId, e);
         }
+    }
 
+    /**
+     * 抢占时设置的过期时间，租约模式下为租期，否则为dedupProcessingExpireMilliSeconds
+     */
+    private long claimExpireMilliSeconds() {
+        LeaseRenewer leaseRenewer = dedupConfig.getLeaseRenewer();
+        return leaseRenewer != null ? leaseRenewer.getLeaseMilliSeconds() : dedupConfig.getDedupProcessingExpireMilliSeconds();
     }
 
     /**
-     * 消费消息，末尾消费失败会删除消费记录，消费成功则更新消费状态
+     * 等待其他节点上同一条消息的消费结果，未开启完成通知时直接返回null
+     *
+     * @return true=已消费，false=已释放，null=仍在消费中
+     */
+    private Boolean awaitCompletion(DedupElement dedupElement) {
+        CompletionNotifier notifier = dedupConfig.getCompletionNotifier();
+        long waitMilliSeconds = dedupConfig.getCompletionWaitMilliSeconds();
+        if (notifier == null || waitMilliSeconds <= 0) {
+            return null;
+        }
+        try {
+            return notifier.await(dedupElement, waitMilliSeconds, dedupConfig.getPersist());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (Exception e) {
+            log.warn("error when wait dedup completion {}", dedupElement, e);
+            return null;
+        }
+    }
+
+    /**
+     * 消费消息，末尾消费失败会删除消费记录，消费成功则更新消费状态；租约模式下消费期间后台续租
      */
     private <T> boolean doHandleMsgAndUpdateStatus(final BiFunction<T, Map<String, Object>, Boolean> consumeCallback, final T message, final Map<String, Object> extMap, final DedupElement dedupElement) {
 
@@ -75,38 +426,55 @@ public class DedupConsumeStrategy implements ConsumeStrategy {
             log.warn("dedup key is null , consume msg but not update status{}", msgId);
             return consumeCallback.apply(message, extMap);
         } else {
-            IPersist persist = dedupConfig.getPersist();
-            boolean consumeRes = false;
+            DedupMetrics metrics = dedupConfig.getMetrics();
+            LeaseRenewer leaseRenewer = dedupConfig.getLeaseRenewer();
+            if (leaseRenewer != null) {
+                leaseRenewer.register(dedupElement);
+            }
             try {
-                consumeRes = consumeCallback.apply(message, extMap);
-            } catch (Throwable e) {
-                //消费失败了，删除这个key
+                boolean consumeRes = false;
+                long start = System.nanoTime();
                 try {
-                    persist.delete(dedupElement);
-                } catch (Exception ex) {
-                    log.error("error when delete dedup record {}", dedupElement, ex);
+                    consumeRes = consumeCallback.apply(message, extMap);
+                    metrics.recordHandle(dedupElement, consumeRes, System.nanoTime() - start);
+                } catch (Throwable e) {
+                    metrics.recordHandle(dedupElement, false, System.nanoTime() - start);
+                    //消费失败了，删除这个key
+                    commit(dedupElement, false, msgId);
+                    log.error(String.format("consume %s failed", msgId), e);
+                    throw e;
                 }
-                log.error(String.format("consume %s failed", msgId), e);
-                throw e;
-            }
 
 
-            //没有异常，正常返回的话，判断消费结果
-            try {
-                if (consumeRes) {//标记为这个消息消费过
-                    log.debug("set consume res as CONSUME_STATUS_CONSUMED , {}", dedupElement);
-                    persist.markConsumed(dedupElement, dedupConfig.getDedupRecordReserveMinutes());
-                } else {
-                    log.info("consume Res is false, try deleting dedup record {} , {}", dedupElement, persist);
-                    persist.delete(dedupElement);//消费失败了，删除这个key
+                //没有异常，正常返回的话，判断消费结果
+                commit(dedupElement, consumeRes, msgId);
+                return consumeRes;
+            } finally {
+                //异步写入时commit已另外登记，写入完成前继续续租
+                if (leaseRenewer != null) {
+                    leaseRenewer.unregister(dedupElement);
                 }
-            } catch (Exception e) {
-                log.error("消费去重收尾工作异常 {}，忽略异常", msgId, e);
             }
-            return consumeRes;
         }
 
     }
 
+    /**
+     * 反序列化之前的抢占结果
+     */
+    private static class PreClaim {
+        private final String msgId;
+        private final DedupElement dedupElement;
+        private final CompletableFuture<ClaimResultEnum> future;
+        /**
+         * future完成后取得的结果，只在所属消费线程上访问
+         */
+        private ClaimResultEnum claimResult;
 
-}
\ No newline at end of file
+        PreClaim(String msgId, DedupElement dedupElement, CompletableFuture<ClaimResultEnum> future) {
+            this.msgId = msgId;
+            this.dedupElement = dedupElement;
+            this.future = future;
+        }
+    }
+}
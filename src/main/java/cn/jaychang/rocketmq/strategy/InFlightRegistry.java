@@ -0,0 +1,67 @@
+package cn.jaychang.rocketmq.strategy;
+
+import cn.jaychang.rocketmq.persist.DedupElement;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 本进程内正在消费的消息（single-flight）：同一节点上同一条消息的重复投递不再走存储和broker重试，而是等待第一条的消费结果
+ * 基于ConcurrentHashMap（分段、读无锁），每个消费策略一个实例
+ */
+class InFlightRegistry {
+
+    /**
+     * 第一条消息的处理结果
+     */
+    enum Outcome {
+        /**
+         * 已消费，重复消息直接确认
+         */
+        CONSUMED,
+        /**
+         * 消费失败，消费记录已删除，等待者可以接管
+         */
+        RELEASED,
+        /**
+         * 其他节点正在消费，等待者按原逻辑稍后重试
+         */
+        CONSUMING
+    }
+
+    private final ConcurrentMap<DedupElement, CompletableFuture<Outcome>> inFlights = new ConcurrentHashMap<>();
+
+    /**
+     * 登记为正在消费
+     *
+     * @return null表示登记成功（本线程负责消费并在结束时调用 {@link #complete}），否则为已在消费的那条消息的结果
+     */
+    CompletableFuture<Outcome> register(DedupElement dedupElement, CompletableFuture<Outcome> future) {
+        return inFlights.putIfAbsent(dedupElement, future);
+    }
+
+    /**
+     * 通知等待者并移除登记
+     */
+    void complete(DedupElement dedupElement, CompletableFuture<Outcome> future, Outcome outcome) {
+        inFlights.remove(dedupElement, future);
+        future.complete(outcome);
+    }
+
+    /**
+     * 等待第一条消息的结果，超时返回null
+     */
+    static Outcome await(CompletableFuture<Outcome> future, long timeoutMilliSeconds) throws InterruptedException {
+        try {
+            return future.get(timeoutMilliSeconds, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            return null;
+        } catch (ExecutionException e) {
+            return Outcome.RELEASED;
+        }
+    }
+}
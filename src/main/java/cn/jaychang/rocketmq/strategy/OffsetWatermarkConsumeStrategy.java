@@ -0,0 +1,119 @@
+package cn.jaychang.rocketmq.strategy;
+
+
+import cn.jaychang.rocketmq.base.MessageExtConst;
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+import cn.jaychang.rocketmq.core.DedupConfig;
+import cn.jaychang.rocketmq.metrics.DedupMetrics;
+import cn.jaychang.rocketmq.metrics.DuplicateAnalyzer;
+import cn.jaychang.rocketmq.metrics.LogRateLimiter;
+import cn.jaychang.rocketmq.persist.DedupElement;
+import cn.jaychang.rocketmq.persist.DedupSubscriptionCache;
+import cn.jaychang.rocketmq.persist.OffsetWatermarkTracker;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.Map;
+import java.util.function.BiFunction;
+
+/**
+ * 按消费位点水位去重：以默认的消息ID去重时，重复消息主要来自broker对同一个队列offset的重复投递（rebalance、位点提交滞后等）
+ * 1.每个队列（应用/GROUP/Topic/broker/queueId）维护已消费的连续水位及水位之上乱序完成的offset，判断是否已消费是内存中的O(1)操作
+ * 2.消费成功后标记offset，由 {@link OffsetWatermarkTracker} 定期写入Redis或DB，存储按队列而不是按消息
+ * 3.本节点正在消费的offset再次投递时稍后再消费（consume later）；不跨节点抢占：rebalance之后新节点从存储加载水位，最近一个写入周期内消费的消息可能再消费一次；生产端重发的消息offset不同，不在此模式的判断范围内
+ * 4.缺少队列信息的消息交给按去重键的策略处理
+ */
+@Slf4j
+public class OffsetWatermarkConsumeStrategy implements ConsumeStrategy {
+
+    /**
+     * extMap中消息所在的队列（Topic:broker:queueId，重试消息为GROUP的重试Topic %RETRY%GROUP）
+     */
+    public static final String PROPERTY_QUEUE = "DEDUP_QUEUE";
+
+    /**
+     * extMap中消息在队列中的offset
+     */
+    public static final String PROPERTY_QUEUE_OFFSET = "DEDUP_QUEUE_OFFSET";
+
+    private final DedupConfig dedupConfig;
+
+    private final OffsetWatermarkTracker tracker;
+
+    /**
+     * 缺少队列信息时使用的策略
+     */
+    private final ConsumeStrategy fallback;
+
+    private final DedupSubscriptionCache subscriptionCache;
+
+    private final LogRateLimiter duplicateLogLimiter;
+
+    public OffsetWatermarkConsumeStrategy(DedupConfig dedupConfig, ConsumeStrategy fallback) {
+        this.dedupConfig = dedupConfig;
+        this.tracker = dedupConfig.getOffsetWatermarkTracker();
+        this.fallback = fallback;
+        this.subscriptionCache = new DedupSubscriptionCache(dedupConfig.getApplicationName());
+        this.duplicateLogLimiter = new LogRateLimiter(dedupConfig.getDuplicateLogPermitsPerSecond());
+    }
+
+    @Override
+    public <T> boolean invoke(BiFunction<T, Map<String, Object>, Boolean> consumeCallback, T message, Map<String, Object> extMap) {
+        final String queue = (String) extMap.get(PROPERTY_QUEUE);
+        final Object queueOffset = extMap.get(PROPERTY_QUEUE_OFFSET);
+        if (queue == null || !(queueOffset instanceof Long)) {
+            return fallback.invoke(consumeCallback, message, extMap);
+        }
+        final long offset = (Long) queueOffset;
+        final String topic = (String) extMap.get(MessageExtConst.PROPERTY_TOPIC);
+        final String tags = (String) extMap.getOrDefault(MessageExtConst.PROPERTY_TAGS, "");
+        final String consumerGroup = (String) extMap.get(MessageExtConst.CONSUMER_GROUP);
+        final String msgId = (String) extMap.get(MessageExtConst.PROPERTY_EXT_MSG_ID);
+        final String queueKey = dedupConfig.getApplicationName() + ":" + consumerGroup + ":" + queue;
+        DedupElement dedupElement = subscriptionCache.get(topic, tags, consumerGroup).newElement(msgId);
+        DedupMetrics metrics = dedupConfig.getMetrics();
+
+        ClaimResultEnum claimResult = tracker.begin(queueKey, offset);
+        if (ClaimResultEnum.CONSUMING.equals(claimResult)) {
+            //本节点正在消费同一个offset（如位点提交滞后导致的重复拉取），稍后再消费
+            long suppressed = duplicateLogLimiter.acquire();
+            if (suppressed > 0) {
+                log.warn("{} duplicate message warnings suppressed", suppressed);
+            }
+            if (suppressed >= 0) {
+                log.warn("message offset is still consuming in this node, try consume later queue : {}, offset : {}, msgId : {}", queueKey, offset, msgId);
+            }
+            metrics.recordClaimResult(dedupElement, ClaimResultEnum.CONSUMING);
+            return false;
+        }
+        if (ClaimResultEnum.CONSUMED.equals(claimResult)) {
+            long suppressed = duplicateLogLimiter.acquire();
+            if (suppressed > 0) {
+                log.warn("{} duplicate message warnings suppressed", suppressed);
+            }
+            if (suppressed >= 0) {
+                log.warn("message offset has been consumed! queue : {}, offset : {}, msgId : {} , so just ack.", queueKey, offset, msgId);
+            }
+            metrics.recordClaimResult(dedupElement, ClaimResultEnum.CONSUMED);
+            DuplicateAnalyzer duplicateAnalyzer = dedupConfig.getDuplicateAnalyzer();
+            if (duplicateAnalyzer != null) {
+                duplicateAnalyzer.recordDuplicate(dedupElement);
+            }
+            return true;
+        }
+        metrics.recordClaimResult(dedupElement, ClaimResultEnum.CLAIMED);
+
+        boolean consumeRes = false;
+        long start = System.nanoTime();
+        try {
+            consumeRes = consumeCallback.apply(message, extMap);
+        } catch (Throwable e) {
+            log.error(String.format("consume %s failed", msgId), e);
+            throw e;
+        } finally {
+            metrics.recordHandle(dedupElement, consumeRes, System.nanoTime() - start);
+            //消费失败的消息由broker重新投递（并发消费时投递到重试队列），只注销不标记
+            tracker.end(queueKey, offset, consumeRes);
+        }
+        return consumeRes;
+    }
+}
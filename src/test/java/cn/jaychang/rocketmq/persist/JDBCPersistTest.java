@@ -0,0 +1,76 @@
+package cn.jaychang.rocketmq.persist;
+
+import cn.jaychang.rocketmq.core.ConsumeStatusEnum;
+import cn.jaychang.rocketmq.core.JdbcKeyModeEnum;
+import org.junit.jupiter.api.Test;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class JDBCPersistTest {
+
+    private static final String COMPOSITE_DDL = "CREATE TABLE t_rocketmq_dedup ("
+            + "id bigint NOT NULL AUTO_INCREMENT PRIMARY KEY, create_time timestamp NOT NULL, update_time timestamp NOT NULL,"
+            + "application_name varchar(32) NOT NULL, topic varchar(64) NOT NULL, tag varchar(64) NOT NULL, consumer_group varchar(64) NOT NULL,"
+            + "msg_uniq_key varchar(64) NOT NULL, consume_status tinyint NOT NULL, expire_time bigint NOT NULL,"
+            + "CONSTRAINT uk_uniq_key UNIQUE (application_name, topic, consumer_group, tag, msg_uniq_key))";
+
+    private static final String HASHED_DDL = "CREATE TABLE t_rocketmq_dedup ("
+            + "id bigint NOT NULL AUTO_INCREMENT PRIMARY KEY, create_time timestamp NOT NULL, update_time timestamp NOT NULL,"
+            + "application_name varchar(32) NOT NULL, topic varchar(64) NOT NULL, tag varchar(64) NOT NULL, consumer_group varchar(64) NOT NULL,"
+            + "msg_uniq_key varchar(64) NOT NULL, uniq_key_hash binary(16) NOT NULL, consume_status tinyint NOT NULL, expire_time bigint NOT NULL,"
+            + "CONSTRAINT uk_uniq_key_hash UNIQUE (uniq_key_hash))";
+
+    private static final long EXPIRE_MILLI_SECONDS = 60000;
+
+    private static JDBCPersist persist(JdbcKeyModeEnum keyMode, boolean mysqlMode) {
+        DriverManagerDataSource dataSource = new DriverManagerDataSource(
+                "jdbc:h2:mem:dedup_" + UUID.randomUUID() + (mysqlMode ? ";MODE=MySQL" : "") + ";DB_CLOSE_DELAY=-1", "sa", "");
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute(JdbcKeyModeEnum.HASHED.equals(keyMode) ? HASHED_DDL : COMPOSITE_DDL);
+        JDBCPersist persist = new JDBCPersist(jdbcTemplate);
+        persist.setKeyMode(keyMode);
+        persist.setClaimFailOpen(false);
+        return persist;
+    }
+
+    private static DedupElement element(String msgUniqKey) {
+        return new DedupElement("app", "topic", "tag", "group", msgUniqKey);
+    }
+
+    @Test
+    void batchClaimDuplicateKeyOnlyFirstClaims() {
+        for (JdbcKeyModeEnum keyMode : JdbcKeyModeEnum.values()) {
+            for (boolean mysqlMode : new boolean[]{true, false}) {
+                JDBCPersist persist = persist(keyMode, mysqlMode);
+                List<Boolean> result = persist.batchSetConsumingIfNX(Arrays.asList(element("a"), element("b"), element("a")), EXPIRE_MILLI_SECONDS);
+                assertEquals(Arrays.asList(true, true, false), result, keyMode + ", mysql mode " + mysqlMode);
+                assertEquals(ConsumeStatusEnum.CONSUMING.getCode(), persist.getConsumeStatus(element("a")));
+                assertEquals(ConsumeStatusEnum.CONSUMING.getCode(), persist.getConsumeStatus(element("b")));
+            }
+        }
+    }
+
+    @Test
+    void batchClaimExistingRecords() {
+        for (JdbcKeyModeEnum keyMode : JdbcKeyModeEnum.values()) {
+            JDBCPersist persist = persist(keyMode, true);
+            //a消费中，b已消费，c已过期
+            persist.setConsumingIfNX(element("a"), EXPIRE_MILLI_SECONDS);
+            persist.setConsumingIfNX(element("b"), EXPIRE_MILLI_SECONDS);
+            persist.markConsumed(element("b"), 1);
+            persist.setConsumingIfNX(element("c"), -1000);
+
+            List<Boolean> result = persist.batchSetConsumingIfNX(
+                    Arrays.asList(element("a"), element("b"), element("c"), element("d"), element("c")), EXPIRE_MILLI_SECONDS);
+            assertEquals(Arrays.asList(false, false, true, true, false), result, keyMode.name());
+            assertEquals(ConsumeStatusEnum.CONSUMED.getCode(), persist.getConsumeStatus(element("b")));
+            assertEquals(ConsumeStatusEnum.CONSUMING.getCode(), persist.getConsumeStatus(element("c")));
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package cn.jaychang.rocketmq.persist;
+
+import cn.jaychang.rocketmq.core.ClaimResultEnum;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class QueueOffsetWatermarkTest {
+
+    private static final int MAX_SPAN = 8;
+
+    @Test
+    void emptyWatermarkConsumesNothing() {
+        QueueOffsetWatermark watermark = new QueueOffsetWatermark(MAX_SPAN);
+        assertFalse(watermark.isConsumed(0));
+        assertEquals(ClaimResultEnum.CLAIMED, watermark.begin(100));
+        assertNull(watermark.takeSnapshot());
+        watermark.end(100, true);
+        assertTrue(watermark.isConsumed(100));
+        assertFalse(watermark.isConsumed(99));
+        assertEquals(ClaimResultEnum.CONSUMED, watermark.begin(100));
+    }
+
+    @Test
+    void failedOffsetIsNotMarked() {
+        QueueOffsetWatermark watermark = new QueueOffsetWatermark(MAX_SPAN);
+        assertEquals(ClaimResultEnum.CLAIMED, watermark.begin(5));
+        watermark.end(5, false);
+        assertFalse(watermark.isConsumed(5));
+        assertNull(watermark.takeSnapshot());
+    }
+
+    @Test
+    void redeliveryWhileInFlightIsConsuming() {
+        QueueOffsetWatermark watermark = new QueueOffsetWatermark(MAX_SPAN);
+        assertEquals(ClaimResultEnum.CLAIMED, watermark.begin(7));
+        assertEquals(ClaimResultEnum.CONSUMING, watermark.begin(7));
+        watermark.end(7, false);
+        //消费失败后重新投递可以再次登记
+        assertEquals(ClaimResultEnum.CLAIMED, watermark.begin(7));
+        assertEquals(ClaimResultEnum.CONSUMING, watermark.begin(7));
+        watermark.end(7, true);
+        assertEquals(ClaimResultEnum.CONSUMED, watermark.begin(7));
+    }
+
+    @Test
+    void outOfOrderCompletionsAdvanceWatermark() {
+        QueueOffsetWatermark watermark = new QueueOffsetWatermark(MAX_SPAN);
+        watermark.markConsumed(10);
+        watermark.markConsumed(12);
+        watermark.markConsumed(13);
+        assertEquals("10:11:Bg==", watermark.takeSnapshot());
+        assertFalse(watermark.isConsumed(11));
+        watermark.markConsumed(11);
+        assertEquals("10:14:", watermark.takeSnapshot());
+        for (long offset = 10; offset < 14; offset++) {
+            assertTrue(watermark.isConsumed(offset));
+        }
+        assertFalse(watermark.isConsumed(14));
+    }
+
+    @Test
+    void offsetBelowFloorRebases() {
+        QueueOffsetWatermark watermark = new QueueOffsetWatermark(MAX_SPAN);
+        watermark.markConsumed(5);
+        watermark.markConsumed(7);
+        watermark.markConsumed(3);
+        assertEquals("3:4:Cg==", watermark.takeSnapshot());
+        assertFalse(watermark.isConsumed(2));
+        assertTrue(watermark.isConsumed(3));
+        assertFalse(watermark.isConsumed(4));
+        assertTrue(watermark.isConsumed(5));
+        assertFalse(watermark.isConsumed(6));
+        assertTrue(watermark.isConsumed(7));
+        watermark.markConsumed(4);
+        watermark.markConsumed(6);
+        assertEquals("3:8:", watermark.takeSnapshot());
+    }
+
+    @Test
+    void offsetFarBelowFloorIsNotRecorded() {
+        QueueOffsetWatermark watermark = new QueueOffsetWatermark(MAX_SPAN);
+        watermark.markConsumed(100);
+        watermark.markConsumed(90);
+        assertFalse(watermark.isConsumed(90));
+        assertTrue(watermark.isConsumed(100));
+    }
+
+    @Test
+    void slideTreatsSkippedGapsAsUnknown() {
+        QueueOffsetWatermark watermark = new QueueOffsetWatermark(MAX_SPAN);
+        watermark.markConsumed(0);
+        for (long offset = 2; offset <= 9; offset++) {
+            watermark.markConsumed(offset);
+        }
+        //offset 1 未消费，水位越过它之后 floor 前移，0 和 1 都变为未知
+        assertFalse(watermark.isConsumed(0));
+        assertFalse(watermark.isConsumed(1));
+        for (long offset = 2; offset <= 9; offset++) {
+            assertTrue(watermark.isConsumed(offset));
+        }
+        assertEquals("2:10:", watermark.takeSnapshot());
+    }
+
+    @Test
+    void slideNeverPassesInFlightOffset() {
+        QueueOffsetWatermark watermark = new QueueOffsetWatermark(MAX_SPAN);
+        watermark.markConsumed(0);
+        assertEquals(ClaimResultEnum.CLAIMED, watermark.begin(1));
+        for (long offset = 2; offset <= 8; offset++) {
+            watermark.markConsumed(offset);
+        }
+        //超出跨度，但最小的消费中offset是1，不能前移，也不记录
+        watermark.markConsumed(9);
+        assertFalse(watermark.isConsumed(9));
+        assertFalse(watermark.isConsumed(1));
+        assertTrue(watermark.isConsumed(0));
+        assertEquals("0:1:/g==", watermark.takeSnapshot());
+
+        watermark.end(1, true);
+        assertEquals("0:9:", watermark.takeSnapshot());
+        watermark.markConsumed(9);
+        assertTrue(watermark.isConsumed(9));
+    }
+
+    @Test
+    void slideStopsAtInFlightOffset() {
+        QueueOffsetWatermark watermark = new QueueOffsetWatermark(MAX_SPAN);
+        watermark.markConsumed(0);
+        assertEquals(ClaimResultEnum.CLAIMED, watermark.begin(3));
+        watermark.markConsumed(2);
+        watermark.markConsumed(10);
+        //目标水位为3，越过未消费的1，floor前移到3，消费中的3仍未消费
+        assertFalse(watermark.isConsumed(2));
+        assertFalse(watermark.isConsumed(3));
+        assertTrue(watermark.isConsumed(10));
+        assertEquals("3:3:gA==", watermark.takeSnapshot());
+        watermark.end(3, true);
+        assertTrue(watermark.isConsumed(3));
+    }
+
+    @Test
+    void snapshotRoundTrip() {
+        QueueOffsetWatermark watermark = new QueueOffsetWatermark(MAX_SPAN);
+        watermark.markConsumed(5);
+        watermark.markConsumed(7);
+        watermark.markConsumed(3);
+        assertEquals(ClaimResultEnum.CLAIMED, watermark.begin(4));
+        String snapshot = watermark.takeSnapshot();
+        assertNull(watermark.takeSnapshot());
+
+        QueueOffsetWatermark restored = QueueOffsetWatermark.fromSnapshot(snapshot, MAX_SPAN);
+        for (long offset = 0; offset < 20; offset++) {
+            assertEquals(watermark.isConsumed(offset), restored.isConsumed(offset), "offset " + offset);
+        }
+        //消费中的offset不写入快照
+        assertEquals(ClaimResultEnum.CLAIMED, restored.begin(4));
+        assertNull(restored.takeSnapshot());
+    }
+
+    @Test
+    void notEvictedWhileInFlight() {
+        QueueOffsetWatermark watermark = new QueueOffsetWatermark(MAX_SPAN);
+        assertEquals(ClaimResultEnum.CLAIMED, watermark.begin(1));
+        long later = System.currentTimeMillis() + 1000;
+        assertFalse(watermark.evictIfIdle(later, 1));
+        watermark.end(1, true);
+        assertFalse(watermark.evictIfIdle(later, 1));
+        watermark.takeSnapshot();
+        assertTrue(watermark.evictIfIdle(later, 1));
+        assertNull(watermark.begin(2));
+        assertFalse(watermark.markConsumed(2));
+    }
+}